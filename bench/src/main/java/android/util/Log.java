@@ -0,0 +1,62 @@
+/*
+ * Copyright 2010 Pedro Fonseca
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Stands in for the Android logger when the security classes run on a
+ * desktop JVM. Only errors and warnings are printed, to the standard error,
+ * so that logging does not weigh on the measurements.
+ *
+ * @author Pedro Fonseca
+ */
+public final class Log {
+
+	private Log() {}
+
+	public static int d(String tag, String msg) {
+		return 0;
+	}
+
+	public static int i(String tag, String msg) {
+		return 0;
+	}
+
+	public static int w(String tag, String msg) {
+		return println("W", tag, msg);
+	}
+
+	public static int e(String tag, String msg) {
+		return println("E", tag, msg);
+	}
+
+	public static String getStackTraceString(Throwable tr) {
+		if (tr == null) {
+			return "";
+		}
+		StringWriter sw = new StringWriter();
+		tr.printStackTrace(new PrintWriter(sw));
+		return sw.toString();
+	}
+
+	private static int println(String level, String tag, String msg) {
+		System.err.println(level + "/" + tag + ": " + msg);
+		return 0;
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2010 Pedro Fonseca
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hecticant.thinpass.security;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Transforms batches of fields the way key rotation and the account list
+ * do. Batches below the parallel threshold of {@link CryptContext} run on
+ * the calling thread, larger ones on the worker pool; the serial loop is
+ * the baseline for both.
+ *
+ * @author Pedro Fonseca
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BatchBenchmark {
+
+	@Param({ "16", "256", "4096" })
+	int batch;
+
+	@Param({ "64" })
+	int size;
+
+	private CryptContext context;
+	private CryptContext previous;
+	private CryptContext rotating;
+	private List<byte[]> records;
+
+	@Setup
+	public void setUp() {
+		byte[] oldKey = CryptUtil.genRandomKey().getEncoded();
+		byte[] newKey = CryptUtil.genRandomKey().getEncoded();
+		context = new CryptContext(oldKey);
+		previous = new CryptContext(oldKey);
+		rotating = new CryptContext(newKey, previous);
+
+		records = new ArrayList<byte[]>(batch);
+		byte[] clear = new byte[size];
+		for (int i = 0; i < batch; ++i) {
+			CryptUtil.nextBytes(clear, size);
+			records.add(context.encrypt(clear));
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		context.destroy();
+		rotating.destroy();
+		previous.destroy();
+	}
+
+	@Benchmark
+	public List<byte[]> decryptSerial() {
+		List<byte[]> clear = new ArrayList<byte[]>(records.size());
+		for (byte[] r: records) {
+			clear.add(context.decrypt(r));
+		}
+		return clear;
+	}
+
+	@Benchmark
+	public List<CryptResult> decryptAll() {
+		return context.decryptAll(records);
+	}
+
+	/**
+	 * Opens each record with the key being replaced and seals it with the
+	 * new one, as a key rotation batch does.
+	 */
+	@Benchmark
+	public List<CryptResult> reencryptAll() {
+		return rotating.reencryptAll(records);
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2010 Pedro Fonseca
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hecticant.thinpass.security;
+
+import java.security.Security;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of deriving a master key, which is most of the time
+ * taken to unlock, and of the other key operations of the unlock path:
+ * generating a random key and hashing it into the challenge.
+ * <p>
+ * The derivations are named by algorithm and cost: <code>legacy</code> is
+ * {@link KdfParameters#LEGACY}, <code>pbe20k</code> the PBE function at
+ * 20000 iterations, and <code>argon2-16m</code> and <code>argon2-64m</code>
+ * Argon2id with three passes over 16 and 64 MiB on two lanes.
+ *
+ * @author Pedro Fonseca
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class KeyBenchmark {
+
+	/**
+	 * The parameters of a derivation. Only the derivations are run once per
+	 * parameter.
+	 */
+	@State(Scope.Benchmark)
+	public static class Derivation {
+		@Param({ "legacy", "pbe20k", "argon2-16m", "argon2-64m" })
+		String kdf;
+
+		KdfParameters params;
+
+		@Setup
+		public void setUp() {
+			if (Security.getProvider(
+					BouncyCastleProvider.PROVIDER_NAME) == null) {
+				Security.addProvider(new BouncyCastleProvider());
+			}
+			params = parameters(kdf);
+		}
+	}
+
+	private final char[] password =
+		{ 'c', 'o', 'r', 'r', 'e', 'c', 't', 'h', 'o', 'r', 's', 'e' };
+	private byte[] salt;
+	private byte[] keyBytes;
+
+	@Setup
+	public void setUp() {
+		salt = CryptUtil.getSalt();
+		keyBytes = CryptUtil.genRandomKey().getEncoded();
+	}
+
+	@Benchmark
+	public SecretKey genMasterKey(Derivation d) {
+		return CryptUtil.genMasterKey(password, salt, d.params);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public SecretKey genRandomKey() {
+		return CryptUtil.genRandomKey();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public byte[] hash() {
+		return CryptUtil.hash(keyBytes, salt);
+	}
+
+	private static KdfParameters parameters(String name) {
+		if ("legacy".equals(name)) {
+			return KdfParameters.LEGACY;
+		}
+		if ("pbe20k".equals(name)) {
+			return new KdfParameters(KdfParameters.Algorithm.PBE_SHA1_AES128,
+					20000, 0, 1);
+		}
+		if ("argon2-16m".equals(name)) {
+			return new KdfParameters(KdfParameters.Algorithm.ARGON2ID, 3,
+					16 * 1024, 2);
+		}
+		if ("argon2-64m".equals(name)) {
+			return new KdfParameters(KdfParameters.Algorithm.ARGON2ID, 3,
+					64 * 1024, 2);
+		}
+		throw new IllegalArgumentException("Unknown KDF " + name);
+	}
+}
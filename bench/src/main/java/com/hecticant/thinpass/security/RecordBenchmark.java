@@ -0,0 +1,146 @@
+/*
+ * Copyright 2010 Pedro Fonseca
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hecticant.thinpass.security;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encrypts and decrypts a single field, from the size of a username to
+ * that of a long description. The fields are sealed through a shared
+ * {@link CryptContext}, as the store does, and through
+ * {@link CryptUtil}, which builds a cipher on each call. The shared
+ * variants run on every core against the same context.
+ *
+ * @author Pedro Fonseca
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RecordBenchmark {
+
+	@Param({ "16", "256", "4096", "65536" })
+	int size;
+
+	private byte[] key;
+	private CryptContext context;
+	private byte[] clear;
+	private byte[] record;
+	private byte[] legacy;
+
+	/**
+	 * The buffers of one thread, for the records sealed and opened in
+	 * place.
+	 */
+	@State(Scope.Thread)
+	public static class Buffers {
+		ByteBuffer clear;
+		ByteBuffer record;
+		byte[] sealed;
+
+		@Setup
+		public void setUp(RecordBenchmark b) {
+			clear = ByteBuffer.wrap(b.clear);
+			// Records sealed from arrays may be filled past the overhead.
+			record = ByteBuffer.allocate(Math.max(b.record.length,
+					b.size + CryptContext.RECORD_OVERHEAD));
+			sealed = b.record;
+		}
+	}
+
+	@Setup
+	public void setUp() {
+		key = CryptUtil.genRandomKey().getEncoded();
+		context = new CryptContext(key);
+		clear = new byte[size];
+		CryptUtil.nextBytes(clear, size);
+		record = context.encrypt(clear);
+		legacy = CryptUtil.encrypt(key, clear);
+	}
+
+	@TearDown
+	public void tearDown() {
+		context.destroy();
+	}
+
+	@Benchmark
+	public byte[] encrypt() {
+		return context.encrypt(clear);
+	}
+
+	@Benchmark
+	public byte[] decrypt() {
+		return context.decrypt(record);
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public byte[] encryptShared() {
+		return context.encrypt(clear);
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public byte[] decryptShared() {
+		return context.decrypt(record);
+	}
+
+	@Benchmark
+	public int encryptInPlace(Buffers b) {
+		b.clear.clear();
+		b.record.clear();
+		return context.encrypt(b.clear, b.record);
+	}
+
+	/**
+	 * The record is copied back before each run, since opening it
+	 * overwrites it.
+	 */
+	@Benchmark
+	public ByteBuffer decryptInPlace(Buffers b) {
+		b.record.clear();
+		b.record.put(b.sealed).flip();
+		return context.decrypt(b.record);
+	}
+
+	@Benchmark
+	public byte[] utilEncrypt() {
+		return CryptUtil.encrypt(key, clear);
+	}
+
+	@Benchmark
+	public byte[] utilDecrypt() {
+		return CryptUtil.decrypt(key, legacy);
+	}
+}
@@ -17,11 +17,14 @@
 package com.hecticant.thinpass;
 
 import java.io.UnsupportedEncodingException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.content.Context;
 import android.content.DialogInterface;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.View;
@@ -86,6 +89,7 @@ public class EditAccountActivity extends LockableActivity
 		return alert;
 	}
 	
+	@SuppressWarnings("unchecked")
 	public void onClick(View v) {
 		EditText description = (EditText) findViewById(R.id.EditAccDesc);
 		EditText username = (EditText) findViewById(R.id.EditAccUser);
@@ -112,26 +116,25 @@ public class EditAccountActivity extends LockableActivity
 		byte[] encDesc = secService.encrypt(descBytes);
 		byte[] encPass = secService.encrypt(passBytes);
 		
+		// The account is saved by the background writer of the store; the 
+		// UI thread does not wait for the disk.
 		StoreController sc = StoreController.getInstance(null);
 		String action = getIntent().getAction();
-		Account acc = null;
+		Future<Account> saved = null;
 		
 		if (action.equals(CREATE_ACCOUNT)) {
-			acc = sc.addAccount(username.getText().toString(), encPass, 
+			saved = sc.addAccountLater(username.getText().toString(), encPass, 
 				encDesc);
 		} else if (action.equals(UPDATE_ACCOUNT)) {
-			acc = (Account) getIntent().getSerializableExtra("Account");
+			Account acc = (Account) getIntent().getSerializableExtra("Account");
 			acc.setDescription(encDesc);
 			acc.setPassword(encPass);
 			acc.setUsername(username.getText().toString());
-			sc.updateAccount(acc);
+			saved = sc.updateAccountLater(acc);
 		}
 		
-		if (acc != null) {
-			description.getText().clear();
-			username.getText().clear();
-			password.getText().clear();
-			showDialog(DIALOG_SUCCESS_ID);
+		if (saved != null) {
+			new SaveTask().execute(saved);
 		} else {
 			showDialog(DIALOG_FAILURE_ID);
 		}
@@ -141,4 +144,34 @@ public class EditAccountActivity extends LockableActivity
 				Context.INPUT_METHOD_SERVICE);
 		imm.hideSoftInputFromWindow(password.getWindowToken(), 0);
 	}
+	
+	/**
+	 * Waits for the account to be saved, then tells the user.
+	 */
+	private class SaveTask extends AsyncTask<Future<Account>,Void,Account> {
+		protected Account doInBackground(Future<Account>... params) {
+			try {
+				return params[0].get();
+			}
+			catch (ExecutionException e) {
+				Log.e(TAG, "Cannot save the account", e.getCause());
+			}
+			catch (InterruptedException e) {
+				Log.w(TAG, "Interrupted while saving the account");
+			}
+			return null;
+		}
+		
+		@Override
+		protected void onPostExecute(Account result) {
+			if (result != null) {
+				((EditText) findViewById(R.id.EditAccDesc)).getText().clear();
+				((EditText) findViewById(R.id.EditAccUser)).getText().clear();
+				((EditText) findViewById(R.id.EditAccPass)).getText().clear();
+				showDialog(DIALOG_SUCCESS_ID);
+			} else {
+				showDialog(DIALOG_FAILURE_ID);
+			}
+		}
+	}
 }
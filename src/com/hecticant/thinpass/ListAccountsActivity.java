@@ -18,7 +18,10 @@ package com.hecticant.thinpass;
 
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import android.content.Context;
 import android.os.AsyncTask;
@@ -30,10 +33,15 @@ import android.view.ViewGroup;
 import android.widget.ArrayAdapter;
 import android.widget.ListView;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import com.hecticant.thinpass.R;
 import com.hecticant.thinpass.persistence.Account;
+import com.hecticant.thinpass.persistence.AccountSummary;
+import com.hecticant.thinpass.persistence.StoreChange;
 import com.hecticant.thinpass.persistence.StoreController;
+import com.hecticant.thinpass.persistence.StoreListener;
+import com.hecticant.thinpass.security.CryptResult;
 
 /**
  * An activity that fetches and displays in a <code>ListView</code> all accounts
@@ -43,24 +51,52 @@ import com.hecticant.thinpass.persistence.StoreController;
  */
 public class ListAccountsActivity extends LockableActivity {
 
+	// Number of accounts decrypted per call to SecurityService.decryptAll.
+	private static final int DECRYPT_BATCH = 256;
+
 	private ListView listView;
 		
-	private List<Account> accounts;
+	private List<AccountSummary> accounts;
 	
 	private List<AccountItem> accountItems;
 	
+	// Set once the list holds every account; later it is only updated with
+	// the changes published by the store.
+	private volatile boolean populated;
+	
+	// The latest change to each account since the list was last updated.
+	private final Map<Long, StoreChange.Type> pendingChanges = 
+		new LinkedHashMap<Long, StoreChange.Type>();
+	
+	private final StoreListener storeListener = new StoreListener() {
+		public void storeChanged(StoreChange change) {
+			synchronized (pendingChanges) {
+				for (Long id: change.getIds()) {
+					pendingChanges.put(id, change.getType());
+				}
+			}
+		}
+	};
+	
+	// Set once the user was told that the store failed its integrity check.
+	private volatile boolean tamperReported;
+	
 	// Used to cancel any active ListAccountsTask when onDestroy is called.
 	@SuppressWarnings("unchecked")
 	private AsyncTask listTask;
 	
 	public ListAccountsActivity() {
-		accounts = new ArrayList<Account>();
+		accounts = new ArrayList<AccountSummary>();
 		accountItems = new ArrayList<AccountItem>();
 	}
 	
     @Override
     protected void onCreate(Bundle savedInstanceState) {
     	super.onCreate(savedInstanceState);
+    	// Registered before the list is populated, so no change is missed;
+    	// changes already in the list are applied again harmlessly.
+    	StoreController.getInstance(getApplicationContext())
+    		.addStoreListener(storeListener);
     	listView = new ListView(this);
     	setContentView(listView);
     	
@@ -100,16 +136,17 @@ public class ListAccountsActivity extends LockableActivity {
     @Override
     protected void onResume() {
     	super.onResume();
-    	// Start filling the list on a background thread every time this 
-    	// activity gets back to the top of the stack. This is tolerable if the 
-    	// list is small; a better solution would be to have EditAccountActivity
-    	// broadcast changes and update the list incrementally after populating 
-    	// it when onCreate is called.
-    	listTask = new ListAccountsTask().execute();
+    	// Fill the list on a background thread the first time; afterwards 
+    	// only the accounts changed meanwhile are read and decrypted.
+    	if (listTask == null) {
+    		listTask = new ListAccountsTask().execute();
+    	}
     }
     
     @Override
 	protected void onDestroy() {
+    	StoreController.getInstance(getApplicationContext())
+    		.removeStoreListener(storeListener);
     	if (listTask != null) {
     		listTask.cancel(true);
     	}
@@ -124,11 +161,15 @@ public class ListAccountsActivity extends LockableActivity {
      * The <code>accounts</code> and <code>accountItem</code> lists are 
      * populated by this method.
      * <p>
-     * This implementation is quite nave as it fetches all accounts on the 
-     * store in one call. Moreover, it is potentially time consuming and should
-     * be executed on a separate thread.
+     * The list is first filled with the account summaries, which do not 
+     * include the encrypted fields. The encrypted fields are then fetched 
+     * and decrypted for a batch of accounts at a time, so only one batch of 
+     * encrypted data is in memory at once. It is still potentially time 
+     * consuming and should be executed on a separate thread.
+     * 
+     * @return if the list was populated.
      */
-    private void populateAccounts() {
+    private boolean populateAccounts() {
     	StoreController sc = StoreController.getInstance(getApplicationContext());
     	accounts.clear();
     	accountItems.clear();
@@ -136,69 +177,239 @@ public class ListAccountsActivity extends LockableActivity {
     	if (secService == null || secService.isLocked()) {
     		Log.w(TAG, 
     		"Called populateAccounts with the Security Service locked or null");
-    		return;
+    		return false;
+    	}
+    	
+    	// The summaries read below already hold the changes made so far.
+    	synchronized (pendingChanges) {
+    		pendingChanges.clear();
     	}
     		
-    	accounts.addAll(sc.accounts());
+    	// Usually a single read of the summary snapshot.
+    	accounts.addAll(sc.allSummaries());
+    	for (AccountSummary s: accounts) {
+    		accountItems.add(new AccountItem(s.getId(), "", 
+    				s.getUsername(), ""));
+    	}
+    	notifyListChanged();
     	
-    	for (Account acc: accounts) {
-    		// Decrypt the description and password fields to create the 
-    		// corresponding AccountItem.
-    		byte[] encrypted = acc.getDescription();
-    		byte[] clear = secService.decrypt(encrypted);
+    	// Fetch and decrypt the description and password fields in batches, 
+    	// so the SecurityService can spread the work over all cores while the
+    	// list still fills progressively.
+    	List<byte[]> encrypted = new ArrayList<byte[]>(2 * DECRYPT_BATCH);
+    	List<Long> ids = new ArrayList<Long>(DECRYPT_BATCH);
+    	for (int start = 0; start < accounts.size(); start += DECRYPT_BATCH) {
+    		int end = Math.min(start + DECRYPT_BATCH, accounts.size());
+    		ids.clear();
+    		for (AccountSummary s: accounts.subList(start, end)) {
+    			ids.add(s.getId());
+    		}
+    		List<Account> batch = readAccounts(sc, ids);
+    		
+    		encrypted.clear();
+    		for (Account acc: batch) {
+    			encrypted.add(acc.getDescription());
+    			encrypted.add(acc.getPassword());
+    		}
     		
     		// If decryption fails the password manager may be locked, in which
     		// case populateAccounts should have never been called; or there 
     		// was some GeneralSecurityException that was handled in the layers 
     		// below. The data model forbids null values on the Account fields 
     		// that are decrypted here. 
+    		List<CryptResult> clear = secService.decryptAll(encrypted);
     		if (clear == null) {
     			// TODO: Make the App exit gracefully...
     			throw new IllegalStateException();
     		}
     		
-    		String desc;
-			try {
-				desc = new String(clear, "UTF-16LE");
-			} catch (UnsupportedEncodingException e) {
-				Log.w(TAG, "UTF-16LE is unsuported, using the default encoding");
-				desc = new String(clear);
-			}
-    		
-    		encrypted = acc.getPassword();
-    		clear = secService.decrypt(encrypted);
-    		if (clear == null ) {
-    			throw new IllegalStateException();
+    		// Both lists are in id order; accounts deleted since the summaries
+    		// were read are missing from the batch and keep empty fields.
+    		int item = start;
+    		for (int i = 0; i < batch.size(); ++i) {
+    			Account acc = batch.get(i);
+    			while (accounts.get(item).getId() != acc.getId()) {
+    				++item;
+    			}
+    			AccountItem ai = accountItems.get(item);
+    			ai.setDescription(decodeField(clear.get(2 * i)));
+    			ai.setPassword(decodeField(clear.get(2 * i + 1)));
     		}
-    		
-    		String pass;
-			try {
-				pass = new String(clear, "UTF-16LE");
-			} catch (UnsupportedEncodingException e) {
-				Log.w(TAG, "UTF-16LE is unsuported, using the default encoding");
-				pass = new String(clear);
-			}
-    		
-    		AccountItem ai = new AccountItem(acc.getId(), desc, 
-    				acc.getUsername(), pass);
-    		accountItems.add(ai);
-    		
-    		// Notify the list view that the data has changed. This must be done
-    		// on the UI thread.
-        	Runnable r = new Runnable() {
-        		@SuppressWarnings("unchecked")
-				public void run() {
-        			ArrayAdapter<AccountItem> adapter = 
-        				(ArrayAdapter<AccountItem>) listView.getAdapter();
-        			adapter.notifyDataSetChanged();
-        	    }
-        	};
-        	listView.post(r);
+    		notifyListChanged();
     	}
     	
     	if (accounts.size() != accountItems.size()) {
     		throw new IllegalStateException("Account/AccountItems mismatch");
     	}
+    	return true;
+    }
+    
+    /**
+     * Applies the changes published by the store since the list was last 
+     * updated. Only the changed accounts are read and decrypted; they are 
+     * inserted or replaced in id order, and deleted accounts are removed.
+     */
+    private void applyChanges() {
+    	if (secService == null || secService.isLocked()) {
+    		Log.w(TAG, 
+    		"Called applyChanges with the Security Service locked or null");
+    		return;
+    	}
+    	Map<Long, StoreChange.Type> changes;
+    	synchronized (pendingChanges) {
+    		if (pendingChanges.isEmpty()) {
+    			return;
+    		}
+    		changes = new LinkedHashMap<Long, StoreChange.Type>(pendingChanges);
+    		pendingChanges.clear();
+    	}
+    	
+    	StoreController sc = StoreController.getInstance(getApplicationContext());
+    	List<Long> ids = new ArrayList<Long>(changes.size());
+    	for (Map.Entry<Long, StoreChange.Type> e: changes.entrySet()) {
+    		if (e.getValue() != StoreChange.Type.DELETED) {
+    			ids.add(e.getKey());
+    		} else {
+    			removeItem(e.getKey());
+    		}
+    	}
+    	Collections.sort(ids);
+    	
+    	for (int start = 0; start < ids.size(); start += DECRYPT_BATCH) {
+    		List<Long> batchIds = 
+    			ids.subList(start, Math.min(start + DECRYPT_BATCH, ids.size()));
+    		List<Account> batch = readAccounts(sc, batchIds);
+    		List<byte[]> encrypted = new ArrayList<byte[]>(2 * batch.size());
+    		for (Account acc: batch) {
+    			encrypted.add(acc.getDescription());
+    			encrypted.add(acc.getPassword());
+    		}
+    		List<CryptResult> clear = secService.decryptAll(encrypted);
+    		if (clear == null) {
+    			throw new IllegalStateException();
+    		}
+    		
+    		// Accounts missing from the batch were deleted meanwhile.
+    		int found = 0;
+    		for (Long id: batchIds) {
+    			if (found < batch.size() && batch.get(found).getId() == id) {
+    				Account acc = batch.get(found);
+    				setItem(new AccountSummary(acc.getId(), acc.getUsername(), 
+    						acc.getModificationTime()), 
+    					new AccountItem(acc.getId(), 
+    						decodeField(clear.get(2 * found)), acc.getUsername(),
+    						decodeField(clear.get(2 * found + 1))));
+    				++found;
+    			} else {
+    				removeItem(id);
+    			}
+    		}
+    	}
+    	notifyListChanged();
+    }
+    
+    /**
+     * Reads the accounts with ids <code>ids</code> and checks them against 
+     * the integrity index of the store, which detects rows edited, swapped 
+     * or removed outside the application. A mismatch is reported to the 
+     * user once.
+     * 
+     * @return the accounts found, in id order.
+     */
+    private List<Account> readAccounts(StoreController sc, List<Long> ids) {
+    	List<Account> batch;
+    	boolean intact;
+    	// Writes hold the lock of the controller, so none can come between 
+    	// the read and the check.
+    	synchronized (sc) {
+    		batch = sc.accountsWithIds(ids);
+    		intact = sc.verifyAccounts(ids, batch);
+    	}
+    	if (!intact && !tamperReported) {
+    		tamperReported = true;
+    		Log.e(TAG, "The accounts do not match the integrity index");
+    		listView.post(new Runnable() {
+    			public void run() {
+    				Toast.makeText(ListAccountsActivity.this, 
+    						"The accounts were modified outside ThinPass", 
+    						Toast.LENGTH_LONG).show();
+    			}
+    		});
+    	}
+    	return batch;
+    }
+    
+    /**
+     * @return the position of the account with id <code>id</code> or, if
+     * 			it is not in the list, <code>-(insertion point) - 1</code>.
+     */
+    private int findItem(long id) {
+    	int low = 0;
+    	int high = accounts.size() - 1;
+    	while (low <= high) {
+    		int mid = (low + high) >>> 1;
+    		long midId = accounts.get(mid).getId();
+    		if (midId < id) {
+    			low = mid + 1;
+    		} else if (midId > id) {
+    			high = mid - 1;
+    		} else {
+    			return mid;
+    		}
+    	}
+    	return -(low + 1);
+    }
+    
+    private void setItem(AccountSummary summary, AccountItem item) {
+    	int i = findItem(summary.getId());
+    	if (i >= 0) {
+    		accounts.set(i, summary);
+    		accountItems.set(i, item);
+    	} else {
+    		accounts.add(-(i + 1), summary);
+    		accountItems.add(-(i + 1), item);
+    	}
+    }
+    
+    private void removeItem(long id) {
+    	int i = findItem(id);
+    	if (i >= 0) {
+    		accounts.remove(i);
+    		accountItems.remove(i);
+    	}
+    }
+    
+    /**
+     * Notifies the list view that the data has changed. The notification is 
+     * posted to the UI thread.
+     */
+    private void notifyListChanged() {
+    	Runnable r = new Runnable() {
+    		@SuppressWarnings("unchecked")
+    		public void run() {
+    			ArrayAdapter<AccountItem> adapter = 
+    				(ArrayAdapter<AccountItem>) listView.getAdapter();
+    			adapter.notifyDataSetChanged();
+    		}
+    	};
+    	listView.post(r);
+    }
+    
+    private String decodeField(CryptResult result) {
+    	if (!result.isSuccessful()) {
+    		throw new IllegalStateException("Cannot decrypt account field", 
+    				result.getError());
+    	}
+    	
+    	byte[] clear = result.getData();
+    	String field;
+		try {
+			field = new String(clear, "UTF-16LE");
+		} catch (UnsupportedEncodingException e) {
+			Log.w(TAG, "UTF-16LE is unsuported, using the default encoding");
+			field = new String(clear);
+		}
+		return field;
     }
     
     private class ListAccountsTask extends AsyncTask<Void,Void,Void> {
@@ -216,7 +427,13 @@ public class ListAccountsActivity extends LockableActivity {
 				} 
 				catch (InterruptedException e) {}
 			}
-			populateAccounts();
+			if (!populated) {
+				populated = populateAccounts();
+			}
+			if (populated) {
+				// Including the changes made while the list was populated.
+				applyChanges();
+			}
 			return null;
 		}
 		
@@ -31,9 +31,11 @@ import android.view.View.OnClickListener;
 import android.view.inputmethod.InputMethodManager;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.Toast;
 
 import com.hecticant.thinpass.R;
 import com.hecticant.thinpass.security.AuthenticationResult;
+import com.hecticant.thinpass.security.AuthenticationResult.AuthenticationStatus;
 import com.hecticant.thinpass.security.SecurityService;
 
 public final class UnlockActivity extends SecureActivity 
@@ -58,12 +60,17 @@ public final class UnlockActivity extends SecureActivity
         et1.getText().getChars(0, et1.length(), password, 0);
         et1.getText().clear();
         
+        EditText et2 = (EditText)findViewById(R.id.pin);
+        char[] pin = new char[et2.length()];
+        et2.getText().getChars(0, et2.length(), pin, 0);
+        et2.getText().clear();
+        
         // Force the keyboard to hide.
 		InputMethodManager imm = (InputMethodManager)getSystemService(
 				Context.INPUT_METHOD_SERVICE);
 		imm.hideSoftInputFromWindow(et1.getWindowToken(), 0);
         
-        new UnlockTask().execute(password);
+        new UnlockTask().execute(password, pin);
 	}
 	
 	private void presentErrorDialog(String message, final boolean restart) {
@@ -83,8 +90,20 @@ public final class UnlockActivity extends SecureActivity
 	
 	private class UnlockTask extends AsyncTask<char[],Void,AuthenticationResult> {
 		protected AuthenticationResult doInBackground(char[]... params) {
-			AuthenticationResult ar = secService.authenticate(params[0]);
+			AuthenticationResult ar;
+			if (secService.canQuickUnlock() && params[1].length > 0) {
+				// Shortly after an automatic lock a PIN unlocks the session;
+				// without one the master password is checked as usual.
+				ar = secService.quickUnlock(params[1]);
+			} else {
+				ar = secService.authenticate(params[0]);
+				if (ar.getStatus() == AuthenticationStatus.AUTHENTICATED 
+						&& params[1].length > 0) {
+					secService.enableQuickUnlock(params[1]);
+				}
+			}
 			Arrays.fill(params[0], (char)0);
+			Arrays.fill(params[1], (char)0);
 			return ar;
 		}
 		
@@ -105,12 +124,17 @@ public final class UnlockActivity extends SecureActivity
 			switch (result.getStatus()) {
         		case AUTHENTICATED:
         			Log.i(TAG, "Authenticated");
+        			if (result.getMessage() != null) {
+        				Toast.makeText(UnlockActivity.this, result.getMessage(), 
+        						Toast.LENGTH_LONG).show();
+        			}
         			startActivity(new Intent(UnlockActivity.this, 
         					MenuActivity.class));
         			break;
         
         		case FAILED:
-        			message = "Wrong password";
+        			message = result.getMessage() != null 
+        				? result.getMessage() : "Wrong password";
         			presentErrorDialog(message, false);
         			break;
         		
@@ -17,11 +17,9 @@
 package com.hecticant.thinpass.persistence;
 
 import java.io.Serializable;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.nio.ByteBuffer;
 import java.util.Date;
-
-import android.util.Log;
+import java.util.UUID;
 
 /**
  * A container for user data saved in the application store.
@@ -32,13 +30,13 @@ import android.util.Log;
 public class Account implements Serializable {
 	private static final long serialVersionUID = 583202560576552968L;
 
-	private static final String TAG = "Account";
-	
 	private final long id;
+	private UUID uid;
 	private String username;
 	private byte[] description;
 	private byte[] password;
-	private Date modificationDate;
+	private long modificationTime;
+	private long changeSequence;
 	
 	/**
 	 * 
@@ -46,20 +44,60 @@ public class Account implements Serializable {
 	 * @param username
 	 * @param password
 	 * @param description
+	 * @param modificationTime the modification date in milliseconds since 
+	 * 			the epoch.
 	 */
 	public Account(long id, String username, byte[] password, 
-			byte[] description, String dateString) {
+			byte[] description, long modificationTime) {
 		this.id = id;
 		this.username = username;
 		this.password = password;
 		this.description = description;
-		
-		SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-		try {
-			this.modificationDate = df.parse(dateString);
-		} catch (ParseException e) {
-			Log.w(TAG, e.getLocalizedMessage());
-		}
+		this.modificationTime = modificationTime;
+	}
+	
+	/**
+	 * @param changeSequence the change sequence of the stored row.
+	 * 
+	 * @see #getChangeSequence()
+	 */
+	public Account(long id, String username, byte[] password, 
+			byte[] description, long modificationTime, long changeSequence) {
+		this(id, username, password, description, modificationTime);
+		this.changeSequence = changeSequence;
+	}
+	
+	/**
+	 * @param uid the identity of the account in every copy of the store, or
+	 * 			<code>null</code> for an account that predates them.
+	 * 
+	 * @see #getUid()
+	 */
+	Account(long id, UUID uid, String username, byte[] password, 
+			byte[] description, long modificationTime, long changeSequence) 
+	{
+		this(id, username, password, description, modificationTime, 
+				changeSequence);
+		this.uid = uid;
+	}
+
+	/**
+	 * Creates a copy of <code>other</code> with a new password and 
+	 * description, for instance after the account is encrypted with another
+	 * key. The modification date is kept.
+	 * 
+	 * @param other
+	 * @param password
+	 * @param description
+	 */
+	public Account(Account other, byte[] password, byte[] description) {
+		this.id = other.id;
+		this.uid = other.uid;
+		this.username = other.username;
+		this.password = password;
+		this.description = description;
+		this.modificationTime = other.modificationTime;
+		this.changeSequence = other.changeSequence;
 	}
 
 	/* Getters and setters. */
@@ -92,17 +130,76 @@ public class Account implements Serializable {
 	}
 	
 	public final Date getModificationDate() {
-		return modificationDate;
+		return new Date(modificationTime);
+	}
+	
+	/**
+	 * @return the modification date in milliseconds since the epoch.
+	 */
+	public final long getModificationTime() {
+		return modificationTime;
+	}
+
+	/**
+	 * Returns the change sequence of the row the account was read from. The
+	 * store gives each write to an account, including re-encryption, a 
+	 * sequence greater than any before, so the accounts changed since a 
+	 * point can be found by their sequence. Accounts written before 
+	 * sequences existed have their id as sequence.
+	 * 
+	 * @return the sequence, or 0 if the account was not read from the 
+	 * 			store.
+	 * @see Store#changesAfter(long, long)
+	 */
+	public final long getChangeSequence() {
+		return changeSequence;
 	}
 
 	public final long getId() {
 		return id;
 	}
 	
+	/**
+	 * Returns the identity of the account across copies of the store. The 
+	 * id is only valid in the copy that gave it, so an account merged from 
+	 * another copy is added under a new id, but keeps its uid. New accounts
+	 * take a random uid; accounts added before uids existed take one made 
+	 * from their id, which only matches between copies of the same store.
+	 * 
+	 * @return the uid, which is only meaningful for accounts read from the 
+	 * 			store.
+	 * @see StoreController#importChanges(java.io.InputStream)
+	 */
+	public final UUID getUid() {
+		return uid != null ? uid : legacyUid(id);
+	}
+	
+	/**
+	 * @return the uid of an account added before uids existed.
+	 */
+	static UUID legacyUid(long id) {
+		// Random uids have a version in their high bits, so never 0.
+		return new UUID(0, id);
+	}
+	
+	static UUID newUid() {
+		return UUID.randomUUID();
+	}
+	
+	static byte[] uidBytes(UUID uid) {
+		return ByteBuffer.allocate(16).putLong(uid.getMostSignificantBits())
+			.putLong(uid.getLeastSignificantBits()).array();
+	}
+	
+	static UUID uidOf(byte[] bytes) {
+		ByteBuffer b = ByteBuffer.wrap(bytes);
+		return new UUID(b.getLong(), b.getLong());
+	}
+	
 	@Override
 	public String toString() {
 		return String.format("<Account,%d,%s,PWD,DSC,%s>", id, username, 
-				modificationDate);
+				getModificationDate());
 	}
 	
 	@Override
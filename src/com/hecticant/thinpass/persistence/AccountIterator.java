@@ -0,0 +1,39 @@
+/*
+ * Copyright 2010 Pedro Fonseca
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hecticant.thinpass.persistence;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * An iterator that reads accounts from the store one at a time, instead of
+ * loading them all in a list. It holds a database cursor, which is released
+ * when the last account is returned or when the iterator is closed, so
+ * callers that stop early must close it.
+ * <p>
+ * Accounts cannot be removed through the iterator.
+ * 
+ * @author Pedro Fonseca
+ * @see Store#iterateAccounts(long)
+ */
+public interface AccountIterator extends Iterator<Account>, Closeable {
+	
+	/**
+	 * Releases the cursor. Closing an iterator more than once has no effect.
+	 */
+	void close();
+}
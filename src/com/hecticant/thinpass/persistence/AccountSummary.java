@@ -0,0 +1,68 @@
+/*
+ * Copyright 2010 Pedro Fonseca
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hecticant.thinpass.persistence;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * The columns of an account that are not encrypted. Listing summaries does 
+ * not read the encrypted fields, which are fetched with 
+ * {@link Store#accountsWithIds(java.util.Collection)} when they are needed.
+ * 
+ * @author Pedro Fonseca
+ * @see Account
+ */
+public class AccountSummary implements Serializable {
+	private static final long serialVersionUID = -4118930218823541173L;
+
+	private final long id;
+	private final String username;
+	private final long modificationTime;
+	
+	/**
+	 * @param modificationTime the modification date in milliseconds since 
+	 * 			the epoch.
+	 */
+	public AccountSummary(long id, String username, long modificationTime) {
+		this.id = id;
+		this.username = username;
+		this.modificationTime = modificationTime;
+	}
+
+	public final long getId() {
+		return id;
+	}
+	
+	public final String getUsername() {
+		return username;
+	}
+	
+	public final Date getModificationDate() {
+		return new Date(modificationTime);
+	}
+	
+	public final long getModificationTime() {
+		return modificationTime;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("<AccountSummary,%d,%s,%s>", id, username, 
+				getModificationDate());
+	}
+}
@@ -17,15 +17,24 @@
 package com.hecticant.thinpass.persistence;
 
 import java.io.File;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.ArrayList;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 /**
@@ -34,13 +43,16 @@ import android.util.Log;
  * 
  * @author Pedro Fonseca
  */
-public class DefaultStore implements Store {
+public class DefaultStore implements StoreBackend {
 	private static final String TAG = "Store";
 	private static final String DB_NAME = "PassApp";
-	private static final String ACC_TABLE = "Accounts";
+	static final String ACC_TABLE = "Accounts";
 	private static final String APP_TABLE = "AppData";
+	private static final String TREE_TABLE = "TreeNodes";
 	
-    private static final String CREATE_DATA =
+    // The first schema. The migrations add the later columns to new 
+    // databases too, so every database has the same columns.
+    static final String CREATE_DATA =
         "CREATE TABLE IF NOT EXISTS " + ACC_TABLE + " ("
             + "_id INTEGER PRIMARY KEY, "
             + "username TEXT, "
@@ -50,14 +62,91 @@ public class DefaultStore implements Store {
             + "reserved1 TEXT DEFAULT NULL, " 
             + "reserved2 BLOB DEFAULT NULL);";
     
+    // The text date of the first schema in milliseconds since the epoch. 
+    // SQLite reads it as UTC, which is how CURRENT_TIMESTAMP wrote it.
+    static final String TEXT_DATE = 
+    	"IFNULL(strftime('%s', modification_date), 0) * 1000";
+    
+    // Rows keep their text date until migration 1 copies it to 
+    // modification_time, which is 0 until then.
+    private static final String DATE = "CASE modification_time WHEN 0 THEN " 
+    	+ TEXT_DATE + " ELSE modification_time END";
+    
     private static final String CREATE_KV =
     	"CREATE TABLE IF NOT EXISTS " + APP_TABLE + " ("
     		+ "key TEXT PRIMARY KEY, value BLOB);";
+    
+    private static final String CREATE_TREE =
+    	"CREATE TABLE IF NOT EXISTS " + TREE_TABLE + " ("
+    		+ "level INTEGER NOT NULL, idx INTEGER NOT NULL, "
+    		+ "hash BLOB NOT NULL, PRIMARY KEY (level, idx));";
         	
+    // The columns read into an Account, in the order of the indexes below.
+    private static final String ACC_COLUMNS = 
+    	"_id, username, password, description, " + DATE + ", change_seq, uid";
+    private static final int COL_ID = 0;
+    private static final int COL_USERNAME = 1;
+    private static final int COL_PASSWORD = 2;
+    private static final int COL_DESCRIPTION = 3;
+    private static final int COL_DATE = 4;
+    private static final int COL_SEQUENCE = 5;
+    private static final int COL_UID = 6;
+    
+    // Queries that return rows are run through cursors, since a compiled 
+    // statement cannot return blobs on this platform. Their text is constant
+    // and every parameter is bound, so the database can reuse the compiled
+    // form instead of parsing them on each call.
+    private static final String SELECT_ALL = 
+    	"SELECT " + ACC_COLUMNS + " FROM " + ACC_TABLE + " ORDER BY _id ASC;";
+    private static final String SELECT_RANGE = 
+    	"SELECT " + ACC_COLUMNS + " FROM " + ACC_TABLE + " ORDER BY _id ASC LIMIT ? OFFSET ?;";
+    private static final String SELECT_AFTER = 
+    	"SELECT " + ACC_COLUMNS + " FROM " + ACC_TABLE + " WHERE _id > ? ORDER BY _id ASC;";
+    private static final String SELECT_PAGE = 
+    	"SELECT " + ACC_COLUMNS + " FROM " + ACC_TABLE 
+    		+ " WHERE _id > ? ORDER BY _id ASC LIMIT ?;";
+    private static final String SELECT_SUMMARIES = 
+    	"SELECT _id, username, " + DATE + " FROM " + ACC_TABLE 
+    		+ " WHERE _id > ? ORDER BY _id ASC LIMIT ?;";
+    private static final String SELECT_CHANGES = 
+    	"SELECT " + ACC_COLUMNS + " FROM " + ACC_TABLE 
+    		+ " WHERE change_seq > ? ORDER BY change_seq ASC LIMIT ?;";
+    private static final String SELECT_ACCOUNT = 
+    	"SELECT " + ACC_COLUMNS + " FROM " + ACC_TABLE + " WHERE _id = ?;";
+    private static final String SELECT_VALUE = 
+    	"SELECT value FROM " + APP_TABLE + " WHERE key = ?;";
+    private static final String SELECT_VALUES = 
+    	"SELECT key, value FROM " + APP_TABLE + ";";
+    private static final String SELECT_NODE = 
+    	"SELECT hash FROM " + TREE_TABLE + " WHERE level = ? AND idx = ?;";
+    
+    // Below the limit of SQLite on the number of bound parameters.
+    private static final int MAX_IDS_PER_QUERY = 500;
+    
+    /** The number of read-only connections opened in WAL mode. */
+    static final int READERS = 2;
+    
+    // The only connection that writes.
     private SQLiteDatabase db;
+    
+    // Read-only connections, only opened if the database is in WAL mode. 
+    // Idle ones wait in the pool.
+    private final List<SQLiteDatabase> readers = 
+    	new ArrayList<SQLiteDatabase>(READERS);
+    private final BlockingQueue<SQLiteDatabase> idleReaders = 
+    	new LinkedBlockingQueue<SQLiteDatabase>();
+    
+    // Compiled for the current database handle.
+    private Statements statements;
 	
     private File dbPath;
     
+    private SchemaMigrator migrator;
+    
+    // The last change sequence given to a row, or -1 until it is read. 
+    // Sequences of rolled back writes are not reused.
+    private long lastSequence = -1;
+    
 	public DefaultStore(Object context) {
 		if (!(context instanceof Context))
 			throw new IllegalArgumentException();
@@ -65,10 +154,17 @@ public class DefaultStore implements Store {
 		Context ctx = (Context) context;
 		try { 
 			this.db = ctx.openOrCreateDatabase(DB_NAME, 0, null);
+			this.dbPath = ctx.getDatabasePath(DB_NAME);
 			db.execSQL(CREATE_DATA);
 			db.execSQL(CREATE_KV);
+			db.execSQL(CREATE_TREE);
 			
-			this.dbPath = ctx.getDatabasePath(DB_NAME);
+			this.migrator = new SchemaMigrator(this);
+			boolean rowsPending = migrator.upgradeSchema();
+			openReaders();
+			if (rowsPending) {
+				migrator.start();
+			}
 		} 
 		catch (SQLException e) {
 			Log.e(TAG, e.getLocalizedMessage());
@@ -77,96 +173,238 @@ public class DefaultStore implements Store {
 	}
 
 	public long countAccounts() {
-		long count = -1;
-		Cursor c = db.rawQuery("SELECT COUNT(*) FROM " + ACC_TABLE, null);
-		
-		if (c.moveToFirst()) {
-			count = c.getLong(0);
+		SQLiteStatement s = statements().countAccounts;
+		synchronized (s) {
+			return s.simpleQueryForLong();
 		}
-		c.close();
-		return count;
 	}
 	
 	public List<Account> accounts() {
-		checkState();
-	    Cursor c = db.rawQuery("SELECT * FROM " + ACC_TABLE 
-	    		+ " ORDER BY _id ASC" , null);
+		SQLiteDatabase r = reader();
+	    Cursor c = r.rawQuery(SELECT_ALL, null);
 	    List<Account> list = getAccountSet(c);
 	    c.close();
+	    release(r);
 	    return list;
 	}
 	
 	public List<Account> accountsInRange(long offset, long limit) {
-		checkState();
-		Cursor c = db.rawQuery("SELECT * FROM " + ACC_TABLE 
-	    		+ " ORDER BY _id ASC LIMIT " + limit + " OFFSET " + offset, 
-	    		null);
+		SQLiteDatabase r = reader();
+		Cursor c = r.rawQuery(SELECT_RANGE, new String[] { 
+				Long.toString(limit), Long.toString(offset) });
 	    List<Account> list = getAccountSet(c);
 	    c.close();
+	    release(r);
 	    return list;
 	}
 		
-	public void addAccount(String username, byte[] password, byte[] description) 
+	public List<Account> accountsAfter(long lastId, long limit) {
+		SQLiteDatabase r = reader();
+		Cursor c = r.rawQuery(SELECT_PAGE, new String[] { 
+				Long.toString(lastId), Long.toString(limit) });
+		List<Account> list = getAccountSet(c);
+		c.close();
+		release(r);
+		return list;
+	}
+	
+	public AccountIterator iterateAccounts(long lastId) {
+		SQLiteDatabase r = reader();
+		Cursor c = r.rawQuery(SELECT_AFTER, 
+				new String[] { Long.toString(lastId) });
+		return new CursorIterator(c, r);
+	}
+		
+	public List<AccountSummary> summariesAfter(long lastId, long limit) {
+		SQLiteDatabase r = reader();
+		Cursor c = r.rawQuery(SELECT_SUMMARIES, new String[] { 
+				Long.toString(lastId), Long.toString(limit) });
+		
+		List<AccountSummary> list = new ArrayList<AccountSummary>();
+		while (c.moveToNext()) {
+			list.add(new AccountSummary(c.getLong(0), c.getString(1), 
+					c.getLong(2)));
+		}
+		c.close();
+		release(r);
+		return list;
+	}
+	
+	public List<Account> changesAfter(long sequence, long limit) {
+		// Rows still waiting for their sequence would be missed.
+		migrator.finish();
+		SQLiteDatabase r = reader();
+		Cursor c = r.rawQuery(SELECT_CHANGES, new String[] { 
+				Long.toString(sequence), Long.toString(limit) });
+		List<Account> list = getAccountSet(c);
+		c.close();
+		release(r);
+		return list;
+	}
+	
+	public List<Account> accountsWithIds(Collection<Long> ids) {
+		SQLiteDatabase r = reader();
+		List<Account> list = new ArrayList<Account>(ids.size());
+		Iterator<Long> it = ids.iterator();
+		while (it.hasNext()) {
+			List<String> args = new ArrayList<String>();
+			StringBuilder sql = new StringBuilder("SELECT ")
+				.append(ACC_COLUMNS).append(" FROM ")
+				.append(ACC_TABLE).append(" WHERE _id IN (");
+			while (it.hasNext() && args.size() < MAX_IDS_PER_QUERY) {
+				sql.append(args.isEmpty() ? "?" : ", ?");
+				args.add(it.next().toString());
+			}
+			sql.append(") ORDER BY _id ASC;");
+			
+			Cursor c = r.rawQuery(sql.toString(), 
+					args.toArray(new String[args.size()]));
+			list.addAll(getAccountSet(c));
+			c.close();
+		}
+		release(r);
+		return list;
+	}
+	
+	public Account addAccount(String username, byte[] password, 
+			byte[] description) 
 	{
-		checkState();
+		// The date is set here rather than by the column default, so the
+		// account can be built without reading the row back.
+		long date = HybridClock.now();
+		UUID uid = Account.newUid();
+		SQLiteStatement s = statements().insertAccount;
 		try {
-			ContentValues values = new ContentValues();
-			values.put("username", username);
-			values.put("password", password);
-			values.put("description", description);
-			
-			long rowId = db.insertOrThrow(ACC_TABLE, null, values);
+			long rowId;
+			long sequence;
+			synchronized (s) {
+				sequence = nextSequence();
+				s.bindBlob(1, Account.uidBytes(uid));
+				bind(s, 2, username);
+				s.bindBlob(3, password);
+				s.bindBlob(4, description);
+				s.bindLong(5, date);
+				s.bindLong(6, sequence);
+				rowId = s.executeInsert();
+			}
 			Log.d(TAG, "Account added to the database. Row ID: " + rowId);
+			return new Account(rowId, uid, username, password, description, 
+					date, sequence);
 		}
 		catch (SQLException e) {
 			Log.e(TAG, e.getLocalizedMessage());
+			return null;
 		}
 	}
 	
-	public void updateAccount(Account acc) {
-		checkState();
+	/**
+	 * Inserts the accounts through one compiled statement in one transaction,
+	 * so the whole batch is written to disk once.
+	 * 
+	 * @throws SQLException if an account cannot be inserted, in which case 
+	 * 			no account is added.
+	 */
+	public List<Account> addAccounts(Collection<Account> accounts) {
+		long date = HybridClock.now();
+		List<Account> added = new ArrayList<Account>(accounts.size());
+		
+		SQLiteStatement s = statements().insertAccount;
+		db.beginTransaction();
 		try {
-			ContentValues values = new ContentValues();
-			values.put("_id", acc.getId());
-			values.put("username", acc.getUsername());
-			values.put("password", acc.getPassword());
-			values.put("description", acc.getDescription());
-			
-			long rowId = db.replaceOrThrow(ACC_TABLE, null, values);
-			Log.d(TAG, String.format("Account updated (%d) %s", rowId, acc));
+			synchronized (s) {
+				for (Account a: accounts) {
+					long sequence = nextSequence();
+					UUID uid = Account.newUid();
+					s.bindBlob(1, Account.uidBytes(uid));
+					bind(s, 2, a.getUsername());
+					s.bindBlob(3, a.getPassword());
+					s.bindBlob(4, a.getDescription());
+					s.bindLong(5, date);
+					s.bindLong(6, sequence);
+					
+					long rowId = s.executeInsert();
+					added.add(new Account(rowId, uid, a.getUsername(), 
+							a.getPassword(), a.getDescription(), date, 
+							sequence));
+				}
+			}
+			db.setTransactionSuccessful();
 		}
-		catch (SQLException e) {
-			Log.e(TAG, e.getLocalizedMessage());
+		finally {
+			db.endTransaction();
 		}
+		Log.d(TAG, added.size() + " accounts added to the database");
+		return added;
+	}
+	
+	public void updateAccount(Account acc) {
+		SQLiteStatement s = statements().replaceAccount;
+		long rowId;
+		synchronized (s) {
+			s.bindLong(1, acc.getId());
+			bind(s, 2, acc.getUsername());
+			s.bindBlob(3, acc.getPassword());
+			s.bindBlob(4, acc.getDescription());
+			s.bindLong(5, HybridClock.now());
+			s.bindLong(6, nextSequence());
+			rowId = s.executeInsert();
+		}
+		Log.d(TAG, String.format("Account updated (%d) %s", rowId, acc));
 	}
 	
 	public byte[] valueForKey(String key) {
-		checkState();
-		Cursor c = db.rawQuery("SELECT value FROM " + APP_TABLE 
-				+ " WHERE key = ?", new String[] { key });
+		SQLiteDatabase r = reader();
+		Cursor c = r.rawQuery(SELECT_VALUE, new String[] { key });
 		
 		byte[] value = null;
 		if (c.moveToFirst()) {
 			value = c.getBlob(0);
 		}
 		c.close();
+		release(r);
 		return value;
 	}
 	
+	public Map<String, byte[]> values() {
+		SQLiteDatabase r = reader();
+		Cursor c = r.rawQuery(SELECT_VALUES, null);
+		
+		Map<String, byte[]> values = new HashMap<String, byte[]>();
+		while (c.moveToNext()) {
+			if (!c.isNull(1)) {
+				values.put(c.getString(0), c.getBlob(1));
+			}
+		}
+		c.close();
+		release(r);
+		return values;
+	}
+	
 	public void setValueForKey(String key, byte[] value, boolean replace) {
 		if (key == null || value == null) {
 			Log.d(TAG, "Tried to insert null key or value");
 			return;
 		}
-		checkState();
+		Statements st = statements();
+		SQLiteStatement s = replace ? st.replaceValue : st.insertValue;
+		try {
+			synchronized (s) {
+				s.bindString(1, key);
+				s.bindBlob(2, value);
+				s.executeInsert();
+			}
+		}
+		catch (SQLException e) {
+			Log.e(TAG, e.getLocalizedMessage());
+		}
+	}
+	
+	public void removeValueForKey(String key) {
+		SQLiteStatement s = statements().deleteValue;
 		try {
-			ContentValues values = new ContentValues();
-			values.put("key", key);
-			values.put("value", value);
-			if (replace) {
-				db.replaceOrThrow(APP_TABLE, null, values);
-			} else {
-				db.insertOrThrow(APP_TABLE, null, values); 
+			synchronized (s) {
+				s.bindString(1, key);
+				s.execute();
 			}
 		}
 		catch (SQLException e) {
@@ -179,19 +417,183 @@ public class DefaultStore implements Store {
 		try {
 			db.execSQL("DROP TABLE " + ACC_TABLE + ";");
 			db.execSQL("DROP TABLE " + APP_TABLE + ";");
+			db.execSQL("DROP TABLE " + TREE_TABLE + ";");
 		} 
 		catch (SQLException e) {
 			Log.e(TAG, e.getLocalizedMessage());
 		}
 		
+		migrator.stop();
+		closeStatements();
+		closeReaders();
 		db.close();
 		dbPath.delete();
 	}
 		
 	public void close() {
+		migrator.stop();
+		closeStatements();
+		closeReaders();
 		db.close();
 	}
 	
+	public Account account(long id) {
+		SQLiteDatabase r = reader();
+		Cursor c = r.rawQuery(SELECT_ACCOUNT, 
+				new String[] { Long.toString(id) });
+		Account a = nextAccount(c);
+		c.close();
+		release(r);
+		return a;
+	}
+	
+	public void reencryptAccount(Account acc) {
+		SQLiteStatement s = statements().reencryptAccount;
+		synchronized (s) {
+			s.bindBlob(1, acc.getPassword());
+			s.bindBlob(2, acc.getDescription());
+			s.bindLong(3, nextSequence());
+			s.bindLong(4, acc.getId());
+			s.execute();
+		}
+	}
+	
+	public List<Account> accountsWithUids(Collection<UUID> uids) {
+		// Rows added before uids existed have none, and are found by the id
+		// their uid is made from.
+		Map<Long, Account> found = new TreeMap<Long, Account>();
+		List<Long> legacyIds = new ArrayList<Long>();
+		List<String> literals = new ArrayList<String>(uids.size());
+		for (UUID uid: uids) {
+			if (uid.getMostSignificantBits() == 0) {
+				legacyIds.add(uid.getLeastSignificantBits());
+			}
+			literals.add(blobLiteral(Account.uidBytes(uid)));
+		}
+		for (Account a: accountsWithIds(legacyIds)) {
+			if (uids.contains(a.getUid())) {
+				found.put(a.getId(), a);
+			}
+		}
+		
+		// A blob cannot be bound to a query run through a cursor, so the 
+		// uids are written as literals.
+		SQLiteDatabase r = reader();
+		Iterator<String> it = literals.iterator();
+		while (it.hasNext()) {
+			StringBuilder sql = new StringBuilder("SELECT ")
+				.append(ACC_COLUMNS).append(" FROM ")
+				.append(ACC_TABLE).append(" WHERE uid IN (");
+			for (int n = 0; it.hasNext() && n < MAX_IDS_PER_QUERY; ++n) {
+				sql.append(n == 0 ? "" : ", ").append(it.next());
+			}
+			sql.append(");");
+			
+			Cursor c = r.rawQuery(sql.toString(), null);
+			for (Account a: getAccountSet(c)) {
+				found.put(a.getId(), a);
+			}
+			c.close();
+		}
+		release(r);
+		return new ArrayList<Account>(found.values());
+	}
+	
+	public Account mergeAccount(Account acc) {
+		Statements st = statements();
+		long sequence;
+		long rowId;
+		if (acc.getId() == 0) {
+			SQLiteStatement s = st.insertAccount;
+			synchronized (s) {
+				sequence = nextSequence();
+				s.bindBlob(1, Account.uidBytes(acc.getUid()));
+				bind(s, 2, acc.getUsername());
+				s.bindBlob(3, acc.getPassword());
+				s.bindBlob(4, acc.getDescription());
+				s.bindLong(5, acc.getModificationTime());
+				s.bindLong(6, sequence);
+				rowId = s.executeInsert();
+			}
+		} else {
+			// The row keeps its uid, which is the one merged.
+			SQLiteStatement s = st.replaceAccount;
+			synchronized (s) {
+				sequence = nextSequence();
+				s.bindLong(1, acc.getId());
+				bind(s, 2, acc.getUsername());
+				s.bindBlob(3, acc.getPassword());
+				s.bindBlob(4, acc.getDescription());
+				s.bindLong(5, acc.getModificationTime());
+				s.bindLong(6, sequence);
+				s.executeInsert();
+			}
+			rowId = acc.getId();
+		}
+		return new Account(rowId, acc.getUid(), acc.getUsername(), 
+				acc.getPassword(), acc.getDescription(), 
+				acc.getModificationTime(), sequence);
+	}
+	
+	public byte[] treeNode(int level, long index) {
+		SQLiteDatabase r = reader();
+		Cursor c = r.rawQuery(SELECT_NODE, 
+				new String[] { Integer.toString(level), Long.toString(index) });
+		
+		byte[] hash = null;
+		if (c.moveToFirst()) {
+			hash = c.getBlob(0);
+		}
+		c.close();
+		release(r);
+		return hash;
+	}
+	
+	public void setTreeNode(int level, long index, byte[] hash) {
+		SQLiteStatement s = statements().replaceNode;
+		synchronized (s) {
+			s.bindLong(1, level);
+			s.bindLong(2, index);
+			s.bindBlob(3, hash);
+			s.executeInsert();
+		}
+	}
+	
+	public int treeHeight() {
+		SQLiteStatement s = statements().treeHeight;
+		synchronized (s) {
+			return (int) s.simpleQueryForLong();
+		}
+	}
+	
+	public void clearTree() {
+		SQLiteStatement s = statements().clearTree;
+		synchronized (s) {
+			s.execute();
+		}
+	}
+	
+	public void beginTransaction() {
+		checkState();
+		db.beginTransaction();
+	}
+	
+	public void setTransactionSuccessful() {
+		db.setTransactionSuccessful();
+	}
+	
+	public void endTransaction() {
+		db.endTransaction();
+	}
+	
+	public boolean isOpen() {
+		return db != null && db.isOpen();
+	}
+	
+	public void setStoreKey(byte[] key) {
+		// The database is not sealed as a whole.
+	}
+	
 	SQLiteDatabase getRawStore() {
 		return db;
 	}
@@ -200,9 +602,11 @@ public class DefaultStore implements Store {
 		Account a = null;
 		boolean hasNext = !c.isClosed() && c.moveToNext();
 		if (hasNext) {
-			a = new Account(c.getLong(0), c.getString(1), c.getBlob(2), 
-					c.getBlob(3), c.getString(4));
-			Log.d(TAG, a.toString());
+			a = new Account(c.getLong(COL_ID), c.isNull(COL_UID) ? null 
+						: Account.uidOf(c.getBlob(COL_UID)), 
+					c.getString(COL_USERNAME), c.getBlob(COL_PASSWORD), 
+					c.getBlob(COL_DESCRIPTION), c.getLong(COL_DATE), 
+					c.getLong(COL_SEQUENCE));
 		}
 		return a;
 	}
@@ -217,12 +621,244 @@ public class DefaultStore implements Store {
 		return accounts;
 	}
 	
-	private void reopen() throws SQLiteException {
+	/**
+	 * Reads accounts from a cursor as they are requested. 
+	 */
+	private final class CursorIterator implements AccountIterator {
+		private final Cursor cursor;
+		private final SQLiteDatabase reader;
+		private Account next;
+		
+		CursorIterator(Cursor cursor, SQLiteDatabase reader) {
+			this.cursor = cursor;
+			this.reader = reader;
+			advance();
+		}
+		
+		public boolean hasNext() {
+			return next != null;
+		}
+		
+		public Account next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			Account a = next;
+			advance();
+			return a;
+		}
+		
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+		
+		public void close() {
+			next = null;
+			if (!cursor.isClosed()) {
+				cursor.close();
+				release(reader);
+			}
+		}
+		
+		private void advance() {
+			next = nextAccount(cursor);
+			if (next == null) {
+				close();
+			}
+		}
+	}
+	
+	/**
+	 * The statements that change the store or return a single number, 
+	 * compiled once for a database handle. A statement may be shared by 
+	 * several threads, so it is bound and executed while holding its lock.
+	 */
+	private static final class Statements {
+		final SQLiteStatement countAccounts;
+		final SQLiteStatement insertAccount;
+		final SQLiteStatement replaceAccount;
+		final SQLiteStatement reencryptAccount;
+		final SQLiteStatement insertValue;
+		final SQLiteStatement replaceValue;
+		final SQLiteStatement deleteValue;
+		final SQLiteStatement replaceNode;
+		final SQLiteStatement treeHeight;
+		final SQLiteStatement clearTree;
+		final SQLiteStatement lastSequence;
+		
+		Statements(SQLiteDatabase db) {
+			countAccounts = db.compileStatement(
+				"SELECT COUNT(*) FROM " + ACC_TABLE + ";");
+			insertAccount = db.compileStatement(
+				"INSERT INTO " + ACC_TABLE 
+					+ " (uid, username, password, description,"
+					+ " modification_time, change_seq)"
+					+ " VALUES (?, ?, ?, ?, ?, ?);");
+			// The values are computed before the row is replaced, so it 
+			// keeps its uid.
+			replaceAccount = db.compileStatement(
+				"INSERT OR REPLACE INTO " + ACC_TABLE 
+					+ " (_id, uid, username, password, description, "
+					+ "modification_time, change_seq) "
+					+ "VALUES (?1, (SELECT uid FROM " + ACC_TABLE 
+					+ " WHERE _id = ?1), ?2, ?3, ?4, ?5, ?6);");
+			reencryptAccount = db.compileStatement(
+				"UPDATE " + ACC_TABLE 
+					+ " SET password = ?, description = ?, change_seq = ?"
+					+ " WHERE _id = ?;");
+			insertValue = db.compileStatement(
+				"INSERT INTO " + APP_TABLE + " (key, value) VALUES (?, ?);");
+			replaceValue = db.compileStatement(
+				"INSERT OR REPLACE INTO " + APP_TABLE 
+					+ " (key, value) VALUES (?, ?);");
+			deleteValue = db.compileStatement(
+				"DELETE FROM " + APP_TABLE + " WHERE key = ?;");
+			replaceNode = db.compileStatement(
+				"INSERT OR REPLACE INTO " + TREE_TABLE 
+					+ " (level, idx, hash) VALUES (?, ?, ?);");
+			treeHeight = db.compileStatement(
+				"SELECT IFNULL(MAX(level), -1) FROM " + TREE_TABLE + ";");
+			clearTree = db.compileStatement(
+				"DELETE FROM " + TREE_TABLE + ";");
+			// Rows that predate sequences take their id as sequence.
+			lastSequence = db.compileStatement(
+				"SELECT MAX(IFNULL(MAX(change_seq), 0), IFNULL(MAX(_id), 0))"
+					+ " FROM " + ACC_TABLE + ";");
+		}
+		
+		void close() {
+			countAccounts.close();
+			insertAccount.close();
+			replaceAccount.close();
+			reencryptAccount.close();
+			insertValue.close();
+			replaceValue.close();
+			deleteValue.close();
+			replaceNode.close();
+			treeHeight.close();
+			clearTree.close();
+			lastSequence.close();
+		}
+	}
+	
+	private synchronized Statements statements() {
+		checkState();
+		if (statements == null) {
+			statements = new Statements(db);
+		}
+		return statements;
+	}
+	
+	private synchronized void closeStatements() {
+		if (statements != null) {
+			statements.close();
+			statements = null;
+		}
+	}
+	
+	/**
+	 * Gives the next change sequence. Rows are only written through the 
+	 * writer connection, whose transactions are serialized, so sequences 
+	 * are committed in increasing order.
+	 */
+	private synchronized long nextSequence() {
+		if (lastSequence < 0) {
+			SQLiteStatement s = statements().lastSequence;
+			synchronized (s) {
+				lastSequence = s.simpleQueryForLong();
+			}
+		}
+		return ++lastSequence;
+	}
+	
+	private static String blobLiteral(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(3 + 2 * bytes.length).append("X'");
+		for (byte b: bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16))
+				.append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.append('\'').toString();
+	}
+	
+	private static void bind(SQLiteStatement s, int index, String value) {
+		if (value == null) {
+			s.bindNull(index);
+		} else {
+			s.bindString(index, value);
+		}
+	}
+	
+	/**
+	 * Switches the database to write-ahead logging and opens the read-only
+	 * connections. Readers then see the last committed state while the
+	 * writer is in a transaction, instead of waiting for it. SQLite older 
+	 * than 3.7.0 keeps its rollback journal, where a reader would block the
+	 * commits of the writer, so every query goes through the writer then.
+	 */
+	private synchronized void openReaders() {
+		Cursor c = db.rawQuery("PRAGMA journal_mode = WAL;", null);
+		boolean wal = c.moveToFirst() && "wal".equalsIgnoreCase(c.getString(0));
+		c.close();
+		if (!wal) {
+			Log.i(TAG, "No write-ahead log, reading through the writer");
+			return;
+		}
+		
+		db.execSQL("PRAGMA synchronous = NORMAL;");
+		for (int i = 0; i < READERS; ++i) {
+			SQLiteDatabase r = SQLiteDatabase.openDatabase(dbPath.getPath(), 
+					null, SQLiteDatabase.OPEN_READONLY);
+			readers.add(r);
+			idleReaders.offer(r);
+		}
+	}
+	
+	private synchronized void closeReaders() {
+		idleReaders.clear();
+		for (SQLiteDatabase r: readers) {
+			r.close();
+		}
+		readers.clear();
+	}
+	
+	/**
+	 * Takes a connection for a query. The writer is returned to a thread in
+	 * a transaction, which must see its own changes, and when every reader
+	 * is taken.
+	 */
+	private SQLiteDatabase reader() {
+		checkState();
+		if (db.inTransaction()) {
+			return db;
+		}
+		SQLiteDatabase r = idleReaders.poll();
+		return r != null ? r : db;
+	}
+	
+	/**
+	 * Returns a connection taken by {@link #reader()} once its cursor is 
+	 * closed. Readers closed in the meantime are dropped.
+	 */
+	private void release(SQLiteDatabase r) {
+		if (r != db && r.isOpen()) {
+			idleReaders.offer(r);
+		}
+	}
+	
+	private synchronized void reopen() throws SQLiteException {
+		if (db != null && db.isOpen()) {
+			// Reopened by another thread.
+			return;
+		}
+		// Statements and readers belong to the handle that opened them.
+		closeStatements();
+		closeReaders();
 		db = SQLiteDatabase.openDatabase(dbPath.getPath(), null, 
 				SQLiteDatabase.OPEN_READWRITE);
+		openReaders();
 	}
 	
-	void checkState() {
+	public void checkState() {
 		if (db == null || !db.isOpen()) {
 			try {
 				reopen(); //TODO: check read/write mode
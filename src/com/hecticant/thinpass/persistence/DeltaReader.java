@@ -0,0 +1,142 @@
+/*
+ * Copyright 2010 Pedro Fonseca
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hecticant.thinpass.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Reads a delta written by {@link DeltaWriter}, one account at a time.
+ * 
+ * @author Pedro Fonseca
+ * @see StoreController#importChanges(InputStream)
+ */
+final class DeltaReader {
+	/** Larger fields are taken for a corrupt delta. */
+	private static final int MAX_FIELD = 1024 * 1024;
+	
+	private final DataInputStream in;
+	private final long since;
+	private long lastSequence = -1;
+	private int count;
+	
+	/**
+	 * Reads the header of the delta.
+	 * 
+	 * @param keyId the id of the key of the receiving store.
+	 * @throws IOException if the stream does not hold a delta, or holds one
+	 * 			written with another key.
+	 * @see DeltaWriter#keyId(byte[])
+	 */
+	DeltaReader(InputStream in, byte[] keyId) throws IOException {
+		this.in = new DataInputStream(new BufferedInputStream(in));
+		if (this.in.readInt() != DeltaWriter.MAGIC) {
+			throw new IOException("Not a delta");
+		}
+		// Deltas of the first format carry no key id, so cannot be checked.
+		int format = this.in.readInt();
+		if (format != DeltaWriter.FORMAT) {
+			throw new IOException("Unknown delta format " + format);
+		}
+		byte[] deltaKeyId = new byte[DeltaWriter.KEY_ID_LENGTH];
+		this.in.readFully(deltaKeyId);
+		if (!Arrays.equals(deltaKeyId, keyId)) {
+			throw new IOException("The delta was written with another key");
+		}
+		this.since = this.in.readLong();
+	}
+	
+	/**
+	 * @return the sequence the delta follows.
+	 */
+	long since() {
+		return since;
+	}
+	
+	/**
+	 * @return the next account, with its uid and the change sequence it has
+	 * 			in the store it comes from but no id, or <code>null</code> at 
+	 * 			the end.
+	 * @throws java.io.EOFException if the delta is truncated.
+	 */
+	Account next() throws IOException {
+		if (lastSequence >= 0) {
+			return null;
+		}
+		byte tag = in.readByte();
+		if (tag == DeltaWriter.END) {
+			lastSequence = in.readLong();
+			if (in.readInt() != count) {
+				throw new IOException("Incomplete delta");
+			}
+			return null;
+		}
+		if (tag != DeltaWriter.ACCOUNT) {
+			throw new IOException("Unknown record " + tag);
+		}
+		long sequence = in.readLong();
+		UUID uid = new UUID(in.readLong(), in.readLong());
+		long date = in.readLong();
+		byte[] user = readBytes();
+		byte[] password = readBytes();
+		byte[] description = readBytes();
+		if (password == null || description == null) {
+			throw new IOException("Account " + uid + " has no password");
+		}
+		++count;
+		return new Account(0, uid, user != null ? decode(user) : null, 
+				password, description, date, sequence);
+	}
+	
+	/**
+	 * @return the sequence to ask the next delta from, once 
+	 * 			{@link #next()} returned <code>null</code>.
+	 */
+	long lastSequence() {
+		if (lastSequence < 0) {
+			throw new IllegalStateException("Delta not read to the end");
+		}
+		return lastSequence;
+	}
+	
+	private byte[] readBytes() throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		if (length > MAX_FIELD) {
+			throw new IOException("Field too long: " + length);
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return bytes;
+	}
+	
+	private static String decode(byte[] bytes) {
+		try {
+			return new String(bytes, "UTF-8");
+		}
+		catch (UnsupportedEncodingException e) {
+			return new String(bytes);
+		}
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2010 Pedro Fonseca
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hecticant.thinpass.persistence;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+import com.hecticant.thinpass.security.CryptUtil;
+
+/**
+ * Writes accounts in the delta format, for another copy of the store to 
+ * apply. The encrypted fields are copied as stored, so writing a delta 
+ * needs no key and the receiver must share the key of the store.
+ * <p>
+ * A delta starts with a magic number, the format version, the id of the 
+ * key of the store and the sequence it follows. Then comes one record per account: a tag, its change 
+ * sequence, its uid, its modification date and its three fields, each 
+ * prefixed by its length, or -1 for a missing username. The id is not 
+ * written, since the receiver gives its own. It ends with 
+ * another tag, the last sequence written and the number of accounts. 
+ * Numbers are big-endian and the username is UTF-8.
+ * 
+ * @author Pedro Fonseca
+ * @see StoreController#exportChanges(long, OutputStream)
+ */
+final class DeltaWriter {
+	static final int MAGIC = 0x54504454;
+	static final int FORMAT = 2;
+	
+	static final int KEY_ID_LENGTH = 32;
+	private static final byte[] KEY_ID = { 'k', 'i', 'd' };
+	
+	static final byte ACCOUNT = 1;
+	static final byte END = 0;
+	
+	private final DataOutputStream out;
+	private int count;
+	
+	/**
+	 * Writes the header of a delta of the changes after 
+	 * <code>since</code>.
+	 * 
+	 * @param keyId the id of the key of the store.
+	 * @see #keyId(byte[])
+	 */
+	DeltaWriter(OutputStream out, byte[] keyId, long since) 
+		throws IOException 
+	{
+		this.out = new DataOutputStream(new BufferedOutputStream(out));
+		this.out.writeInt(MAGIC);
+		this.out.writeInt(FORMAT);
+		this.out.write(keyId, 0, KEY_ID_LENGTH);
+		this.out.writeLong(since);
+	}
+	
+	/**
+	 * Returns the id of a store key, which the copies that share the key 
+	 * have in common. It is made from the stored challenge of the key, 
+	 * which is public, so it tells nothing more about the key.
+	 * 
+	 * @param challenge the challenge of the key.
+	 * @return {@link #KEY_ID_LENGTH} bytes.
+	 */
+	static byte[] keyId(byte[] challenge) {
+		return CryptUtil.hash(challenge, KEY_ID);
+	}
+	
+	void write(Account a) throws IOException {
+		out.writeByte(ACCOUNT);
+		out.writeLong(a.getChangeSequence());
+		out.writeLong(a.getUid().getMostSignificantBits());
+		out.writeLong(a.getUid().getLeastSignificantBits());
+		out.writeLong(a.getModificationTime());
+		writeBytes(a.getUsername() != null ? encode(a.getUsername()) : null);
+		writeBytes(a.getPassword());
+		writeBytes(a.getDescription());
+		++count;
+	}
+	
+	/**
+	 * Ends the delta and flushes it, without closing the stream.
+	 * 
+	 * @param lastSequence the sequence the receiver has once the delta is 
+	 * 			applied.
+	 */
+	void finish(long lastSequence) throws IOException {
+		out.writeByte(END);
+		out.writeLong(lastSequence);
+		out.writeInt(count);
+		out.flush();
+	}
+	
+	private void writeBytes(byte[] bytes) throws IOException {
+		if (bytes == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+	
+	private static byte[] encode(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		}
+		catch (UnsupportedEncodingException e) {
+			return s.getBytes();
+		}
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2010 Pedro Fonseca
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hecticant.thinpass.persistence;
+
+import android.util.Log;
+
+/**
+ * A hybrid logical clock for the modification dates of the accounts. It 
+ * reads the system clock, but never goes back, never returns the same time
+ * twice, and is moved forward by the dates of accounts merged from other 
+ * copies of the store. An account changed here after a merge is then 
+ * dated after the versions it replaced, even if the clock of the other 
+ * device is ahead; the logical part of the time spills into the 
+ * milliseconds.
+ * 
+ * @author Pedro Fonseca
+ * @see MergeEngine
+ */
+final class HybridClock {
+	private static final String TAG = "HybridClock";
+	
+	/** How far ahead of the system clock a merged date may move this one. */
+	static final long MAX_DRIFT = 60 * 60 * 1000;
+	
+	private static long last;
+	
+	private HybridClock() {}
+	
+	/**
+	 * @return a time greater than any returned or observed before.
+	 */
+	static synchronized long now() {
+		last = Math.max(System.currentTimeMillis(), last + 1);
+		return last;
+	}
+	
+	/**
+	 * Moves the clock past <code>time</code>, a date read from another copy
+	 * of the store, unless it is too far in the future.
+	 */
+	static synchronized void observe(long time) {
+		long limit = System.currentTimeMillis() + MAX_DRIFT;
+		if (time > limit) {
+			Log.w(TAG, "Date ahead of the clock by " 
+					+ (time - limit + MAX_DRIFT) + " ms");
+			time = limit;
+		}
+		last = Math.max(last, time);
+	}
+	
+	/**
+	 * @return the last time returned or observed.
+	 */
+	static synchronized long last() {
+		return last;
+	}
+}
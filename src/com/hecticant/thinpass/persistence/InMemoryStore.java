@@ -0,0 +1,1244 @@
+/*
+ * Copyright 2010 Pedro Fonseca
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hecticant.thinpass.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.hecticant.thinpass.security.CryptContext;
+import com.hecticant.thinpass.security.CryptUtil;
+
+/**
+ * A <code>Store</code> that keeps everything in memory, with the accounts
+ * in a {@link LongMap} by id and a sorted array of their ids for paging.
+ * The whole store is saved as one encrypted snapshot every
+ * {@link #FLUSH_INTERVAL} milliseconds if it changed, and when it is
+ * closed; it is loaded again with a single read of the file. Changes made
+ * since the last snapshot are lost if the process dies.
+ * <p>
+ * The values of the application data are saved in the clear, as the other
+ * backends save them, since they are needed to unlock. The accounts and the
+ * integrity tree are sealed with a random account key, which is saved
+ * wrapped with the store key. Until the store key is set the accounts are
+ * not loaded: reads find none and writes to them are refused. Locking saves
+ * the store and drops them from memory again.
+ * <p>
+ * A transaction holds the write lock until it ends, and is rolled back
+ * from an undo log. Other threads wait for it to read, which only takes as
+ * long as the changes to memory.
+ * <p>
+ * The store needs no Android classes when it is created from a file and a
+ * key, for instance in tests and benchmarks.
+ *
+ * @author Pedro Fonseca
+ */
+public class InMemoryStore implements StoreBackend {
+	private static final String TAG = "InMemoryStore";
+	private static final String FILE_NAME = "PassApp.snapshot";
+	private static final String KEY_SUFFIX = ".key";
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private static final int MAGIC = 0x54504d53;
+	private static final int FORMAT = 3;
+	// Snapshots sealed as a whole with a key kept next to them, with and
+	// without change sequences.
+	private static final int FORMAT_2 = 2;
+	private static final int FORMAT_1 = 1;
+
+	/** The time between two snapshots, in milliseconds. */
+	static final long FLUSH_INTERVAL = 30 * 1000;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// The undo log of a transaction holds the previous state of each entry
+	// it changed.
+	private static final int UNDO_ACCOUNT = 0;
+	private static final int UNDO_VALUE = 1;
+	private static final int UNDO_NODE = 2;
+	private static final int UNDO_TREE = 3;
+	private static final int UNDO_KEY = 4;
+
+	private static final class Undo {
+		final int kind;
+		final long id;
+		final String key;
+		final Object before;
+		final int height;
+
+		Undo(int kind, long id, String key, Object before, int height) {
+			this.kind = kind;
+			this.id = id;
+			this.key = key;
+			this.before = before;
+			this.height = height;
+		}
+	}
+
+	private final File file;
+	// The key of snapshots in the previous formats, if any.
+	private final File legacyKeyFile;
+
+	// The account key, wrapped with the store key, and its context while
+	// the store is unlocked.
+	private byte[] wrappedKey;
+	private byte[] accountKey;
+	private CryptContext context;
+	// The sealed accounts as last read or saved, which are saved again as
+	// they are while the accounts are not loaded.
+	private byte[] sealed;
+	private boolean loaded = true;
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private LongMap<Account> accounts = new LongMap<Account>();
+	private long[] ids = new long[16];
+	private int idCount;
+	private Map<String, byte[]> values = new HashMap<String, byte[]>();
+	private LongMap<byte[]> nodes = new LongMap<byte[]>();
+	private int height = -1;
+	private long lastId;
+	// The ids of the accounts by change sequence.
+	private SortedMap<Long, Long> sequences = new TreeMap<Long, Long>();
+	private long lastSequence;
+	// The ids of the accounts by uid, which never changes for an id.
+	private Map<UUID, Long> uids = new HashMap<UUID, Long>();
+
+	// The transaction of the thread holding the write lock.
+	private List<Undo> undo;
+	private int depth;
+	private boolean successful;
+	private boolean failed;
+
+	// Counts the committed transactions that changed the store.
+	private long changes;
+	private long flushed;
+
+	private Timer timer;
+	private volatile boolean open;
+
+	/**
+	 * Opens the snapshot in the private files of the application. The
+	 * accounts are loaded when the store key is set.
+	 *
+	 * @see #setStoreKey(byte[])
+	 */
+	public InMemoryStore(Object context) {
+		if (!(context instanceof Context))
+			throw new IllegalArgumentException();
+
+		File dir = ((Context) context).getFilesDir();
+		this.file = new File(dir, FILE_NAME);
+		this.legacyKeyFile = new File(dir, FILE_NAME + KEY_SUFFIX);
+		open();
+	}
+
+	/**
+	 * Opens the snapshot in <code>file</code>, or starts an empty store if
+	 * the file does not exist, and unlocks it with <code>key</code>.
+	 *
+	 * @param key the store key.
+	 */
+	public InMemoryStore(File file, byte[] key) {
+		this.file = file;
+		this.legacyKeyFile = null;
+		open();
+		setStoreKey(key);
+	}
+
+	public long countAccounts() {
+		lock.readLock().lock();
+		try {
+			return idCount;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public List<Account> accounts() {
+		return accountsAfter(0, Long.MAX_VALUE);
+	}
+
+	public List<Account> accountsInRange(long offset, long limit) {
+		lock.readLock().lock();
+		try {
+			int from = (int) Math.min(offset, idCount);
+			return accountsFrom(from, limit);
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public List<Account> accountsAfter(long lastId, long limit) {
+		lock.readLock().lock();
+		try {
+			return accountsFrom(firstAfter(lastId), limit);
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Reads the accounts a page at a time, so the iterator holds no lock
+	 * between calls.
+	 */
+	public AccountIterator iterateAccounts(final long lastId) {
+		return new AccountIterator() {
+			private static final int PAGE = 256;
+			private List<Account> page = new ArrayList<Account>();
+			private int index;
+			private long last = lastId;
+			private boolean done;
+
+			public boolean hasNext() {
+				if (index == page.size() && !done) {
+					page = accountsAfter(last, PAGE);
+					index = 0;
+					done = page.size() < PAGE;
+					if (!page.isEmpty()) {
+						last = page.get(page.size() - 1).getId();
+					}
+				}
+				return index < page.size();
+			}
+
+			public Account next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return page.get(index++);
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+			public void close() {
+				done = true;
+				index = page.size();
+			}
+		};
+	}
+
+	public List<AccountSummary> summariesAfter(long lastId, long limit) {
+		lock.readLock().lock();
+		try {
+			int from = firstAfter(lastId);
+			int to = (int) Math.min(idCount, from + Math.min(limit, idCount));
+			List<AccountSummary> list = new ArrayList<AccountSummary>(to - from);
+			for (int i = from; i < to; ++i) {
+				Account a = accounts.get(ids[i]);
+				list.add(new AccountSummary(a.getId(), a.getUsername(),
+						a.getModificationTime()));
+			}
+			return list;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public List<Account> changesAfter(long sequence, long limit) {
+		lock.readLock().lock();
+		try {
+			List<Account> list = new ArrayList<Account>();
+			for (Long id: sequences.tailMap(sequence + 1).values()) {
+				if (list.size() >= limit) {
+					break;
+				}
+				list.add(copy(accounts.get(id)));
+			}
+			return list;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public List<Account> accountsWithIds(Collection<Long> ids) {
+		long[] sorted = new long[ids.size()];
+		int n = 0;
+		for (Long id: ids) {
+			sorted[n++] = id;
+		}
+		Arrays.sort(sorted);
+
+		lock.readLock().lock();
+		try {
+			List<Account> list = new ArrayList<Account>(n);
+			for (int i = 0; i < n; ++i) {
+				Account a = accounts.get(sorted[i]);
+				if (a != null && (i == 0 || sorted[i] != sorted[i - 1])) {
+					list.add(copy(a));
+				}
+			}
+			return list;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public List<Account> accountsWithUids(Collection<UUID> uids) {
+		List<Long> found = new ArrayList<Long>(uids.size());
+		lock.readLock().lock();
+		try {
+			for (UUID uid: uids) {
+				Long id = this.uids.get(uid);
+				if (id != null) {
+					found.add(id);
+				}
+			}
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+		// Another transaction cannot remove an account, so the ids stay
+		// valid.
+		return accountsWithIds(found);
+	}
+
+	public Account account(long id) {
+		lock.readLock().lock();
+		try {
+			Account a = accounts.get(id);
+			return a != null ? copy(a) : null;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public Account addAccount(String username, byte[] password,
+			byte[] description)
+	{
+		beginTransaction();
+		try {
+			Account a = putAccount(new Account(lastId + 1, Account.newUid(),
+					username, password, description, HybridClock.now(), 0));
+			setTransactionSuccessful();
+			return a;
+		}
+		finally {
+			endTransaction();
+		}
+	}
+
+	public List<Account> addAccounts(Collection<Account> accounts) {
+		long date = HybridClock.now();
+		List<Account> added = new ArrayList<Account>(accounts.size());
+		beginTransaction();
+		try {
+			for (Account a: accounts) {
+				added.add(putAccount(new Account(lastId + 1, Account.newUid(),
+						a.getUsername(), a.getPassword(), a.getDescription(),
+						date, 0)));
+			}
+			setTransactionSuccessful();
+		}
+		finally {
+			endTransaction();
+		}
+		return added;
+	}
+
+	public void updateAccount(Account acc) {
+		beginTransaction();
+		try {
+			putAccount(new Account(acc.getId(), acc.getUsername(),
+					acc.getPassword(), acc.getDescription(),
+					HybridClock.now()));
+			setTransactionSuccessful();
+		}
+		finally {
+			endTransaction();
+		}
+	}
+
+	public void reencryptAccount(Account acc) {
+		beginTransaction();
+		try {
+			Account current = accounts.get(acc.getId());
+			if (current != null) {
+				putAccount(new Account(current, acc.getPassword(),
+						acc.getDescription()));
+			}
+			setTransactionSuccessful();
+		}
+		finally {
+			endTransaction();
+		}
+	}
+
+	public Account mergeAccount(Account acc) {
+		beginTransaction();
+		try {
+			Account a = putAccount(acc.getId() != 0 ? acc 
+					: new Account(lastId + 1, acc.getUid(), acc.getUsername(),
+							acc.getPassword(), acc.getDescription(), 
+							acc.getModificationTime(), 0));
+			setTransactionSuccessful();
+			return a;
+		}
+		finally {
+			endTransaction();
+		}
+	}
+
+	public byte[] valueForKey(String key) {
+		lock.readLock().lock();
+		try {
+			byte[] value = values.get(key);
+			return value != null ? value.clone() : null;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public Map<String, byte[]> values() {
+		lock.readLock().lock();
+		try {
+			Map<String, byte[]> copy = new HashMap<String, byte[]>();
+			for (Map.Entry<String, byte[]> e: values.entrySet()) {
+				copy.put(e.getKey(), e.getValue().clone());
+			}
+			return copy;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public void setValueForKey(String key, byte[] value, boolean replace) {
+		if (key == null || value == null) {
+			Log.d(TAG, "Tried to insert null key or value");
+			return;
+		}
+		beginTransaction();
+		try {
+			if (replace || !values.containsKey(key)) {
+				byte[] before = values.put(key, value.clone());
+				undo.add(new Undo(UNDO_VALUE, 0, key, before, 0));
+			}
+			setTransactionSuccessful();
+		}
+		finally {
+			endTransaction();
+		}
+	}
+
+	public void removeValueForKey(String key) {
+		beginTransaction();
+		try {
+			byte[] before = values.remove(key);
+			if (before != null) {
+				undo.add(new Undo(UNDO_VALUE, 0, key, before, 0));
+			}
+			setTransactionSuccessful();
+		}
+		finally {
+			endTransaction();
+		}
+	}
+
+	public byte[] treeNode(int level, long index) {
+		lock.readLock().lock();
+		try {
+			return nodes.get(MerkleTree.nodeKey(level, index));
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public void setTreeNode(int level, long index, byte[] hash) {
+		beginTransaction();
+		try {
+			checkLoaded();
+			long key = MerkleTree.nodeKey(level, index);
+			byte[] before = nodes.put(key, hash.clone());
+			undo.add(new Undo(UNDO_NODE, key, null, before, height));
+			height = Math.max(height, level);
+			setTransactionSuccessful();
+		}
+		finally {
+			endTransaction();
+		}
+	}
+
+	public int treeHeight() {
+		lock.readLock().lock();
+		try {
+			return height;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public void clearTree() {
+		beginTransaction();
+		try {
+			checkLoaded();
+			undo.add(new Undo(UNDO_TREE, 0, null, nodes, height));
+			nodes = new LongMap<byte[]>();
+			height = -1;
+			setTransactionSuccessful();
+		}
+		finally {
+			endTransaction();
+		}
+	}
+
+	/**
+	 * Sets the store key, or locks the store if <code>key</code> is
+	 * <code>null</code>. The first key unseals the accounts. Another key
+	 * wraps the account key again, in a transaction, so it is saved in the
+	 * same snapshot as the changes of an enclosing transaction.
+	 *
+	 * @param key the store key, which is not kept.
+	 * @throws IllegalStateException if the account key cannot be unwrapped
+	 * 			with <code>key</code>, or the accounts cannot be unsealed.
+	 */
+	public void setStoreKey(byte[] key) {
+		if (key == null) {
+			lockAccounts();
+			return;
+		}
+		CryptContext wrapper = new CryptContext(key);
+		beginTransaction();
+		try {
+			byte[] unwrapped = wrappedKey != null 
+				? wrapper.decrypt(wrappedKey) : null;
+			if (context == null) {
+				if (wrappedKey != null && unwrapped == null) {
+					throw new IllegalStateException("Wrong store key");
+				}
+				unlockAccounts(unwrapped != null ? unwrapped 
+						: CryptUtil.genRandomKey().getEncoded());
+			} else if (unwrapped != null) {
+				Arrays.fill(unwrapped, (byte) 0);
+			}
+			if (unwrapped == null) {
+				byte[] wrapped = wrapper.encrypt(accountKey);
+				if (wrapped == null) {
+					throw new IllegalStateException("Cannot wrap the key");
+				}
+				undo.add(new Undo(UNDO_KEY, 0, null, wrappedKey, 0));
+				wrappedKey = wrapped;
+			}
+			setTransactionSuccessful();
+		}
+		finally {
+			endTransaction();
+			wrapper.destroy();
+		}
+	}
+
+	public void beginTransaction() {
+		checkState();
+		lock.writeLock().lock();
+		if (depth++ == 0) {
+			undo = new ArrayList<Undo>();
+			failed = false;
+		}
+		successful = false;
+	}
+
+	public void setTransactionSuccessful() {
+		if (!lock.isWriteLockedByCurrentThread() || depth == 0) {
+			throw new IllegalStateException("No transaction");
+		}
+		successful = true;
+	}
+
+	public void endTransaction() {
+		if (!lock.isWriteLockedByCurrentThread() || depth == 0) {
+			throw new IllegalStateException("No transaction");
+		}
+		try {
+			if (!successful) {
+				failed = true;
+			}
+			successful = false;
+			if (--depth > 0) {
+				return;
+			}
+			if (failed) {
+				rollback();
+			} else if (!undo.isEmpty()) {
+				++changes;
+			}
+			undo = null;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public boolean isOpen() {
+		return open;
+	}
+
+	public void checkState() {
+		if (!open) {
+			synchronized (this) {
+				if (!open) {
+					open();
+				}
+			}
+		}
+	}
+
+	public void obliterate() {
+		close();
+		lock.writeLock().lock();
+		try {
+			accounts = new LongMap<Account>();
+			idCount = 0;
+			values = new HashMap<String, byte[]>();
+			nodes = new LongMap<byte[]>();
+			height = -1;
+			lastId = 0;
+			sequences = new TreeMap<Long, Long>();
+			lastSequence = 0;
+			uids = new HashMap<UUID, Long>();
+			changes = flushed = 0;
+			dropKey();
+			wrappedKey = null;
+			sealed = null;
+			loaded = true;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+		file.delete();
+		if (legacyKeyFile != null) {
+			legacyKeyFile.delete();
+		}
+	}
+
+	/**
+	 * Saves a last snapshot and stops the periodic ones. The accounts stay
+	 * in memory, so a closed store reopens without reading the file.
+	 */
+	public synchronized void close() {
+		if (!open) {
+			return;
+		}
+		open = false;
+		timer.cancel();
+		timer = null;
+		flush();
+	}
+
+	/**
+	 * Saves a snapshot if the store changed since the last one. The
+	 * snapshot is written to a new file that is then renamed over the old
+	 * one, so a snapshot is never left half written.
+	 * <p>
+	 * Accounts loaded from a snapshot in a previous format cannot be sealed
+	 * until the store key is set, so they are only saved then.
+	 */
+	synchronized void flush() {
+		ByteBuffer record;
+		long saved;
+		lock.readLock().lock();
+		try {
+			if (changes == flushed) {
+				return;
+			}
+			if (loaded && context == null && (idCount > 0 || height >= 0)) {
+				return;
+			}
+			saved = changes;
+			if (loaded && context != null) {
+				byte[] s = seal();
+				if (s == null) {
+					Log.e(TAG, "Cannot encrypt the snapshot");
+					return;
+				}
+				sealed = s;
+			} else if (loaded) {
+				sealed = null;
+			}
+			record = serialize();
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+
+		File temp = new File(file.getPath() + TEMP_SUFFIX);
+		try {
+			RandomAccessFile out = new RandomAccessFile(temp, "rw");
+			try {
+				out.setLength(0);
+				out.write(record.array());
+				out.getFD().sync();
+			}
+			finally {
+				out.close();
+			}
+			if (!temp.renameTo(file)) {
+				throw new IOException("Cannot replace " + file);
+			}
+			flushed = saved;
+			if (legacyKeyFile != null) {
+				legacyKeyFile.delete();
+			}
+			Log.d(TAG, "Snapshot saved, " + record.capacity() + " bytes");
+		}
+		catch (IOException e) {
+			Log.e(TAG, "Cannot save the snapshot: " + e.getLocalizedMessage());
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Loads the snapshot, the first time, and starts the periodic
+	 * snapshots.
+	 */
+	private synchronized void open() {
+		if (accounts.size() == 0 && values.isEmpty() && file.exists()) {
+			load();
+		}
+		timer = new Timer(TAG, true);
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, FLUSH_INTERVAL, FLUSH_INTERVAL);
+		open = true;
+	}
+
+	private void load() {
+		byte[] bytes;
+		try {
+			RandomAccessFile in = new RandomAccessFile(file, "r");
+			try {
+				bytes = new byte[(int) in.length()];
+				in.readFully(bytes);
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (IOException e) {
+			Log.e(TAG, e.getLocalizedMessage());
+			throw new IllegalStateException("Cannot access data store", e);
+		}
+
+		lock.writeLock().lock();
+		try {
+			ByteBuffer b = ByteBuffer.wrap(bytes);
+			if (bytes.length < 4 || b.getInt() != MAGIC) {
+				loadLegacy(b);
+			} else {
+				if (b.getInt() != FORMAT) {
+					throw new IllegalStateException("Cannot read the snapshot");
+				}
+				getValues(b);
+				wrappedKey = getBytes(b);
+				sealed = getBytes(b);
+				loaded = sealed == null;
+			}
+		}
+		catch (BufferUnderflowException e) {
+			throw new IllegalStateException("Cannot read the snapshot", e);
+		}
+		finally {
+			Arrays.fill(bytes, (byte) 0);
+			lock.writeLock().unlock();
+		}
+		Log.d(TAG, "Snapshot loaded, " + values.size() + " values");
+	}
+
+	/**
+	 * Loads a snapshot in a previous format, sealed as a whole with the key
+	 * kept next to it. Its accounts are sealed with a new account key when
+	 * the store key is set, and the old key is deleted once they are saved.
+	 * Must hold the write lock.
+	 */
+	private void loadLegacy(ByteBuffer encrypted) {
+		byte[] key;
+		try {
+			key = legacyKeyFile != null && legacyKeyFile.exists()
+				? readKey(legacyKeyFile) : null;
+		}
+		catch (IOException e) {
+			Log.e(TAG, e.getLocalizedMessage());
+			throw new IllegalStateException("Cannot access data store", e);
+		}
+		if (key == null) {
+			throw new IllegalStateException("Cannot read the snapshot");
+		}
+		CryptContext legacy = new CryptContext(key);
+		Arrays.fill(key, (byte) 0);
+		try {
+			encrypted.rewind();
+			ByteBuffer b = legacy.decrypt(encrypted);
+			int format = b != null && b.getInt() == MAGIC ? b.getInt() : -1;
+			if (format != FORMAT_2 && format != FORMAT_1) {
+				throw new IllegalStateException("Cannot read the snapshot");
+			}
+			lastId = b.getLong();
+			getAccounts(b, format == FORMAT_2);
+			getValues(b);
+			getNodes(b);
+			indexUids();
+		}
+		finally {
+			legacy.destroy();
+		}
+		Log.d(TAG, "Snapshot loaded, " + idCount + " accounts");
+	}
+
+	/**
+	 * Unlocks the store with <code>key</code>, unsealing the accounts if
+	 * they are not loaded. Must be in a transaction.
+	 *
+	 * @param key the account key, which is kept.
+	 */
+	private void unlockAccounts(byte[] key) {
+		CryptContext c = new CryptContext(key);
+		if (!loaded && sealed != null) {
+			// The record is decrypted in place, and kept sealed.
+			byte[] bytes = sealed.clone();
+			ByteBuffer b = c.decrypt(ByteBuffer.wrap(bytes));
+			try {
+				if (b == null) {
+					throw new IllegalStateException("Cannot unseal the store");
+				}
+				lastId = b.getLong();
+				getAccounts(b, true);
+				getNodes(b);
+				getUids(b);
+			}
+			catch (RuntimeException e) {
+				c.destroy();
+				Arrays.fill(key, (byte) 0);
+				if (e instanceof BufferUnderflowException) {
+					throw new IllegalStateException("Cannot read the snapshot",
+							e);
+				}
+				throw e;
+			}
+			finally {
+				Arrays.fill(bytes, (byte) 0);
+			}
+			Log.d(TAG, "Accounts unsealed, " + idCount + " accounts");
+		}
+		loaded = true;
+		accountKey = key;
+		context = c;
+	}
+
+	/**
+	 * Saves the store and drops the account key. The accounts are dropped
+	 * from memory too, unless they could not be saved.
+	 */
+	private synchronized void lockAccounts() {
+		flush();
+		lock.writeLock().lock();
+		try {
+			if (context == null) {
+				return;
+			}
+			if (changes == flushed) {
+				accounts = new LongMap<Account>();
+				ids = new long[16];
+				idCount = 0;
+				nodes = new LongMap<byte[]>();
+				height = -1;
+				lastId = 0;
+				sequences = new TreeMap<Long, Long>();
+				lastSequence = 0;
+				uids = new HashMap<UUID, Long>();
+				loaded = false;
+			} else {
+				Log.w(TAG, "Accounts kept in memory until they are saved");
+			}
+			dropKey();
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void dropKey() {
+		if (context != null) {
+			context.destroy();
+			context = null;
+			Arrays.fill(accountKey, (byte) 0);
+			accountKey = null;
+		}
+	}
+
+	/**
+	 * @throws IllegalStateException if the accounts are not loaded.
+	 */
+	private void checkLoaded() {
+		if (!loaded) {
+			throw new IllegalStateException("The store is locked");
+		}
+	}
+
+	private void getAccounts(ByteBuffer b, boolean withSequences) {
+		int n = b.getInt();
+		accounts = new LongMap<Account>(n);
+		ids = new long[Math.max(16, n)];
+		idCount = 0;
+		sequences = new TreeMap<Long, Long>();
+		lastSequence = 0;
+		for (int i = 0; i < n; ++i) {
+			long id = b.getLong();
+			long date = b.getLong();
+			// Accounts saved without a sequence take their id.
+			long sequence = withSequences ? b.getLong() : id;
+			Account a = new Account(id, getString(b), getBytes(b),
+					getBytes(b), date, sequence);
+			accounts.put(id, a);
+			ids[idCount++] = id;
+			sequences.put(sequence, id);
+			lastSequence = Math.max(lastSequence, sequence);
+		}
+	}
+
+	private void getValues(ByteBuffer b) {
+		int n = b.getInt();
+		values = new HashMap<String, byte[]>(2 * n);
+		for (int i = 0; i < n; ++i) {
+			values.put(getString(b), getBytes(b));
+		}
+	}
+
+	private void getNodes(ByteBuffer b) {
+		int n = b.getInt();
+		nodes = new LongMap<byte[]>(n);
+		height = -1;
+		for (int i = 0; i < n; ++i) {
+			long key = b.getLong();
+			nodes.put(key, getBytes(b));
+			height = Math.max(height, (int) (key >>> 56));
+		}
+	}
+
+	/**
+	 * Reads the uids that follow the integrity tree, in id order. Accounts 
+	 * sealed before uids existed keep the uid made from their id.
+	 */
+	private void getUids(ByteBuffer b) {
+		if (b.hasRemaining()) {
+			int n = b.getInt();
+			for (int i = 0; i < n; ++i) {
+				Account a = accounts.get(ids[i]);
+				accounts.put(a.getId(), new Account(a.getId(), 
+						new UUID(b.getLong(), b.getLong()), a.getUsername(),
+						a.getPassword(), a.getDescription(), 
+						a.getModificationTime(), a.getChangeSequence()));
+			}
+		}
+		indexUids();
+	}
+
+	private void indexUids() {
+		uids = new HashMap<UUID, Long>(2 * idCount);
+		for (int i = 0; i < idCount; ++i) {
+			uids.put(accounts.get(ids[i]).getUid(), ids[i]);
+		}
+	}
+
+	/**
+	 * Writes the values, the wrapped account key and the sealed accounts to
+	 * a buffer. Must hold the read lock.
+	 */
+	private ByteBuffer serialize() {
+		List<byte[]> keys = new ArrayList<byte[]>(values.size());
+		int size = 4 + 4 + 4 + 4 + 4;
+		for (Map.Entry<String, byte[]> e: values.entrySet()) {
+			byte[] k = encode(e.getKey());
+			keys.add(k);
+			size += 8 + k.length + e.getValue().length;
+		}
+		size += wrappedKey != null ? wrappedKey.length : 0;
+		size += sealed != null ? sealed.length : 0;
+
+		ByteBuffer b = ByteBuffer.allocate(size);
+		b.putInt(MAGIC).putInt(FORMAT);
+		b.putInt(values.size());
+		int k = 0;
+		for (byte[] value: values.values()) {
+			putBytes(b, keys.get(k++));
+			putBytes(b, value);
+		}
+		putBytes(b, wrappedKey);
+		putBytes(b, sealed);
+		return b;
+	}
+
+	/**
+	 * Seals the accounts, in id order, the integrity tree and the uids of 
+	 * the accounts with the account key. The uids come last, since records
+	 * sealed before them end with the tree. Must hold the read lock.
+	 *
+	 * @return the sealed record or <code>null</code> if it could not be
+	 * 			encrypted.
+	 */
+	private byte[] seal() {
+		int size = 8 + 4 + 4 + 4 + 16 * idCount;
+		for (int i = 0; i < idCount; ++i) {
+			Account a = accounts.get(ids[i]);
+			size += 24 + 12 + length(a.getUsername())
+				+ a.getPassword().length + a.getDescription().length;
+		}
+		for (int i = 0; i < nodes.capacity(); ++i) {
+			byte[] hash = nodes.valueAt(i);
+			if (hash != null) {
+				size += 12 + hash.length;
+			}
+		}
+
+		ByteBuffer record = ByteBuffer.allocate(
+				size + CryptContext.RECORD_OVERHEAD);
+		ByteBuffer b = record.duplicate();
+		b.position(CryptContext.RECORD_HEADER);
+		b.putLong(lastId);
+		b.putInt(idCount);
+		for (int i = 0; i < idCount; ++i) {
+			Account a = accounts.get(ids[i]);
+			b.putLong(a.getId()).putLong(a.getModificationTime())
+				.putLong(a.getChangeSequence());
+			putBytes(b, a.getUsername() != null
+					? encode(a.getUsername()) : null);
+			putBytes(b, a.getPassword());
+			putBytes(b, a.getDescription());
+		}
+		b.putInt(nodes.size());
+		for (int i = 0; i < nodes.capacity(); ++i) {
+			byte[] hash = nodes.valueAt(i);
+			if (hash != null) {
+				b.putLong(nodes.keyAt(i));
+				putBytes(b, hash);
+			}
+		}
+		b.putInt(idCount);
+		for (int i = 0; i < idCount; ++i) {
+			UUID uid = accounts.get(ids[i]).getUid();
+			b.putLong(uid.getMostSignificantBits())
+				.putLong(uid.getLeastSignificantBits());
+		}
+
+		ByteBuffer clear = record.duplicate();
+		clear.position(CryptContext.RECORD_HEADER);
+		clear.limit(record.capacity()
+				- (CryptContext.RECORD_OVERHEAD - CryptContext.RECORD_HEADER));
+		byte[] bytes = record.array();
+		if (context.encrypt(clear, record.duplicate()) < 0) {
+			return null;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Saves <code>a</code> with the next change sequence. Must be in a 
+	 * transaction.
+	 * 
+	 * @return the saved account.
+	 */
+	private Account putAccount(Account a) {
+		checkLoaded();
+		// An account keeps its uid.
+		Account before = accounts.get(a.getId());
+		a = new Account(a.getId(), (before != null ? before : a).getUid(),
+				a.getUsername(), a.getPassword(), a.getDescription(), 
+				a.getModificationTime(), ++lastSequence);
+		accounts.put(a.getId(), a);
+		undo.add(new Undo(UNDO_ACCOUNT, a.getId(), null, before, 0));
+		if (before == null) {
+			insertId(a.getId());
+			uids.put(a.getUid(), a.getId());
+		} else {
+			sequences.remove(before.getChangeSequence());
+		}
+		sequences.put(a.getChangeSequence(), a.getId());
+		lastId = Math.max(lastId, a.getId());
+		return a;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void rollback() {
+		for (int i = undo.size() - 1; i >= 0; --i) {
+			Undo u = undo.get(i);
+			switch (u.kind) {
+			case UNDO_ACCOUNT:
+				// Sequences given in the transaction are not reused.
+				Account after = accounts.get(u.id);
+				sequences.remove(after.getChangeSequence());
+				if (u.before != null) {
+					Account before = (Account) u.before;
+					accounts.put(u.id, before);
+					sequences.put(before.getChangeSequence(), u.id);
+				} else {
+					accounts.remove(u.id);
+					removeId(u.id);
+					uids.remove(after.getUid());
+				}
+				break;
+			case UNDO_VALUE:
+				if (u.before != null) {
+					values.put(u.key, (byte[]) u.before);
+				} else {
+					values.remove(u.key);
+				}
+				break;
+			case UNDO_NODE:
+				if (u.before != null) {
+					nodes.put(u.id, (byte[]) u.before);
+				} else {
+					nodes.remove(u.id);
+				}
+				height = u.height;
+				break;
+			case UNDO_TREE:
+				nodes = (LongMap<byte[]>) u.before;
+				height = u.height;
+				break;
+			case UNDO_KEY:
+				wrappedKey = (byte[]) u.before;
+				break;
+			}
+		}
+		lastId = idCount > 0 ? Math.max(lastId, ids[idCount - 1]) : lastId;
+	}
+
+	/**
+	 * @return the index in <code>ids</code> of the first id greater than
+	 * 			<code>lastId</code>.
+	 */
+	private int firstAfter(long lastId) {
+		int i = Arrays.binarySearch(ids, 0, idCount, lastId);
+		return i >= 0 ? i + 1 : -i - 1;
+	}
+
+	private List<Account> accountsFrom(int from, long limit) {
+		int to = (int) Math.min(idCount, from + Math.min(limit, idCount));
+		List<Account> list = new ArrayList<Account>(to - from);
+		for (int i = from; i < to; ++i) {
+			list.add(copy(accounts.get(ids[i])));
+		}
+		return list;
+	}
+
+	private void insertId(long id) {
+		if (idCount == ids.length) {
+			long[] grown = new long[2 * ids.length];
+			System.arraycopy(ids, 0, grown, 0, idCount);
+			ids = grown;
+		}
+		// New accounts take the largest id, so this is usually an append.
+		int i = firstAfter(id);
+		System.arraycopy(ids, i, ids, i + 1, idCount - i);
+		ids[i] = id;
+		++idCount;
+	}
+
+	private void removeId(long id) {
+		int i = Arrays.binarySearch(ids, 0, idCount, id);
+		if (i >= 0) {
+			System.arraycopy(ids, i + 1, ids, i, idCount - i - 1);
+			--idCount;
+		}
+	}
+
+	/**
+	 * Returns a copy that the caller may change with the setters of
+	 * <code>Account</code> without changing the store.
+	 */
+	private static Account copy(Account a) {
+		return new Account(a, a.getPassword(), a.getDescription());
+	}
+
+	private static byte[] readKey(File keyFile) throws IOException {
+		RandomAccessFile f = new RandomAccessFile(keyFile, "r");
+		try {
+			byte[] key = new byte[(int) f.length()];
+			f.readFully(key);
+			return key;
+		}
+		finally {
+			f.close();
+		}
+	}
+
+	private static int length(String s) {
+		return s != null ? encode(s).length : 0;
+	}
+
+	private static void putBytes(ByteBuffer b, byte[] bytes) {
+		if (bytes == null) {
+			b.putInt(-1);
+		} else {
+			b.putInt(bytes.length).put(bytes);
+		}
+	}
+
+	private static byte[] getBytes(ByteBuffer b) {
+		int length = b.getInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		b.get(bytes);
+		return bytes;
+	}
+
+	private static String getString(ByteBuffer b) {
+		byte[] bytes = getBytes(b);
+		return bytes != null ? UTF8.decode(ByteBuffer.wrap(bytes)).toString()
+				: null;
+	}
+
+	private static byte[] encode(String s) {
+		ByteBuffer b = UTF8.encode(s);
+		byte[] bytes = new byte[b.remaining()];
+		b.get(bytes);
+		return bytes;
+	}
+}
@@ -0,0 +1,1261 @@
+/*
+ * Copyright 2010 Pedro Fonseca
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hecticant.thinpass.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import android.content.Context;
+import android.database.SQLException;
+import android.util.Log;
+
+/**
+ * A <code>Store</code> that appends every change to a log in a
+ * memory-mapped file. The offsets of the live records are kept in memory,
+ * so reads go straight to a record without a query, and writes only ever
+ * append. Reads are not zero-copy: an <code>Account</code> holds its
+ * fields in arrays, so each field is copied out of the mapping. The copies
+ * stay valid after the record is erased or the log is compacted.
+ * <p>
+ * Each record is prefixed by its length and a CRC-32. A transaction is the
+ * run of records up to a commit record; when the log is opened it is
+ * replayed, and records after the last commit are discarded. Changing an
+ * account or a value appends a new version of its record, so the log keeps
+ * growing until it is compacted: once most of it is dead, a background
+ * thread copies the live records to a new file, which then replaces the
+ * log with an atomic rename.
+ * <p>
+ * A single transaction writes at a time. Readers are never blocked by it:
+ * they see the last committed state, except the thread of the transaction,
+ * which also sees its own changes.
+ *
+ * @author Pedro Fonseca
+ * @see DefaultStore
+ */
+public class LogStore implements StoreBackend {
+	private static final String TAG = "LogStore";
+	private static final String FILE_NAME = "PassApp.log";
+	private static final String COMPACT_SUFFIX = ".compact";
+
+	private static final int MAGIC = 0x54504c47;
+	private static final int FORMAT = 1;
+	private static final int FILE_HEADER = 8;
+
+	// A record is its length, the CRC-32 of its type and payload, its type
+	// and its payload. The length counts the type and the payload.
+	private static final int RECORD_HEADER = 8;
+
+	private static final byte ACCOUNT = 1;
+	private static final byte VALUE = 2;
+	private static final byte REMOVE_VALUE = 3;
+	private static final byte NODE = 4;
+	private static final byte CLEAR_TREE = 5;
+	private static final byte COMMIT = 6;
+
+	private static final int INITIAL_SIZE = 64 * 1024;
+
+	/** The size below which the log is never compacted. */
+	static final int COMPACT_MIN_SIZE = 256 * 1024;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * The changes of a transaction, by the offsets of their records. The
+	 * records are already in the log, after the last commit.
+	 */
+	private static final class Transaction {
+		final int start;
+		final SortedMap<Long, Integer> accounts = new TreeMap<Long, Integer>();
+		final Map<UUID, Long> uids = new HashMap<UUID, Long>();
+		// Removed values map to null.
+		final Map<String, Integer> values = new HashMap<String, Integer>();
+		final Map<Long, Integer> nodes = new HashMap<Long, Integer>();
+		boolean treeCleared;
+		int height = -1;
+		long lastId;
+		long lastSequence;
+		int depth;
+		boolean successful;
+		boolean failed;
+
+		Transaction(int start) {
+			this.start = start;
+		}
+	}
+
+	private final File file;
+	private RandomAccessFile raf;
+	private volatile FileChannel channel;
+	private volatile MappedByteBuffer map;
+
+	// Where the next record is appended.
+	private int end;
+	// The bytes taken by the records the index points to.
+	private int liveBytes;
+
+	// The committed index. It is only changed by the transaction, holding
+	// the write lock of indexLock.
+	private final ReadWriteLock indexLock = new ReentrantReadWriteLock();
+	private final SortedMap<Long, Integer> accounts =
+		new TreeMap<Long, Integer>();
+	private final Map<String, Integer> values = new HashMap<String, Integer>();
+	private final Map<Long, Integer> nodes = new HashMap<Long, Integer>();
+	private int height = -1;
+	private long lastId;
+	// The ids of the accounts by change sequence.
+	private final SortedMap<Long, Long> sequences = new TreeMap<Long, Long>();
+	private long lastSequence;
+	// The ids of the accounts by uid, which never changes for an id.
+	private final Map<UUID, Long> uids = new HashMap<UUID, Long>();
+
+	// Held by the thread of the transaction, from its first level to its
+	// end, and by the compactor.
+	private final ReentrantLock writeLock = new ReentrantLock();
+	private Transaction tx;
+
+	private volatile boolean compacting;
+
+	public LogStore(Object context) {
+		if (!(context instanceof Context))
+			throw new IllegalArgumentException();
+
+		this.file = new File(((Context) context).getFilesDir(), FILE_NAME);
+		try {
+			open();
+		}
+		catch (IOException e) {
+			Log.e(TAG, e.getLocalizedMessage());
+			throw new IllegalStateException("Cannot access data store", e);
+		}
+	}
+
+	public long countAccounts() {
+		checkState();
+		indexLock.readLock().lock();
+		try {
+			long count = accounts.size();
+			Transaction t = ownTransaction();
+			if (t != null) {
+				for (Long id: t.accounts.keySet()) {
+					if (!accounts.containsKey(id)) {
+						++count;
+					}
+				}
+			}
+			return count;
+		}
+		finally {
+			indexLock.readLock().unlock();
+		}
+	}
+
+	public List<Account> accounts() {
+		return accountsAfter(0, Long.MAX_VALUE);
+	}
+
+	public List<Account> accountsInRange(long offset, long limit) {
+		checkState();
+		indexLock.readLock().lock();
+		try {
+			List<Integer> offsets = offsetsAfter(0,
+					limit > Long.MAX_VALUE - offset ? Long.MAX_VALUE
+							: offset + limit);
+			List<Account> list = new ArrayList<Account>();
+			ByteBuffer m = map;
+			for (int i = (int) Math.min(offset, offsets.size());
+					i < offsets.size(); ++i) {
+				list.add(readAccount(m, offsets.get(i)));
+			}
+			return list;
+		}
+		finally {
+			indexLock.readLock().unlock();
+		}
+	}
+
+	public List<Account> accountsAfter(long lastId, long limit) {
+		checkState();
+		indexLock.readLock().lock();
+		try {
+			List<Integer> offsets = offsetsAfter(lastId, limit);
+			List<Account> list = new ArrayList<Account>(offsets.size());
+			ByteBuffer m = map;
+			for (Integer offset: offsets) {
+				list.add(readAccount(m, offset));
+			}
+			return list;
+		}
+		finally {
+			indexLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Reads the accounts a page at a time, so the iterator holds no lock
+	 * between calls.
+	 */
+	public AccountIterator iterateAccounts(final long lastId) {
+		return new AccountIterator() {
+			private static final int PAGE = 64;
+			private Iterator<Account> page =
+				Collections.<Account>emptyList().iterator();
+			private long last = lastId;
+			private boolean done;
+
+			public boolean hasNext() {
+				if (!page.hasNext() && !done) {
+					List<Account> next = accountsAfter(last, PAGE);
+					done = next.size() < PAGE;
+					if (!next.isEmpty()) {
+						last = next.get(next.size() - 1).getId();
+					}
+					page = next.iterator();
+				}
+				return page.hasNext();
+			}
+
+			public Account next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return page.next();
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+			public void close() {
+				done = true;
+				page = Collections.<Account>emptyList().iterator();
+			}
+		};
+	}
+
+	public List<AccountSummary> summariesAfter(long lastId, long limit) {
+		checkState();
+		indexLock.readLock().lock();
+		try {
+			List<Integer> offsets = offsetsAfter(lastId, limit);
+			List<AccountSummary> list =
+				new ArrayList<AccountSummary>(offsets.size());
+			ByteBuffer m = map;
+			for (Integer offset: offsets) {
+				// The encrypted fields are skipped, not copied.
+				ByteBuffer b = payload(m, offset);
+				long id = b.getLong();
+				long date = b.getLong();
+				list.add(new AccountSummary(id, getString(b), date));
+			}
+			return list;
+		}
+		finally {
+			indexLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Only sees committed changes, even in a transaction.
+	 */
+	public List<Account> changesAfter(long sequence, long limit) {
+		checkState();
+		indexLock.readLock().lock();
+		try {
+			List<Account> list = new ArrayList<Account>();
+			ByteBuffer m = map;
+			Iterator<Long> it = sequences.tailMap(sequence + 1).values()
+				.iterator();
+			while (it.hasNext() && list.size() < limit) {
+				list.add(readAccount(m, accounts.get(it.next())));
+			}
+			return list;
+		}
+		finally {
+			indexLock.readLock().unlock();
+		}
+	}
+
+	public List<Account> accountsWithIds(Collection<Long> ids) {
+		checkState();
+		indexLock.readLock().lock();
+		try {
+			List<Account> list = new ArrayList<Account>(ids.size());
+			ByteBuffer m = map;
+			for (Long id: new TreeSet<Long>(ids)) {
+				Integer offset = accountOffset(id);
+				if (offset != null) {
+					list.add(readAccount(m, offset));
+				}
+			}
+			return list;
+		}
+		finally {
+			indexLock.readLock().unlock();
+		}
+	}
+
+	public List<Account> accountsWithUids(Collection<UUID> uids) {
+		checkState();
+		indexLock.readLock().lock();
+		try {
+			SortedMap<Long, Integer> found = new TreeMap<Long, Integer>();
+			Transaction t = ownTransaction();
+			for (UUID uid: uids) {
+				Long id = t != null ? t.uids.get(uid) : null;
+				if (id == null) {
+					id = this.uids.get(uid);
+				}
+				if (id != null) {
+					found.put(id, accountOffset(id));
+				}
+			}
+			List<Account> list = new ArrayList<Account>(found.size());
+			ByteBuffer m = map;
+			for (Integer offset: found.values()) {
+				list.add(readAccount(m, offset));
+			}
+			return list;
+		}
+		finally {
+			indexLock.readLock().unlock();
+		}
+	}
+
+	public Account account(long id) {
+		checkState();
+		indexLock.readLock().lock();
+		try {
+			Integer offset = accountOffset(id);
+			return offset != null ? readAccount(map, offset) : null;
+		}
+		finally {
+			indexLock.readLock().unlock();
+		}
+	}
+
+	public Account addAccount(String username, byte[] password,
+			byte[] description)
+	{
+		beginTransaction();
+		try {
+			Account a = appendAccount(nextId(), Account.newUid(), username,
+					password, description, HybridClock.now());
+			setTransactionSuccessful();
+			return a;
+		}
+		catch (SQLException e) {
+			Log.e(TAG, e.getLocalizedMessage());
+			return null;
+		}
+		finally {
+			endTransaction();
+		}
+	}
+
+	/**
+	 * Appends the accounts in one transaction.
+	 *
+	 * @throws SQLException if an account cannot be appended, in which case
+	 * 			no account is added.
+	 */
+	public List<Account> addAccounts(Collection<Account> accounts) {
+		long date = HybridClock.now();
+		List<Account> added = new ArrayList<Account>(accounts.size());
+		beginTransaction();
+		try {
+			for (Account a: accounts) {
+				added.add(appendAccount(nextId(), Account.newUid(),
+						a.getUsername(), a.getPassword(), a.getDescription(),
+						date));
+			}
+			setTransactionSuccessful();
+		}
+		finally {
+			endTransaction();
+		}
+		return added;
+	}
+
+	public void updateAccount(Account acc) {
+		beginTransaction();
+		try {
+			// The account keeps its uid.
+			Account current = account(acc.getId());
+			appendAccount(acc.getId(), 
+					(current != null ? current : acc).getUid(), 
+					acc.getUsername(), acc.getPassword(), 
+					acc.getDescription(), HybridClock.now());
+			setTransactionSuccessful();
+		}
+		finally {
+			endTransaction();
+		}
+	}
+
+	public void reencryptAccount(Account acc) {
+		beginTransaction();
+		try {
+			Account current = account(acc.getId());
+			if (current != null) {
+				appendAccount(acc.getId(), current.getUid(),
+						current.getUsername(), acc.getPassword(),
+						acc.getDescription(), current.getModificationTime());
+			}
+			setTransactionSuccessful();
+		}
+		finally {
+			endTransaction();
+		}
+	}
+
+	public Account mergeAccount(Account acc) {
+		beginTransaction();
+		try {
+			Account a = appendAccount(acc.getId() != 0 ? acc.getId() 
+					: nextId(), acc.getUid(), acc.getUsername(), 
+					acc.getPassword(), acc.getDescription(), 
+					acc.getModificationTime());
+			setTransactionSuccessful();
+			return a;
+		}
+		finally {
+			endTransaction();
+		}
+	}
+
+	public byte[] valueForKey(String key) {
+		checkState();
+		indexLock.readLock().lock();
+		try {
+			Integer offset = valueOffset(key);
+			return offset != null ? readValue(payload(map, offset)) : null;
+		}
+		finally {
+			indexLock.readLock().unlock();
+		}
+	}
+
+	public Map<String, byte[]> values() {
+		checkState();
+		indexLock.readLock().lock();
+		try {
+			Map<String, byte[]> result = new HashMap<String, byte[]>();
+			ByteBuffer m = map;
+			for (Integer offset: values.values()) {
+				ByteBuffer b = payload(m, offset);
+				result.put(getString(b), getBytes(b));
+			}
+			return result;
+		}
+		finally {
+			indexLock.readLock().unlock();
+		}
+	}
+
+	public void setValueForKey(String key, byte[] value, boolean replace) {
+		if (key == null || value == null) {
+			Log.d(TAG, "Tried to insert null key or value");
+			return;
+		}
+		beginTransaction();
+		try {
+			if (replace || valueOffset(key) == null) {
+				byte[] k = encode(key);
+				ByteBuffer b = ByteBuffer.allocate(8 + k.length + value.length);
+				putBytes(b, k);
+				putBytes(b, value);
+				tx.values.put(key, append(VALUE, b));
+			}
+			setTransactionSuccessful();
+		}
+		catch (SQLException e) {
+			Log.e(TAG, e.getLocalizedMessage());
+		}
+		finally {
+			endTransaction();
+		}
+	}
+
+	public void removeValueForKey(String key) {
+		beginTransaction();
+		try {
+			if (valueOffset(key) != null) {
+				byte[] k = encode(key);
+				ByteBuffer b = ByteBuffer.allocate(4 + k.length);
+				putBytes(b, k);
+				append(REMOVE_VALUE, b);
+				tx.values.put(key, null);
+			}
+			setTransactionSuccessful();
+		}
+		catch (SQLException e) {
+			Log.e(TAG, e.getLocalizedMessage());
+		}
+		finally {
+			endTransaction();
+		}
+	}
+
+	public byte[] treeNode(int level, long index) {
+		checkState();
+		indexLock.readLock().lock();
+		try {
+			Long key = MerkleTree.nodeKey(level, index);
+			Transaction t = ownTransaction();
+			Integer offset = t != null ? t.nodes.get(key) : null;
+			if (offset == null && (t == null || !t.treeCleared)) {
+				offset = nodes.get(key);
+			}
+			if (offset == null) {
+				return null;
+			}
+			ByteBuffer b = payload(map, offset);
+			b.position(b.position() + 12);
+			return getBytes(b);
+		}
+		finally {
+			indexLock.readLock().unlock();
+		}
+	}
+
+	public void setTreeNode(int level, long index, byte[] hash) {
+		beginTransaction();
+		try {
+			ByteBuffer b = ByteBuffer.allocate(16 + hash.length);
+			b.putInt(level).putLong(index);
+			putBytes(b, hash);
+			tx.nodes.put(MerkleTree.nodeKey(level, index), append(NODE, b));
+			tx.height = Math.max(tx.height, level);
+			setTransactionSuccessful();
+		}
+		finally {
+			endTransaction();
+		}
+	}
+
+	public int treeHeight() {
+		checkState();
+		indexLock.readLock().lock();
+		try {
+			Transaction t = ownTransaction();
+			if (t == null) {
+				return height;
+			}
+			return Math.max(t.treeCleared ? -1 : height, t.height);
+		}
+		finally {
+			indexLock.readLock().unlock();
+		}
+	}
+
+	public void clearTree() {
+		beginTransaction();
+		try {
+			append(CLEAR_TREE, ByteBuffer.allocate(0));
+			tx.treeCleared = true;
+			tx.nodes.clear();
+			tx.height = -1;
+			setTransactionSuccessful();
+		}
+		finally {
+			endTransaction();
+		}
+	}
+
+	public void beginTransaction() {
+		checkState();
+		writeLock.lock();
+		if (tx == null) {
+			tx = new Transaction(end);
+		}
+		++tx.depth;
+		tx.successful = false;
+	}
+
+	public void setTransactionSuccessful() {
+		if (ownTransaction() == null) {
+			throw new IllegalStateException("No transaction");
+		}
+		tx.successful = true;
+	}
+
+	public void endTransaction() {
+		if (ownTransaction() == null) {
+			throw new IllegalStateException("No transaction");
+		}
+		boolean compact = false;
+		try {
+			if (!tx.successful) {
+				tx.failed = true;
+			}
+			tx.successful = false;
+			if (--tx.depth > 0) {
+				return;
+			}
+
+			Transaction t = tx;
+			tx = null;
+			if (t.failed) {
+				rollback(t);
+			} else {
+				compact = commit(t);
+			}
+		}
+		finally {
+			writeLock.unlock();
+		}
+		if (compact) {
+			startCompaction();
+		}
+	}
+
+	public boolean isOpen() {
+		FileChannel c = channel;
+		return c != null && c.isOpen();
+	}
+
+	public void setStoreKey(byte[] key) {
+		// The log is not sealed as a whole.
+	}
+
+	public void checkState() {
+		if (isOpen()) {
+			return;
+		}
+		writeLock.lock();
+		try {
+			if (!isOpen()) {
+				open();
+			}
+		}
+		catch (IOException e) {
+			Log.e(TAG, e.getLocalizedMessage());
+			throw new IllegalStateException("Cannot access data store", e);
+		}
+		finally {
+			writeLock.unlock();
+		}
+	}
+
+	public void obliterate() {
+		close();
+		if (!file.delete()) {
+			Log.e(TAG, "Cannot delete " + file);
+		}
+	}
+
+	public void close() {
+		writeLock.lock();
+		indexLock.writeLock().lock();
+		try {
+			closeFile();
+			map = null;
+		}
+		finally {
+			indexLock.writeLock().unlock();
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Maps the log and replays it. Must hold the write lock, or be called
+	 * from the constructor.
+	 */
+	private void open() throws IOException {
+		new File(file.getPath() + COMPACT_SUFFIX).delete();
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		boolean created = raf.length() == 0;
+		map = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+				Math.max(raf.length(), INITIAL_SIZE));
+
+		indexLock.writeLock().lock();
+		try {
+			accounts.clear();
+			values.clear();
+			nodes.clear();
+			height = -1;
+			lastId = 0;
+			sequences.clear();
+			lastSequence = 0;
+			uids.clear();
+			liveBytes = 0;
+			if (created) {
+				map.putInt(0, MAGIC);
+				map.putInt(4, FORMAT);
+				map.force();
+				end = FILE_HEADER;
+			} else if (map.getInt(0) != MAGIC || map.getInt(4) != FORMAT) {
+				closeFile();
+				throw new IOException("Not a log store: " + file);
+			} else {
+				replay();
+			}
+		}
+		finally {
+			indexLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Rebuilds the index from the records of the log, up to the last
+	 * commit, and erases what follows.
+	 */
+	private void replay() {
+		ByteBuffer m = map;
+		Transaction t = new Transaction(FILE_HEADER);
+		int pos = FILE_HEADER;
+		int committed = FILE_HEADER;
+		int count = 0;
+		while (pos + RECORD_HEADER < m.capacity()) {
+			int length = m.getInt(pos);
+			if (length <= 0 || length > m.capacity() - pos - RECORD_HEADER
+					|| m.getInt(pos + 4) != crc(m, pos, length)) {
+				break;
+			}
+
+			ByteBuffer b = payload(m, pos);
+			switch (m.get(pos + RECORD_HEADER)) {
+			case ACCOUNT:
+				long id = b.getLong();
+				t.accounts.put(id, pos);
+				t.uids.put(readUid(m, pos), id);
+				t.lastId = Math.max(t.lastId, id);
+				t.lastSequence = Math.max(t.lastSequence, 
+						readSequence(m, pos));
+				break;
+			case VALUE:
+				t.values.put(getString(b), pos);
+				break;
+			case REMOVE_VALUE:
+				t.values.put(getString(b), null);
+				break;
+			case NODE:
+				int level = b.getInt();
+				t.nodes.put(MerkleTree.nodeKey(level, b.getLong()), pos);
+				t.height = Math.max(t.height, level);
+				break;
+			case CLEAR_TREE:
+				t.treeCleared = true;
+				t.nodes.clear();
+				t.height = -1;
+				break;
+			case COMMIT:
+				apply(t);
+				t = new Transaction(pos);
+				committed = pos + RECORD_HEADER + length;
+				++count;
+				break;
+			}
+			pos += RECORD_HEADER + length;
+		}
+
+		end = committed;
+		erase(m, committed, pos);
+		Log.d(TAG, String.format("Replayed %d transactions, %d bytes",
+				count, end));
+	}
+
+	/**
+	 * Appends the commit record, flushes the log and publishes the changes
+	 * to readers.
+	 *
+	 * @return if the log should be compacted.
+	 */
+	private boolean commit(Transaction t) {
+		if (end == t.start) {
+			return false;
+		}
+		append(COMMIT, ByteBuffer.allocate(0));
+		map.force();
+
+		indexLock.writeLock().lock();
+		try {
+			apply(t);
+		}
+		finally {
+			indexLock.writeLock().unlock();
+		}
+		return !compacting && end > COMPACT_MIN_SIZE && end > 2 * liveBytes;
+	}
+
+	private void rollback(Transaction t) {
+		erase(map, t.start, end);
+		end = t.start;
+	}
+
+	/* Must hold the write lock of the index. */
+	private void apply(Transaction t) {
+		ByteBuffer m = map;
+		for (Map.Entry<Long, Integer> e: t.accounts.entrySet()) {
+			Integer before = accounts.put(e.getKey(), e.getValue());
+			if (before != null) {
+				sequences.remove(readSequence(m, before));
+			}
+			sequences.put(readSequence(m, e.getValue()), e.getKey());
+			replace(m, before, e.getValue());
+		}
+		uids.putAll(t.uids);
+		for (Map.Entry<String, Integer> e: t.values.entrySet()) {
+			if (e.getValue() == null) {
+				replace(m, values.remove(e.getKey()), null);
+			} else {
+				replace(m, values.put(e.getKey(), e.getValue()),
+						e.getValue());
+			}
+		}
+		if (t.treeCleared) {
+			for (Integer offset: nodes.values()) {
+				liveBytes -= recordSize(m, offset);
+			}
+			nodes.clear();
+			height = -1;
+		}
+		for (Map.Entry<Long, Integer> e: t.nodes.entrySet()) {
+			replace(m, nodes.put(e.getKey(), e.getValue()), e.getValue());
+		}
+		height = Math.max(height, t.height);
+		lastId = Math.max(lastId, t.lastId);
+		lastSequence = Math.max(lastSequence, t.lastSequence);
+	}
+
+	private void replace(ByteBuffer m, Integer before, Integer after) {
+		if (before != null) {
+			liveBytes -= recordSize(m, before);
+		}
+		if (after != null) {
+			liveBytes += recordSize(m, after);
+		}
+	}
+
+	private void startCompaction() {
+		synchronized (this) {
+			if (compacting) {
+				return;
+			}
+			compacting = true;
+		}
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				try {
+					compact();
+				}
+				catch (IOException e) {
+					Log.e(TAG, "Compaction failed: " + e.getLocalizedMessage());
+				}
+				catch (RuntimeException e) {
+					Log.e(TAG, "Compaction failed", e);
+				}
+				finally {
+					compacting = false;
+				}
+			}
+		}, "LogCompactor");
+		t.setDaemon(true);
+		t.setPriority(Thread.MIN_PRIORITY);
+		t.start();
+	}
+
+	/**
+	 * Copies the live records to a new file, in the order of the index, and
+	 * renames it over the log. Transactions wait for the copy; readers only
+	 * wait for the swap.
+	 */
+	private void compact() throws IOException {
+		writeLock.lock();
+		try {
+			if (!isOpen()) {
+				return;
+			}
+			File copy = new File(file.getPath() + COMPACT_SUFFIX);
+			RandomAccessFile out = new RandomAccessFile(copy, "rw");
+			int size = Math.max(INITIAL_SIZE,
+					2 * (FILE_HEADER + liveBytes + RECORD_HEADER + 1));
+			MappedByteBuffer m;
+			try {
+				m = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+						size);
+			}
+			catch (IOException e) {
+				out.close();
+				copy.delete();
+				throw e;
+			}
+			m.putInt(MAGIC).putInt(FORMAT);
+
+			ByteBuffer old = map;
+			SortedMap<Long, Integer> newAccounts = new TreeMap<Long, Integer>();
+			Map<String, Integer> newValues = new HashMap<String, Integer>();
+			Map<Long, Integer> newNodes = new HashMap<Long, Integer>();
+			for (Map.Entry<Long, Integer> e: accounts.entrySet()) {
+				newAccounts.put(e.getKey(), copyRecord(old, e.getValue(), m));
+			}
+			for (Map.Entry<String, Integer> e: values.entrySet()) {
+				newValues.put(e.getKey(), copyRecord(old, e.getValue(), m));
+			}
+			for (Map.Entry<Long, Integer> e: nodes.entrySet()) {
+				newNodes.put(e.getKey(), copyRecord(old, e.getValue(), m));
+			}
+			int before = end;
+			ByteBuffer commit = ByteBuffer.allocate(RECORD_HEADER + 1);
+			commit.putInt(1).putInt(crc(COMMIT, ByteBuffer.allocate(0)))
+				.put(COMMIT);
+			m.put(commit.array());
+			m.force();
+
+			indexLock.writeLock().lock();
+			try {
+				if (!copy.renameTo(file)) {
+					out.close();
+					copy.delete();
+					throw new IOException("Cannot replace " + file);
+				}
+				closeFile();
+				raf = out;
+				channel = out.getChannel();
+				map = m;
+				end = m.position();
+				accounts.clear();
+				accounts.putAll(newAccounts);
+				values.clear();
+				values.putAll(newValues);
+				nodes.clear();
+				nodes.putAll(newNodes);
+			}
+			finally {
+				indexLock.writeLock().unlock();
+			}
+			Log.i(TAG, String.format("Compacted the log from %d to %d bytes",
+					before, end));
+		}
+		finally {
+			writeLock.unlock();
+		}
+	}
+
+	private static int copyRecord(ByteBuffer from, int offset, ByteBuffer to) {
+		int position = to.position();
+		ByteBuffer record = from.duplicate();
+		record.position(offset);
+		record.limit(offset + recordSize(from, offset));
+		to.put(record);
+		return position;
+	}
+
+	/* Must be in the transaction. */
+	private Account appendAccount(long id, UUID uid, String username, 
+			byte[] password, byte[] description, long date)
+	{
+		byte[] user = username != null ? encode(username) : null;
+		long sequence = Math.max(lastSequence, tx.lastSequence) + 1;
+		ByteBuffer b = ByteBuffer.allocate(16 + 12 + 8 + 16
+				+ (user != null ? user.length : 0)
+				+ password.length + description.length);
+		b.putLong(id).putLong(date);
+		putBytes(b, user);
+		putBytes(b, password);
+		putBytes(b, description);
+		b.putLong(sequence);
+		b.putLong(uid.getMostSignificantBits())
+			.putLong(uid.getLeastSignificantBits());
+		tx.accounts.put(id, append(ACCOUNT, b));
+		tx.uids.put(uid, id);
+		tx.lastId = Math.max(tx.lastId, id);
+		tx.lastSequence = sequence;
+		return new Account(id, uid, username, password, description, date,
+				sequence);
+	}
+
+	/**
+	 * Appends a record, growing the mapping if needed. Must be in the
+	 * transaction.
+	 *
+	 * @return the offset of the record.
+	 */
+	private int append(byte type, ByteBuffer payload) {
+		int length = 1 + payload.capacity();
+		int size = RECORD_HEADER + length;
+		if (end + size > map.capacity()) {
+			grow(end + size);
+		}
+
+		int offset = end;
+		ByteBuffer m = map.duplicate();
+		m.position(offset);
+		m.putInt(length).putInt(crc(type, payload)).put(type)
+			.put(payload.array(), 0, payload.capacity());
+		end += size;
+		return offset;
+	}
+
+	private void grow(int needed) {
+		long size = map.capacity();
+		while (size < needed) {
+			size *= 2;
+		}
+		if (size > Integer.MAX_VALUE) {
+			throw new SQLException("Log store is full");
+		}
+		try {
+			// Readers may still hold the old mapping, which stays valid.
+			map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+		catch (IOException e) {
+			throw new SQLException(e.getLocalizedMessage());
+		}
+	}
+
+	private void closeFile() {
+		try {
+			if (raf != null) {
+				raf.close();
+			}
+		}
+		catch (IOException e) {
+			Log.e(TAG, e.getLocalizedMessage());
+		}
+		raf = null;
+		channel = null;
+	}
+
+	/**
+	 * @return the transaction of the calling thread, or <code>null</code>.
+	 */
+	private Transaction ownTransaction() {
+		return writeLock.isHeldByCurrentThread() ? tx : null;
+	}
+
+	/* Must be in the transaction. */
+	private long nextId() {
+		return Math.max(lastId, tx.lastId) + 1;
+	}
+
+	/* Must hold a lock of the index, or be in the transaction. */
+	private Integer accountOffset(long id) {
+		Transaction t = ownTransaction();
+		Integer offset = t != null ? t.accounts.get(id) : null;
+		return offset != null ? offset : accounts.get(id);
+	}
+
+	/* Must hold a lock of the index, or be in the transaction. */
+	private Integer valueOffset(String key) {
+		Transaction t = ownTransaction();
+		if (t != null && t.values.containsKey(key)) {
+			return t.values.get(key);
+		}
+		return values.get(key);
+	}
+
+	/**
+	 * Returns the offsets of up to <code>limit</code> accounts after
+	 * <code>lastId</code>, in id order, merging the accounts of the
+	 * transaction of the calling thread. Must hold the read lock of the
+	 * index.
+	 */
+	private List<Integer> offsetsAfter(long lastId, long limit) {
+		Iterator<Map.Entry<Long, Integer>> c =
+			accounts.tailMap(lastId + 1).entrySet().iterator();
+		Transaction t = ownTransaction();
+		Iterator<Map.Entry<Long, Integer>> s = t != null
+			? t.accounts.tailMap(lastId + 1).entrySet().iterator()
+			: Collections.<Long, Integer>emptyMap().entrySet().iterator();
+
+		List<Integer> offsets = new ArrayList<Integer>();
+		Map.Entry<Long, Integer> ce = c.hasNext() ? c.next() : null;
+		Map.Entry<Long, Integer> se = s.hasNext() ? s.next() : null;
+		while (offsets.size() < limit && (ce != null || se != null)) {
+			int cmp = ce == null ? 1 : se == null ? -1
+				: ce.getKey().compareTo(se.getKey());
+			if (cmp < 0) {
+				offsets.add(ce.getValue());
+				ce = c.hasNext() ? c.next() : null;
+			} else {
+				if (cmp == 0) {
+					ce = c.hasNext() ? c.next() : null;
+				}
+				offsets.add(se.getValue());
+				se = s.hasNext() ? s.next() : null;
+			}
+		}
+		return offsets;
+	}
+
+	private static Account readAccount(ByteBuffer m, int offset) {
+		ByteBuffer b = payload(m, offset);
+		long id = b.getLong();
+		long date = b.getLong();
+		String username = getString(b);
+		byte[] password = getBytes(b);
+		byte[] description = getBytes(b);
+		long sequence = getSequence(b, m, offset, id);
+		return new Account(id, getUid(b, m, offset, id), username, password,
+				description, date, sequence);
+	}
+
+	private static long readSequence(ByteBuffer m, int offset) {
+		ByteBuffer b = payload(m, offset);
+		long id = b.getLong();
+		skipFields(b);
+		return getSequence(b, m, offset, id);
+	}
+
+	private static UUID readUid(ByteBuffer m, int offset) {
+		ByteBuffer b = payload(m, offset);
+		long id = b.getLong();
+		skipFields(b);
+		getSequence(b, m, offset, id);
+		return getUid(b, m, offset, id);
+	}
+
+	/**
+	 * Moves past the date and the three fields of an account record.
+	 */
+	private static void skipFields(ByteBuffer b) {
+		b.position(b.position() + 8);
+		for (int i = 0; i < 3; ++i) {
+			int length = b.getInt();
+			b.position(b.position() + Math.max(0, length));
+		}
+	}
+
+	/**
+	 * Reads the change sequence that follows the fields of an account
+	 * record. Records written before sequences existed end with the fields,
+	 * and take the id of the account as sequence.
+	 */
+	private static long getSequence(ByteBuffer b, ByteBuffer m, int offset,
+			long id)
+	{
+		int end = offset + recordSize(m, offset);
+		return b.position() < end ? b.getLong() : id;
+	}
+
+	/**
+	 * Reads the uid that follows the change sequence of an account record.
+	 * Records written before uids existed end with the sequence, and take
+	 * the uid made from the id of the account.
+	 */
+	private static UUID getUid(ByteBuffer b, ByteBuffer m, int offset,
+			long id)
+	{
+		int end = offset + recordSize(m, offset);
+		return b.position() < end ? new UUID(b.getLong(), b.getLong())
+			: Account.legacyUid(id);
+	}
+
+	private static byte[] readValue(ByteBuffer b) {
+		int keyLength = b.getInt();
+		b.position(b.position() + keyLength);
+		return getBytes(b);
+	}
+
+	/**
+	 * @return a view of the payload of the record at <code>offset</code>.
+	 */
+	private static ByteBuffer payload(ByteBuffer m, int offset) {
+		ByteBuffer b = m.duplicate();
+		b.position(offset + RECORD_HEADER + 1);
+		return b;
+	}
+
+	private static int recordSize(ByteBuffer m, int offset) {
+		return RECORD_HEADER + m.getInt(offset);
+	}
+
+	private static void putBytes(ByteBuffer b, byte[] bytes) {
+		if (bytes == null) {
+			b.putInt(-1);
+		} else {
+			b.putInt(bytes.length).put(bytes);
+		}
+	}
+
+	private static byte[] getBytes(ByteBuffer b) {
+		int length = b.getInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		b.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Decodes a string straight from the mapping.
+	 */
+	private static String getString(ByteBuffer b) {
+		int length = b.getInt();
+		if (length < 0) {
+			return null;
+		}
+		ByteBuffer s = b.slice();
+		s.limit(length);
+		b.position(b.position() + length);
+		return UTF8.decode(s).toString();
+	}
+
+	private static byte[] encode(String s) {
+		ByteBuffer b = UTF8.encode(s);
+		byte[] bytes = new byte[b.remaining()];
+		b.get(bytes);
+		return bytes;
+	}
+
+	private static void erase(ByteBuffer m, int from, int to) {
+		for (int i = from; i < to; ++i) {
+			m.put(i, (byte) 0);
+		}
+	}
+
+	private static int crc(byte type, ByteBuffer payload) {
+		CRC32 crc = new CRC32();
+		crc.update(type);
+		crc.update(payload.array(), 0, payload.capacity());
+		return (int) crc.getValue();
+	}
+
+	private static int crc(ByteBuffer m, int offset, int length) {
+		byte[] record = new byte[length];
+		ByteBuffer b = m.duplicate();
+		b.position(offset + RECORD_HEADER);
+		b.get(record);
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		return (int) crc.getValue();
+	}
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2010 Pedro Fonseca
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hecticant.thinpass.persistence;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from primitive <code>long</code> keys to non-null values, with
+ * open addressing and linear probing. Keys are never boxed, and an entry 
+ * costs two array slots. Not thread safe.
+ * <p>
+ * Slots are iterated by index, from 0 to {@link #capacity()}; empty slots
+ * have a <code>null</code> value.
+ *
+ * @author Pedro Fonseca
+ */
+final class LongMap<V> {
+	private static final int MIN_CAPACITY = 16;
+	
+	private long[] keys;
+	private Object[] values;
+	private int size;
+	
+	LongMap() {
+		this(MIN_CAPACITY);
+	}
+	
+	/**
+	 * @param expected the number of entries to make room for.
+	 */
+	LongMap(int expected) {
+		int capacity = MIN_CAPACITY;
+		while (capacity < 2 * expected) {
+			capacity <<= 1;
+		}
+		keys = new long[capacity];
+		values = new Object[capacity];
+	}
+	
+	int size() {
+		return size;
+	}
+	
+	int capacity() {
+		return keys.length;
+	}
+	
+	long keyAt(int slot) {
+		return keys[slot];
+	}
+	
+	@SuppressWarnings("unchecked")
+	V valueAt(int slot) {
+		return (V) values[slot];
+	}
+	
+	@SuppressWarnings("unchecked")
+	V get(long key) {
+		int mask = keys.length - 1;
+		for (int i = slot(key, mask); values[i] != null; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				return (V) values[i];
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * @return the previous value of <code>key</code>, or <code>null</code>.
+	 */
+	@SuppressWarnings("unchecked")
+	V put(long key, V value) {
+		if (value == null) {
+			throw new NullPointerException();
+		}
+		int mask = keys.length - 1;
+		int i = slot(key, mask);
+		for (; values[i] != null; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				V previous = (V) values[i];
+				values[i] = value;
+				return previous;
+			}
+		}
+		keys[i] = key;
+		values[i] = value;
+		// At most half full, so probes stay short.
+		if (++size > keys.length / 2) {
+			resize(keys.length * 2);
+		}
+		return null;
+	}
+	
+	/**
+	 * @return the removed value, or <code>null</code>.
+	 */
+	@SuppressWarnings("unchecked")
+	V remove(long key) {
+		int mask = keys.length - 1;
+		int i = slot(key, mask);
+		for (; values[i] != null; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				break;
+			}
+		}
+		V removed = (V) values[i];
+		if (removed == null) {
+			return null;
+		}
+		
+		// Shift back the entries that follow in the run, so that no probe
+		// stops at the hole.
+		int hole = i;
+		for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+			int home = slot(keys[j], mask);
+			if (((j - home) & mask) >= ((j - hole) & mask)) {
+				keys[hole] = keys[j];
+				values[hole] = values[j];
+				hole = j;
+			}
+		}
+		values[hole] = null;
+		--size;
+		return removed;
+	}
+	
+	void clear() {
+		Arrays.fill(values, null);
+		size = 0;
+	}
+	
+	private void resize(int capacity) {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new long[capacity];
+		values = new Object[capacity];
+		int mask = capacity - 1;
+		for (int j = 0; j < oldKeys.length; ++j) {
+			if (oldValues[j] != null) {
+				int i = slot(oldKeys[j], mask);
+				while (values[i] != null) {
+					i = (i + 1) & mask;
+				}
+				keys[i] = oldKeys[j];
+				values[i] = oldValues[j];
+			}
+		}
+	}
+	
+	private static int slot(long key, int mask) {
+		// Ids are consecutive and node keys differ in their top bits, so the
+		// bits are mixed before masking.
+		long h = key * 0x9e3779b97f4a7c15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+}
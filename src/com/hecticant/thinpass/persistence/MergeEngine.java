@@ -0,0 +1,119 @@
+/*
+ * Copyright 2010 Pedro Fonseca
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hecticant.thinpass.persistence;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Decides which versions of accounts read from another copy of the store
+ * replace the local ones. Each version is ordered by its modification 
+ * date, which {@link HybridClock} keeps increasing across copies, and 
+ * versions with the same date by the hash of their fields. Every copy 
+ * orders two versions the same way, so copies that exchange their changes 
+ * end up with the same accounts, whatever the order of the exchanges; 
+ * concurrent edits of an account keep the later one.
+ * <p>
+ * Accounts are matched by uid, since each copy gives its own ids: an 
+ * account added on two copies gets the same id on both, but not the same 
+ * uid. A remote account with no local version is added under a new local 
+ * id. Only the accounts in the delta are read, a batch at a time.
+ * 
+ * @see Account#getUid()
+ * 
+ * @author Pedro Fonseca
+ * @see StoreController#importChanges(java.io.InputStream)
+ */
+final class MergeEngine {
+	
+	private static final Comparator<Account> ID_ORDER = 
+		new Comparator<Account>() {
+			public int compare(Account a, Account b) {
+				return a.getId() < b.getId() ? -1 
+					: a.getId() == b.getId() ? 0 : 1;
+			}
+		};
+	
+	private MergeEngine() {}
+	
+	/**
+	 * Returns the remote versions that must replace the local ones. Must be
+	 * called in the transaction that saves them.
+	 * 
+	 * @param remote the remote versions of a batch. If an account appears 
+	 * 			more than once, the greatest version is kept.
+	 * @param store the local store.
+	 * @return the winning versions, with the id of the local version they 
+	 * 			replace, or 0 for those that have none, in id order.
+	 */
+	static List<Account> winners(Collection<Account> remote, 
+			StoreBackend store) 
+	{
+		Map<UUID, Account> latest = new HashMap<UUID, Account>();
+		for (Account r: remote) {
+			Account other = latest.get(r.getUid());
+			if (other == null || compare(r, other) > 0) {
+				latest.put(r.getUid(), r);
+			}
+		}
+		
+		List<Account> local = store.accountsWithUids(latest.keySet());
+		Map<UUID, Account> byUid = new HashMap<UUID, Account>(local.size());
+		for (Account l: local) {
+			byUid.put(l.getUid(), l);
+		}
+		
+		List<Account> winners = new ArrayList<Account>();
+		for (Account r: latest.values()) {
+			Account l = byUid.get(r.getUid());
+			if (l == null || compare(r, l) > 0) {
+				winners.add(new Account(l != null ? l.getId() : 0, 
+						r.getUid(), r.getUsername(), r.getPassword(), 
+						r.getDescription(), r.getModificationTime(), 
+						r.getChangeSequence()));
+			}
+		}
+		Collections.sort(winners, ID_ORDER);
+		return winners;
+	}
+	
+	/**
+	 * Orders two versions of the same account; equal versions compare as 0.
+	 */
+	static int compare(Account a, Account b) {
+		if (a.getModificationTime() != b.getModificationTime()) {
+			return a.getModificationTime() < b.getModificationTime() ? -1 : 1;
+		}
+		// The ids of the versions differ between copies, so are left out.
+		byte[] ha = MerkleTree.leafHash(0, a.getUsername(), a.getPassword(),
+				a.getDescription());
+		byte[] hb = MerkleTree.leafHash(0, b.getUsername(), b.getPassword(),
+				b.getDescription());
+		for (int i = 0; i < Math.min(ha.length, hb.length); ++i) {
+			if (ha[i] != hb[i]) {
+				return (ha[i] & 0xff) < (hb[i] & 0xff) ? -1 : 1;
+			}
+		}
+		return ha.length - hb.length;
+	}
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2010 Pedro Fonseca
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hecticant.thinpass.persistence;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.hecticant.thinpass.security.CryptUtil;
+
+/**
+ * A sparse binary hash tree over the rows of the accounts table. Leaf
+ * <code>i</code> is the hash of the account with id <code>i</code>, as
+ * stored (the sensitive fields are hashed encrypted); leaves of missing
+ * accounts have a fixed empty hash. The tree grows by one level whenever an
+ * id does not fit, so its height is about log2 of the largest id.
+ * <p>
+ * Only nodes that differ from the empty hashes are stored. Changing a leaf
+ * rewrites the nodes on its path to the root, and checking a set of leaves
+ * against the root reads their siblings along the same paths.
+ *
+ * @author Pedro Fonseca
+ * @see StoreController#verifyIntegrity()
+ * @see StoreController#verifyAccounts(java.util.Collection, java.util.List)
+ */
+final class MerkleTree {
+	private static final int MAX_HEIGHT = 63;
+
+	// Domain separation for the three kinds of hashes.
+	private static final byte[] LEAF = { 0 };
+	private static final byte[] NODE = { 1 };
+	private static final byte[] EMPTY_LEAF = { 2 };
+
+	/** EMPTY[l] is the root of an empty subtree of height l. */
+	private static final byte[][] EMPTY = new byte[MAX_HEIGHT + 1][];
+	static {
+		EMPTY[0] = CryptUtil.hash(new byte[0], EMPTY_LEAF);
+		for (int l = 1; l <= MAX_HEIGHT; ++l) {
+			EMPTY[l] = hashNode(EMPTY[l - 1], EMPTY[l - 1]);
+		}
+	}
+
+	private final StoreBackend store;
+
+	MerkleTree(StoreBackend store) {
+		this.store = store;
+	}
+
+	static byte[] leafHash(Account a) {
+		return leafHash(a.getId(), a.getUsername(), a.getPassword(),
+				a.getDescription());
+	}
+
+	static byte[] leafHash(long id, String username, byte[] password,
+			byte[] description)
+	{
+		byte[] user;
+		try {
+			user = username == null ? new byte[0] : username.getBytes("UTF-8");
+		}
+		catch (UnsupportedEncodingException e) {
+			user = username.getBytes();
+		}
+
+		ByteBuffer bb = ByteBuffer.allocate(8 + 12 + user.length
+				+ password.length + description.length);
+		bb.putLong(id);
+		bb.putInt(user.length).put(user);
+		bb.putInt(password.length).put(password);
+		bb.putInt(description.length).put(description);
+		return CryptUtil.hash(bb.array(), LEAF);
+	}
+
+	/**
+	 * @return the level of the root.
+	 */
+	int height() {
+		return Math.max(0, store.treeHeight());
+	}
+
+	byte[] root() {
+		return node(height(), 0);
+	}
+
+	/**
+	 * Sets leaf <code>id</code> and rewrites the path to the root. Callers
+	 * should run this in the transaction that changes the account.
+	 *
+	 * @return the new root.
+	 */
+	byte[] update(long id, byte[] leaf) {
+		int height = height();
+		while (id >= (1L << height)) {
+			byte[] root = node(height, 0);
+			store.setTreeNode(height + 1, 0, hashNode(root, EMPTY[height]));
+			++height;
+		}
+
+		store.setTreeNode(0, id, leaf);
+		byte[] h = leaf;
+		long index = id;
+		for (int level = 0; level < height; ++level) {
+			byte[] sibling = node(level, index ^ 1);
+			h = (index & 1) == 0 ? hashNode(h, sibling) : hashNode(sibling, h);
+			index >>>= 1;
+			store.setTreeNode(level + 1, index, h);
+		}
+		return h;
+	}
+
+	/**
+	 * Discards the stored tree and builds it again from
+	 * <code>accounts</code>, hashing each account once. Only the leaf 
+	 * hashes are kept in memory.
+	 *
+	 * @return the new root.
+	 */
+	byte[] rebuild(Iterator<Account> accounts) {
+		store.clearTree();
+
+		SortedMap<Long, byte[]> level = new TreeMap<Long, byte[]>();
+		long maxId = 0;
+		while (accounts.hasNext()) {
+			Account a = accounts.next();
+			level.put(a.getId(), leafHash(a));
+			maxId = Math.max(maxId, a.getId());
+		}
+		int height = heightFor(maxId);
+
+		for (Map.Entry<Long, byte[]> e: level.entrySet()) {
+			store.setTreeNode(0, e.getKey(), e.getValue());
+		}
+		for (int l = 0; l < height; ++l) {
+			level = parents(l, level, false);
+			for (Map.Entry<Long, byte[]> e: level.entrySet()) {
+				store.setTreeNode(l + 1, e.getKey(), e.getValue());
+			}
+		}
+		if (level.isEmpty()) {
+			store.setTreeNode(0, 0, EMPTY[0]);
+		}
+		return node(height, 0);
+	}
+
+	/**
+	 * Computes the root the tree would have if the given leaves replaced the
+	 * stored ones. Only the siblings on the paths of the leaves are read.
+	 *
+	 * @param leaves the leaf hashes, by account id. A <code>null</code> 
+	 * 			hash stands for a missing account.
+	 * @return the computed root, or <code>null</code> if a leaf lies outside
+	 * 			the tree.
+	 */
+	byte[] rootWith(Map<Long, byte[]> leaves) {
+		int height = height();
+		SortedMap<Long, byte[]> level = new TreeMap<Long, byte[]>();
+		for (Map.Entry<Long, byte[]> e: leaves.entrySet()) {
+			if (e.getValue() != null) {
+				level.put(e.getKey(), e.getValue());
+			} else if (e.getKey() < (1L << height)) {
+				level.put(e.getKey(), EMPTY[0]);
+			}
+			// Missing accounts outside the tree are empty already.
+		}
+		if (!level.isEmpty() && level.lastKey() >= (1L << height)) {
+			return null;
+		}
+		for (int l = 0; l < height; ++l) {
+			level = parents(l, level, true);
+		}
+		return level.isEmpty() ? root() : level.get(0L);
+	}
+
+	/**
+	 * Computes the root from the stored leaves of <code>ids</code> and the
+	 * siblings on their paths, instead of reading it. Updating these leaves
+	 * rehashes exactly these nodes, so checking this root against the tag
+	 * checks what the new root will be built from.
+	 */
+	byte[] rootOfPaths(Collection<Long> ids) {
+		int height = height();
+		Map<Long, byte[]> leaves = new HashMap<Long, byte[]>();
+		for (Long id: ids) {
+			if (id < (1L << height)) {
+				leaves.put(id, node(0, id));
+			}
+		}
+		return rootWith(leaves);
+	}
+
+	/**
+	 * Packs the coordinates of a node into one key, for stores that index
+	 * the nodes in memory. Indexes are below 2^56, as the account ids are.
+	 */
+	static long nodeKey(int level, long index) {
+		return ((long) level << 56) ^ index;
+	}
+
+	/**
+	 * Authenticates the root and the height of the tree.
+	 */
+	static byte[] tag(byte[] key, int height, byte[] root)
+		throws GeneralSecurityException
+	{
+		Mac m = Mac.getInstance("HmacSHA256");
+		m.init(new SecretKeySpec(key, "HmacSHA256"));
+		m.update(ByteBuffer.allocate(4).putInt(height).array());
+		return m.doFinal(root);
+	}
+
+	private SortedMap<Long, byte[]> parents(int l,
+			SortedMap<Long, byte[]> level, boolean readSiblings)
+	{
+		SortedMap<Long, byte[]> next = new TreeMap<Long, byte[]>();
+		for (Map.Entry<Long, byte[]> e: level.entrySet()) {
+			long index = e.getKey();
+			long parent = index >>> 1;
+			if (next.containsKey(parent)) {
+				continue;
+			}
+			byte[] sibling = level.get(index ^ 1);
+			if (sibling == null) {
+				sibling = readSiblings ? node(l, index ^ 1) : EMPTY[l];
+			}
+			next.put(parent, (index & 1) == 0
+					? hashNode(e.getValue(), sibling)
+					: hashNode(sibling, e.getValue()));
+		}
+		return next;
+	}
+
+	private byte[] node(int level, long index) {
+		byte[] h = store.treeNode(level, index);
+		return h != null ? h : EMPTY[level];
+	}
+
+	private static int heightFor(long maxId) {
+		int height = 0;
+		while (maxId >= (1L << height)) {
+			++height;
+		}
+		return height;
+	}
+
+	private static byte[] hashNode(byte[] left, byte[] right) {
+		byte[] both = new byte[left.length + right.length];
+		System.arraycopy(left, 0, both, 0, left.length);
+		System.arraycopy(right, 0, both, left.length, right.length);
+		return CryptUtil.hash(both, NODE);
+	}
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2010 Pedro Fonseca
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hecticant.thinpass.persistence;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * A step from one version of the database schema to the next. The schema 
+ * is changed when the store is opened, before it is used, so that part must
+ * be quick. Migrations that must rewrite every row do it afterwards, in 
+ * chunks, while the store is in use.
+ * 
+ * @author Pedro Fonseca
+ * @see SchemaMigrator
+ */
+abstract class Migration {
+	private final int version;
+	
+	/**
+	 * @param version the schema version once this migration is complete.
+	 */
+	Migration(int version) {
+		this.version = version;
+	}
+	
+	final int version() {
+		return version;
+	}
+	
+	/**
+	 * Changes the schema, inside a transaction. A database created with the 
+	 * current schema is also upgraded, and the change is applied again until
+	 * the rows of the migration are done, so this must leave a schema that 
+	 * is already at this version unchanged.
+	 */
+	abstract void upgradeSchema(SQLiteDatabase db);
+	
+	/**
+	 * @return whether {@link #migrateRows(SQLiteDatabase, long, int)} must 
+	 * 			be run after the schema is upgraded.
+	 */
+	boolean rewritesRows() {
+		return false;
+	}
+	
+	/**
+	 * Rewrites at most <code>limit</code> accounts with an id greater than
+	 * <code>lastId</code>, inside a transaction. Accounts are read and saved 
+	 * while the migration runs, so rows that were not rewritten yet must 
+	 * still be readable, and rows saved since the schema was upgraded must
+	 * be left as they are.
+	 * 
+	 * @return the id of the last account rewritten, or -1 if no account is 
+	 * 			left.
+	 */
+	long migrateRows(SQLiteDatabase db, long lastId, int limit) {
+		return -1;
+	}
+	
+	/**
+	 * @return the statement that created <code>table</code>, or 
+	 * 			<code>null</code> if there is no such table.
+	 */
+	static String tableSchema(SQLiteDatabase db, String table) {
+		SQLiteStatement s = db.compileStatement("SELECT sql FROM "
+				+ "sqlite_master WHERE type = 'table' AND name = ?;");
+		try {
+			s.bindString(1, table);
+			return s.simpleQueryForString();
+		}
+		catch (SQLiteDoneException e) {
+			return null;
+		}
+		finally {
+			s.close();
+		}
+	}
+	
+	/**
+	 * @return the id of the last account in the chunk of at most 
+	 * 			<code>limit</code> accounts after <code>lastId</code>, or -1 
+	 * 			if there is none.
+	 */
+	static long lastOfChunk(SQLiteDatabase db, long lastId, int limit) {
+		SQLiteStatement s = db.compileStatement(
+				"SELECT IFNULL(MAX(_id), -1) FROM (SELECT _id FROM " 
+					+ DefaultStore.ACC_TABLE 
+					+ " WHERE _id > ? ORDER BY _id ASC LIMIT ?);");
+		try {
+			s.bindLong(1, lastId);
+			s.bindLong(2, limit);
+			return s.simpleQueryForLong();
+		}
+		finally {
+			s.close();
+		}
+	}
+	
+	/**
+	 * Runs <code>sql</code> on the ids after <code>lastId</code> up to 
+	 * <code>last</code>, bound in that order.
+	 */
+	static void updateChunk(SQLiteDatabase db, String sql, long lastId, 
+			long last) 
+	{
+		SQLiteStatement s = db.compileStatement(sql);
+		try {
+			s.bindLong(1, lastId);
+			s.bindLong(2, last);
+			s.execute();
+		}
+		finally {
+			s.close();
+		}
+	}
+}
@@ -0,0 +1,388 @@
+/*
+ * Copyright 2010 Pedro Fonseca
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hecticant.thinpass.persistence;
+
+import java.nio.ByteBuffer;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+/**
+ * Brings the database of a {@link DefaultStore} to the current schema 
+ * version, applying the registered migrations in order. The version is kept
+ * in the AppData table.
+ * <p>
+ * The schema changes of every pending migration are applied in one 
+ * transaction when the store is opened, so the store is used with the 
+ * current schema from the start. Migrations that rewrite rows then run in 
+ * order on a background thread, {@link #CHUNK_SIZE} accounts per 
+ * transaction, saving a checkpoint with each chunk, so the store can be used
+ * in the meantime and an interrupted migration resumes where it stopped. A 
+ * caller that cannot use the store before the rows are done migrates the 
+ * rest on its own thread with {@link #finish()}.
+ * 
+ * @author Pedro Fonseca
+ */
+final class SchemaMigrator implements Runnable {
+	private static final String TAG = "SchemaMigrator";
+	
+	// Only read and written here, bypassing the cache of StoreController.
+	private static final String VERSION_KEY = "SCHEMAVERSION";
+	private static final String CHECKPOINT_KEY = "MIGRATIONCHECKPOINT";
+	
+	/** The number of accounts rewritten per transaction. */
+	static final int CHUNK_SIZE = 256;
+	
+	/** Every migration, by increasing version. */
+	private static final Migration[] MIGRATIONS = {
+		new EpochDates(),
+		new ChangeSequences(),
+		new AccountUids()
+	};
+	
+	static final int CURRENT_VERSION = 
+		MIGRATIONS[MIGRATIONS.length - 1].version();
+	
+	private final DefaultStore store;
+	private volatile boolean stopped;
+	
+	SchemaMigrator(DefaultStore store) {
+		this.store = store;
+	}
+	
+	/**
+	 * @return the version of the schema, counting only migrations whose rows
+	 * 			are done.
+	 */
+	int version() {
+		byte[] v = store.valueForKey(VERSION_KEY);
+		return v == null ? 0 : ByteBuffer.wrap(v).getInt();
+	}
+	
+	/**
+	 * Applies the schema changes of the pending migrations, and starts the 
+	 * rows of the first one that must rewrite them. The versions of the 
+	 * migrations before it are saved.
+	 * 
+	 * @return <code>true</code> if rows are left to migrate, in which case
+	 * 			{@link #start()} should be called.
+	 */
+	synchronized boolean upgradeSchema() {
+		int version = version();
+		if (version >= CURRENT_VERSION) {
+			return false;
+		}
+		
+		boolean rowsPending = false;
+		SQLiteDatabase db = db();
+		db.beginTransaction();
+		try {
+			// Schema changes leave a schema already at their version as it 
+			// is, so those of migrations whose rows are pending are applied
+			// again.
+			for (Migration m: MIGRATIONS) {
+				if (m.version() > version) {
+					m.upgradeSchema(db);
+				}
+			}
+			for (Migration m: MIGRATIONS) {
+				if (m.version() <= version) {
+					continue;
+				}
+				if (m.rewritesRows()) {
+					if (checkpoint(m) < 0) {
+						setCheckpoint(m, 0);
+					}
+					rowsPending = true;
+					break;
+				}
+				setVersion(m.version());
+				version = m.version();
+			}
+			db.setTransactionSuccessful();
+		}
+		finally {
+			db.endTransaction();
+		}
+		Log.i(TAG, "Upgraded schema to version " + CURRENT_VERSION);
+		return rowsPending;
+	}
+	
+	/**
+	 * Migrates the pending rows on a new background thread.
+	 */
+	void start() {
+		Thread t = new Thread(this, TAG);
+		t.setDaemon(true);
+		t.setPriority(Thread.MIN_PRIORITY);
+		t.start();
+	}
+	
+	/**
+	 * Stops the background migration after the chunk being rewritten. It is
+	 * resumed from its checkpoint the next time the store is opened.
+	 */
+	void stop() {
+		stopped = true;
+	}
+	
+	/**
+	 * Migrates the pending rows on the calling thread, for callers that 
+	 * cannot use the rows before. The background thread, if running, stops
+	 * once they are done.
+	 */
+	void finish() {
+		while (migrateNextChunk()) {
+			// Continue.
+		}
+	}
+	
+	public void run() {
+		try {
+			int count = 0;
+			while (migrateNextChunk()) {
+				count += CHUNK_SIZE;
+				if (stopped) {
+					Log.i(TAG, "Migration stopped after " + count);
+					return;
+				}
+				Thread.yield();
+			}
+		}
+		catch (RuntimeException e) {
+			// The checkpoint of the last chunk that was saved is kept.
+			Log.e(TAG, "Migration interrupted: " + e.getLocalizedMessage());
+		}
+	}
+	
+	/**
+	 * Rewrites the next chunk of the migration in progress. Once its rows 
+	 * are done, the schema changes of the later migrations are applied.
+	 * 
+	 * @return if rows are left to migrate.
+	 */
+	private synchronized boolean migrateNextChunk() {
+		Migration m = pendingMigration();
+		if (m == null) {
+			return false;
+		}
+		if (migrateChunk(m, checkpoint(m)) >= 0) {
+			return true;
+		}
+		Log.i(TAG, "Migrated rows to version " + m.version());
+		return upgradeSchema();
+	}
+	
+	/**
+	 * Rewrites one chunk and moves the checkpoint in the same transaction.
+	 * 
+	 * @return the new checkpoint, or -1 if the migration is complete.
+	 */
+	private long migrateChunk(Migration m, long lastId) {
+		SQLiteDatabase db = db();
+		db.beginTransaction();
+		try {
+			long last = m.migrateRows(db, lastId, CHUNK_SIZE);
+			if (last < 0) {
+				store.removeValueForKey(CHECKPOINT_KEY);
+				setVersion(m.version());
+			} else {
+				setCheckpoint(m, last);
+			}
+			db.setTransactionSuccessful();
+			return last;
+		}
+		finally {
+			db.endTransaction();
+		}
+	}
+	
+	/**
+	 * @return the migration whose rows are being rewritten, if any.
+	 */
+	private Migration pendingMigration() {
+		for (Migration m: MIGRATIONS) {
+			if (checkpoint(m) >= 0) {
+				return m;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * @return the id of the last account rewritten by <code>m</code>, or -1
+	 * 			if <code>m</code> is not rewriting rows.
+	 */
+	private long checkpoint(Migration m) {
+		byte[] cp = store.valueForKey(CHECKPOINT_KEY);
+		if (cp == null) {
+			return -1;
+		}
+		ByteBuffer bb = ByteBuffer.wrap(cp);
+		return bb.getInt() == m.version() ? bb.getLong() : -1;
+	}
+	
+	private void setCheckpoint(Migration m, long lastId) {
+		store.setValueForKey(CHECKPOINT_KEY, ByteBuffer.allocate(12)
+				.putInt(m.version()).putLong(lastId).array(), true);
+	}
+	
+	private void setVersion(int version) {
+		store.setValueForKey(VERSION_KEY, 
+				ByteBuffer.allocate(4).putInt(version).array(), true);
+	}
+	
+	private SQLiteDatabase db() {
+		store.checkState();
+		return store.getRawStore();
+	}
+	
+	/**
+	 * Version 1: dates used to be stored as text, in the format of 
+	 * CURRENT_TIMESTAMP, and are now milliseconds since the epoch. The 
+	 * declared type of a column cannot change without copying the table, so
+	 * the milliseconds go to a new column, added with a date of 0, and the 
+	 * text dates are then converted in chunks. Until then the store reads 
+	 * the text date of a row whose new date is 0, and rows saved meanwhile 
+	 * have a new date already.
+	 */
+	private static final class EpochDates extends Migration {
+		private static final String TABLE = DefaultStore.ACC_TABLE;
+		
+		private static final String ADD_DATES = 
+			"ALTER TABLE " + TABLE 
+				+ " ADD COLUMN modification_time INTEGER NOT NULL DEFAULT 0;";
+		
+		private static final String SET_DATES = 
+			"UPDATE " + TABLE + " SET modification_time = " 
+				+ DefaultStore.TEXT_DATE
+				+ " WHERE _id > ? AND _id <= ? AND modification_time = 0;";
+		
+		EpochDates() {
+			super(1);
+		}
+		
+		@Override
+		void upgradeSchema(SQLiteDatabase db) {
+			String sql = tableSchema(db, TABLE);
+			if (sql != null && !sql.contains("modification_time")) {
+				db.execSQL(ADD_DATES);
+			}
+		}
+		
+		@Override
+		boolean rewritesRows() {
+			return true;
+		}
+		
+		@Override
+		long migrateRows(SQLiteDatabase db, long lastId, int limit) {
+			long last = lastOfChunk(db, lastId, limit);
+			if (last >= 0) {
+				updateChunk(db, SET_DATES, lastId, last);
+			}
+			return last;
+		}
+	}
+	
+	/**
+	 * Version 2: each row has a change sequence, set to a new maximum every
+	 * time the row is written, and indexed so the rows changed since a 
+	 * sequence are found without reading the others. The column is added 
+	 * with a sequence of 0, and existing rows then take their id as 
+	 * sequence, in chunks. New sequences are above every id, so rows saved 
+	 * meanwhile keep theirs.
+	 */
+	private static final class ChangeSequences extends Migration {
+		private static final String TABLE = DefaultStore.ACC_TABLE;
+		
+		private static final String ADD_SEQUENCES = 
+			"ALTER TABLE " + TABLE 
+				+ " ADD COLUMN change_seq INTEGER NOT NULL DEFAULT 0;";
+		
+		private static final String CREATE_INDEX = 
+			"CREATE INDEX IF NOT EXISTS " + TABLE + "_change_seq ON " 
+				+ TABLE + " (change_seq);";
+		
+		private static final String SET_SEQUENCES = 
+			"UPDATE " + TABLE + " SET change_seq = _id"
+				+ " WHERE _id > ? AND _id <= ? AND change_seq = 0;";
+		
+		ChangeSequences() {
+			super(2);
+		}
+		
+		@Override
+		void upgradeSchema(SQLiteDatabase db) {
+			String sql = tableSchema(db, TABLE);
+			if (sql != null && !sql.contains("change_seq")) {
+				db.execSQL(ADD_SEQUENCES);
+			}
+			db.execSQL(CREATE_INDEX);
+		}
+		
+		@Override
+		boolean rewritesRows() {
+			return true;
+		}
+		
+		@Override
+		long migrateRows(SQLiteDatabase db, long lastId, int limit) {
+			long last = lastOfChunk(db, lastId, limit);
+			if (last >= 0) {
+				updateChunk(db, SET_SEQUENCES, lastId, last);
+			}
+			return last;
+		}
+	}
+	
+	/**
+	 * Version 3: each account has a uid, its identity across copies of the 
+	 * store, indexed so the accounts of a delta are matched without reading
+	 * the others. The column is added empty and no row is rewritten: rows 
+	 * without a uid take one made from their id, so the copies of a store 
+	 * made before the upgrade still match their accounts. Rows added since 
+	 * have a random uid.
+	 * 
+	 * @see Account#getUid()
+	 */
+	private static final class AccountUids extends Migration {
+		private static final String TABLE = DefaultStore.ACC_TABLE;
+		
+		private static final String ADD_UIDS = 
+			"ALTER TABLE " + TABLE + " ADD COLUMN uid BLOB DEFAULT NULL;";
+		
+		// Rows without a uid are NULL, which a unique index allows many of.
+		private static final String CREATE_INDEX = 
+			"CREATE UNIQUE INDEX IF NOT EXISTS " + TABLE + "_uid ON " 
+				+ TABLE + " (uid);";
+		
+		AccountUids() {
+			super(3);
+		}
+		
+		@Override
+		void upgradeSchema(SQLiteDatabase db) {
+			String sql = tableSchema(db, TABLE);
+			if (sql != null && !sql.contains("uid")) {
+				db.execSQL(ADD_UIDS);
+			}
+			db.execSQL(CREATE_INDEX);
+		}
+	}
+}
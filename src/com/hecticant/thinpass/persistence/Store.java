@@ -16,7 +16,9 @@
 
 package com.hecticant.thinpass.persistence;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 /**
  * This interface defines operations on the application backing store. 
@@ -30,12 +32,82 @@ public interface Store {
 	
 	List<Account> accountsInRange(long offset, long limit);
 	
-	void addAccount(String username, byte[] password, byte[] description);
+	/**
+	 * Returns up to <code>limit</code> accounts with an id greater than 
+	 * <code>lastId</code>, in id order. Paging by the last id seen, unlike 
+	 * paging by offset, does not read the rows of the previous pages.
+	 * 
+	 * @param lastId the id of the last account of the previous page, or 0.
+	 * @param limit
+	 */
+	List<Account> accountsAfter(long lastId, long limit);
+	
+	/**
+	 * Returns an iterator over the accounts with an id greater than 
+	 * <code>lastId</code>, in id order. The iterator must be closed if it is
+	 * not read to the end.
+	 * 
+	 * @param lastId the id after which to start, or 0 for all accounts.
+	 */
+	AccountIterator iterateAccounts(long lastId);
+	
+	/**
+	 * Returns the summaries of up to <code>limit</code> accounts with an id 
+	 * greater than <code>lastId</code>, in id order. The encrypted fields 
+	 * are not read.
+	 */
+	List<AccountSummary> summariesAfter(long lastId, long limit);
+	
+	/**
+	 * Returns up to <code>limit</code> accounts whose change sequence is 
+	 * greater than <code>sequence</code>, in sequence order, with their 
+	 * sequence set. An account changed twice is only returned once, at its 
+	 * last sequence.
+	 * 
+	 * @param sequence the sequence of the last account of the previous 
+	 * 			page, or 0.
+	 * @see Account#getChangeSequence()
+	 */
+	List<Account> changesAfter(long sequence, long limit);
 	
+	/**
+	 * Returns the accounts with the given ids, in id order. Ids that match no
+	 * account are ignored.
+	 */
+	List<Account> accountsWithIds(Collection<Long> ids);
+	
+	/**
+	 * Adds a new account to the store.
+	 * 
+	 * @return the new account, with the id and modification date assigned by
+	 * 			the store, or <code>null</code> if it was not added.
+	 */
+	Account addAccount(String username, byte[] password, byte[] description);
+	
+	/**
+	 * Adds many accounts in a single transaction: either all of them are 
+	 * added or none is. The ids and modification dates of 
+	 * <code>accounts</code> are ignored.
+	 * 
+	 * @return the new accounts, in the iteration order of 
+	 * 			<code>accounts</code>.
+	 */
+	List<Account> addAccounts(Collection<Account> accounts);
+	
+	/**
+	 * Saves the fields of <code>acc</code> to the account with the same id.
+	 * 
+	 * @throws android.database.SQLException if the account cannot be saved.
+	 */
 	void updateAccount(Account acc);
 	
 	byte[] valueForKey(String key);
 	
+	/**
+	 * Returns all the values of the application data store, by key.
+	 */
+	Map<String, byte[]> values();
+	
 	/**
 	 * Adds a new value to the application data store.
 	 * 
@@ -45,6 +117,13 @@ public interface Store {
 	 */
 	void setValueForKey(String key, byte[] value, boolean replace);
 	
+	/**
+	 * Removes a value from the application data store, if it exists.
+	 * 
+	 * @param key
+	 */
+	void removeValueForKey(String key);
+	
 	/**
 	 * Irrevocably destroys the store.
 	 */
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2010 Pedro Fonseca
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hecticant.thinpass.persistence;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The operations {@link StoreController} needs from a store, besides those
+ * of <code>Store</code>: transactions, single accounts and the nodes of the
+ * integrity tree.
+ * <p>
+ * Transactions follow those of <code>SQLiteDatabase</code>. They belong to
+ * the thread that began them and may be nested; the changes are kept only 
+ * if every level was marked successful. Changes made outside a transaction
+ * are committed one by one. Failures to write are thrown as 
+ * <code>SQLException</code>, whatever the backend.
+ * 
+ * @author Pedro Fonseca
+ */
+interface StoreBackend extends Store {
+	
+	List<Account> accounts();
+	
+	/**
+	 * @return the account with id <code>id</code> or <code>null</code>.
+	 */
+	Account account(long id);
+	
+	/**
+	 * Returns the accounts with the given uids, in id order. Uids that match
+	 * no account are ignored.
+	 * 
+	 * @see Account#getUid()
+	 */
+	List<Account> accountsWithUids(Collection<UUID> uids);
+	
+	/**
+	 * Replaces the password and the description of an account, keeping its 
+	 * modification date.
+	 */
+	void reencryptAccount(Account acc);
+	
+	/**
+	 * Saves an account merged from another copy of the store as it is, with 
+	 * its uid and modification date. It replaces the account with its id, 
+	 * or is added under a new id if its id is 0. It gets a new change 
+	 * sequence.
+	 * 
+	 * @return the saved account.
+	 * @see MergeEngine
+	 */
+	Account mergeAccount(Account acc);
+	
+	/**
+	 * Returns the hash of a node of the integrity tree, or <code>null</code> 
+	 * if the node was never set.
+	 * 
+	 * @see MerkleTree
+	 */
+	byte[] treeNode(int level, long index);
+	
+	void setTreeNode(int level, long index, byte[] hash);
+	
+	/**
+	 * @return the level of the root of the integrity tree, or -1 if the tree 
+	 * 			is empty.
+	 */
+	int treeHeight();
+	
+	void clearTree();
+	
+	void beginTransaction();
+	
+	void setTransactionSuccessful();
+	
+	void endTransaction();
+	
+	boolean isOpen();
+	
+	/**
+	 * Reopens the store if it was closed.
+	 * 
+	 * @throws IllegalStateException if the store cannot be opened.
+	 */
+	void checkState();
+	
+	/**
+	 * Sets the key that seals the files of the store, or locks them if 
+	 * <code>key</code> is <code>null</code>. Backends that keep the 
+	 * accounts encrypted field by field ignore it.
+	 * 
+	 * @param key the store key, which is not kept.
+	 * @throws IllegalStateException if the store cannot be unsealed with 
+	 * 			<code>key</code>.
+	 */
+	void setStoreKey(byte[] key);
+}
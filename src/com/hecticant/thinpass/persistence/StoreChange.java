@@ -0,0 +1,60 @@
+/*
+ * Copyright 2010 Pedro Fonseca
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hecticant.thinpass.persistence;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A committed change to a set of accounts.
+ * 
+ * @author Pedro Fonseca
+ * @see StoreListener
+ */
+public final class StoreChange {
+	
+	public enum Type {
+		INSERTED, 
+		UPDATED, 
+		DELETED
+	}
+	
+	private final Type type;
+	private final List<Long> ids;
+	
+	StoreChange(Type type, List<Long> ids) {
+		this.type = type;
+		this.ids = Collections.unmodifiableList(new ArrayList<Long>(ids));
+	}
+	
+	public Type getType() {
+		return type;
+	}
+	
+	/**
+	 * @return the ids of the changed accounts.
+	 */
+	public List<Long> getIds() {
+		return ids;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("<StoreChange,%s,%s>", type, ids);
+	}
+}
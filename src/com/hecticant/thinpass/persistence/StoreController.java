@@ -1,13 +1,32 @@
 package com.hecticant.thinpass.persistence;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
 
+import android.content.Context;
 import android.database.SQLException;
-import android.database.sqlite.SQLiteDatabase;
 import android.util.Log;
 
+import com.hecticant.thinpass.R;
+
 /**
- * A singleton that manages the default store.
+ * A singleton that manages the store. Its backend is chosen by the 
+ * <code>store_backend</code> resource.
  * 
  * @author Pedro Fonseca
  */
@@ -17,20 +36,89 @@ public class StoreController {
 	private static final String CHAL_KEY = "CHALLENGE";
 	private static final String SSAL_KEY = "SECRETSALT";
 	private static final String MSAL_KEY = "MASTERSALT";
+	private static final String KDFP_KEY = "KDFPARAMS";
+	private static final String TREE_KEY = "TREETAG";
+	private static final String TINI_KEY = "TREEINIT";
+	private static final String NKEY_KEY = "NEWSECRETKEY";
+	private static final String NCHA_KEY = "NEWCHALLENGE";
+	private static final String NSAL_KEY = "NEWSECRETSALT";
+	private static final String NWRP_KEY = "NEWKEYWRAP";
+	private static final String RKPT_KEY = "REKEYCHECKPOINT";
+	private static final String CHNG_KEY = "CHANGECOUNT";
+	private static final String CLCK_KEY = "CLOCK";
+	
+	// Values of the store_backend resource.
+	private static final String SQLITE_BACKEND = "sqlite";
+	private static final String LOG_BACKEND = "log";
+	private static final String MEMORY_BACKEND = "memory";
+	
+	private static final String SNAPSHOT_FILE = "PassApp.summaries";
+	
+	/** The number of summaries read per query when rebuilding the snapshot. */
+	private static final int SUMMARY_PAGE = 1024;
+	
+	/** The number of accounts read per query when exporting changes. */
+	private static final int EXPORT_PAGE = 256;
+	
+	/** The number of merged accounts saved per transaction. */
+	private static final int MERGE_BATCH = 128;
 	
 	private static StoreController scSingleton;
 	
-	private Store store;
+	private StoreBackend store;
+	private MerkleTree tree;
+	private byte[] integrityKey;
+	// Counts the keys set, so keys cleared late do not clear a new session.
+	private int keySession;
+	private final File snapshotFile;
+	private volatile SummarySnapshot snapshot;
+	private final List<StoreListener> listeners = 
+		new CopyOnWriteArrayList<StoreListener>();
+	private final WriteBehindQueue writeBehind = new WriteBehindQueue(this);
+	
+	// A copy of the AppData table, loaded on first use and written through.
+	// The version counts writes, so a copy loaded while a write was in 
+	// progress is not kept.
+	private volatile Map<String, byte[]> values;
+	private final Object valuesLock = new Object();
+	private int valuesVersion;
 	
 	private StoreController(Object context) {
-		this.store = new DefaultStore(context);
+		this.store = openBackend(context);
+		this.tree = new MerkleTree(store);
+		this.snapshotFile = new File(((Context) context).getFilesDir(), 
+				SNAPSHOT_FILE);
+		
+		// Accounts changed here must be dated after those merged before.
+		byte[] clock = value(CLCK_KEY);
+		if (clock != null) {
+			HybridClock.observe(ByteBuffer.wrap(clock).getLong());
+		}
+	}
+	
+	private static StoreBackend openBackend(Object context) {
+		if (!(context instanceof Context))
+			throw new IllegalArgumentException();
+		
+		String backend = ((Context) context).getResources()
+			.getString(R.string.store_backend);
+		if (LOG_BACKEND.equals(backend)) {
+			return new LogStore(context);
+		}
+		if (MEMORY_BACKEND.equals(backend)) {
+			return new InMemoryStore(context);
+		}
+		if (!SQLITE_BACKEND.equals(backend)) {
+			Log.w(TAG, "Unknown store backend " + backend);
+		}
+		return new DefaultStore(context);
 	}
 	
 	public static synchronized StoreController getInstance(Object context) {
 		if (scSingleton == null) {
 			scSingleton = new StoreController(context);
 		} else {
-			((DefaultStore) scSingleton.store).checkState();
+			scSingleton.store.checkState();
 		}
 		return scSingleton;
 	}
@@ -49,7 +137,201 @@ public class StoreController {
 	}
 		
 	public List<Account> accounts() {
-		return ((DefaultStore) store).accounts();
+		return store.accounts();
+	}
+	
+	/**
+	 * Returns the next page of accounts after the account with id 
+	 * <code>lastId</code>.
+	 * 
+	 * @see Store#accountsAfter(long, long)
+	 */
+	public List<Account> accountsAfter(long lastId, long limit) {
+		return store.accountsAfter(lastId, limit);
+	}
+	
+	/**
+	 * Returns an iterator over the accounts after the account with id 
+	 * <code>lastId</code>, which must be closed if not read to the end.
+	 * 
+	 * @see Store#iterateAccounts(long)
+	 */
+	public AccountIterator iterateAccounts(long lastId) {
+		return store.iterateAccounts(lastId);
+	}
+	
+	/**
+	 * Returns the next page of account summaries, which do not hold the 
+	 * encrypted fields.
+	 * 
+	 * @see Store#summariesAfter(long, long)
+	 */
+	public List<AccountSummary> summariesAfter(long lastId, long limit) {
+		return store.summariesAfter(lastId, limit);
+	}
+	
+	/**
+	 * Returns the summaries of every account, in id order. They come from
+	 * the summary snapshot when it matches the store, which takes a single
+	 * read of one file; otherwise they are read from the store and the
+	 * snapshot is written again.
+	 * <p>
+	 * Without a snapshot key, that is while the service is locked, the 
+	 * summaries are always read from the store.
+	 * 
+	 * @see #setSnapshotKey(byte[])
+	 */
+	public List<AccountSummary> allSummaries() {
+		SummarySnapshot s = snapshot;
+		long changeCount = changeCount();
+		if (s != null) {
+			List<AccountSummary> summaries = s.read(changeCount);
+			if (summaries != null) {
+				return summaries;
+			}
+		}
+		
+		List<AccountSummary> summaries = new ArrayList<AccountSummary>();
+		long lastId = 0;
+		List<AccountSummary> page;
+		do {
+			page = store.summariesAfter(lastId, SUMMARY_PAGE);
+			summaries.addAll(page);
+			if (!page.isEmpty()) {
+				lastId = page.get(page.size() - 1).getId();
+			}
+		} while (page.size() == SUMMARY_PAGE);
+		
+		// A write that committed meanwhile changed the count, so a snapshot 
+		// that missed it is not read.
+		if (s != null) {
+			s.write(summaries, changeCount);
+		}
+		return summaries;
+	}
+	
+	/**
+	 * Writes the accounts changed after the change sequence 
+	 * <code>since</code> to <code>out</code>, as a delta. Only the changed
+	 * accounts are read, a page at a time, and their encrypted fields are 
+	 * copied as stored. Accounts changed while the delta is written are 
+	 * included if the export has not passed their new sequence yet; 
+	 * otherwise they are in the next delta.
+	 * 
+	 * @param since the sequence returned by the previous export, or 0 for 
+	 * 			every account.
+	 * @return the sequence to export from next time.
+	 * 
+	 * @see DeltaWriter
+	 * @see Account#getChangeSequence()
+	 */
+	public long exportChanges(long since, OutputStream out) 
+		throws IOException 
+	{
+		DeltaWriter writer = new DeltaWriter(out, keyId(), since);
+		long last = since;
+		List<Account> page;
+		do {
+			page = store.changesAfter(last, EXPORT_PAGE);
+			for (Account a: page) {
+				writer.write(a);
+				last = a.getChangeSequence();
+			}
+		} while (page.size() == EXPORT_PAGE);
+		writer.finish(last);
+		return last;
+	}
+	
+	/**
+	 * Merges a delta written by {@link #exportChanges(long, OutputStream)} 
+	 * on another copy of this store, which must share its key. A remote 
+	 * account replaces the local one with the same uid if its version is 
+	 * greater, or is added under a new id if there is none, so copies that
+	 * exchange deltas converge. Only the accounts in the delta are 
+	 * read, and they are saved {@link #MERGE_BATCH} per transaction, each 
+	 * batch updating the integrity index; a delta that fails midway can be
+	 * imported again.
+	 * 
+	 * @return the sequence to export from on the other copy next time.
+	 * @throws IOException if the delta cannot be read or saved, or was 
+	 * 			written with another key. The batches saved before are kept.
+	 * @throws IllegalStateException if no integrity key is set, since the 
+	 * 			merged accounts could not be recorded in the integrity index.
+	 * 
+	 * @see MergeEngine
+	 */
+	public long importChanges(InputStream in) throws IOException {
+		checkIntegrityKey();
+		DeltaReader reader = new DeltaReader(in, keyId());
+		List<Account> batch = new ArrayList<Account>(MERGE_BATCH);
+		int merged = 0;
+		Account a;
+		while ((a = reader.next()) != null) {
+			batch.add(a);
+			if (batch.size() == MERGE_BATCH) {
+				merged += mergeBatch(batch);
+				batch.clear();
+			}
+		}
+		if (!batch.isEmpty()) {
+			merged += mergeBatch(batch);
+		}
+		Log.i(TAG, String.format("Merged %d accounts after sequence %d", 
+				merged, reader.since()));
+		return reader.lastSequence();
+	}
+	
+	/**
+	 * Sets the key of the summary snapshot, or clears it if 
+	 * <code>key</code> is <code>null</code>. A snapshot written with 
+	 * another key is rebuilt on the next read. The key also seals the store, 
+	 * if its backend seals its files.
+	 * 
+	 * @param key the snapshot key, which is copied.
+	 * 
+	 * @see #allSummaries()
+	 * @see StoreBackend#setStoreKey(byte[])
+	 */
+	public synchronized void setSnapshotKey(byte[] key) {
+		if (snapshot != null) {
+			snapshot.destroy();
+			snapshot = null;
+		}
+		try {
+			store.setStoreKey(key);
+		}
+		catch (IllegalStateException e) {
+			Log.e(TAG, "Cannot unseal the store", e);
+		}
+		if (key != null) {
+			snapshot = new SummarySnapshot(snapshotFile, key);
+			++keySession;
+		}
+	}
+	
+	/**
+	 * Registers <code>listener</code> to be told of every committed change
+	 * to the accounts. Re-encrypting the accounts with a new key is not a 
+	 * change, as their clear text stays the same.
+	 */
+	public void addStoreListener(StoreListener listener) {
+		if (listener == null) {
+			throw new NullPointerException();
+		}
+		listeners.add(listener);
+	}
+	
+	public void removeStoreListener(StoreListener listener) {
+		listeners.remove(listener);
+	}
+	
+	/**
+	 * Returns the complete accounts with the given ids, in id order.
+	 * 
+	 * @see Store#accountsWithIds(Collection)
+	 */
+	public List<Account> accountsWithIds(Collection<Long> ids) {
+		return store.accountsWithIds(ids);
 	}
 	
 	/**
@@ -68,64 +350,532 @@ public class StoreController {
 	 * @see Store
 	 * @see Account
 	 */
-	public Account addAccount(String username, byte[] password, 
+	public synchronized Account addAccount(String username, byte[] password, 
 			byte[] description) 
 	{
 		if (password == null || description == null) {
 			throw new NullPointerException();
 		}
 		
-		long count;
+		Account a = null;
+		long previous = -1;
+		store.beginTransaction();
 		try {
-			count = store.countAccounts();
-			store.addAccount(username, password, description);
+			a = store.addAccount(username, password, description);
+			if (a != null) {
+				updateTree(Collections.singletonList(a));
+				previous = countChange();
+				store.setTransactionSuccessful();
+			}
 		} 
 		catch (SQLException e) {
+			invalidateValues();
 			return null;
 		}
-			
-		Account a = null;
-		List<Account> list = accountsInRange(count, 1);
-		try {
-			a = list.get(0);
+		finally {
+			store.endTransaction();
+		}
+		if (a != null) {
+			List<Account> added = Collections.singletonList(a);
+			updateSnapshot(added, previous);
+			publish(StoreChange.Type.INSERTED, added);
 		}
-		catch (IndexOutOfBoundsException e) {}
 		return a;
 	}
 	
+	/**
+	 * Adds many accounts in a single transaction, for instance when 
+	 * importing them. Either all accounts are added or none is. As with
+	 * {@link #addAccount(String, byte[], byte[])}, sensitive fields must 
+	 * already be encrypted.
+	 * 
+	 * @param accounts the accounts to add. Their ids and modification dates
+	 * 			are ignored.
+	 * @return the new accounts in the iteration order of 
+	 * 			<code>accounts</code>, or <code>null</code> if they were not 
+	 * 			added.
+	 */
+	public synchronized List<Account> addAccounts(
+			Collection<Account> accounts) 
+	{
+		for (Account a: accounts) {
+			if (a.getPassword() == null || a.getDescription() == null) {
+				throw new NullPointerException();
+			}
+		}
+		
+		List<Account> added = null;
+		long previous;
+		store.beginTransaction();
+		try {
+			added = store.addAccounts(accounts);
+			updateTree(added);
+			previous = countChange();
+			store.setTransactionSuccessful();
+		} 
+		catch (SQLException e) {
+			Log.e(TAG, e.getLocalizedMessage());
+			invalidateValues();
+			return null;
+		}
+		finally {
+			store.endTransaction();
+		}
+		updateSnapshot(added, previous);
+		publish(StoreChange.Type.INSERTED, added);
+		return added;
+	}
+	
+	/**
+	 * Adds an account on the background writer, without waiting for the 
+	 * disk. Accounts added or updated meanwhile are saved in the same 
+	 * transaction. Writes submitted through the writer are applied in 
+	 * order, but not in order with the other writes.
+	 * 
+	 * @return a future for the new account, which fails with the 
+	 * 			<code>SQLException</code> of the transaction if the account 
+	 * 			was not added. It cannot be cancelled.
+	 * 
+	 * @see #addAccount(String, byte[], byte[])
+	 */
+	public Future<Account> addAccountLater(String username, byte[] password,
+			byte[] description)
+	{
+		if (password == null || description == null) {
+			throw new NullPointerException();
+		}
+		return writeBehind.add(username, password, description);
+	}
+	
+	/**
+	 * Updates an account on the background writer, as 
+	 * {@link #addAccountLater(String, byte[], byte[])} adds one. Pending 
+	 * updates of the same account are replaced by this one, and their 
+	 * futures complete with it.
+	 * 
+	 * @return a future for the account as saved.
+	 * 
+	 * @see #updateAccount(Account)
+	 */
+	public Future<Account> updateAccountLater(Account acc) {
+		if (acc == null) {
+			throw new NullPointerException();
+		}
+		return writeBehind.update(acc);
+	}
+	
+	/**
+	 * Adds and updates the accounts of a group of the background writer, in
+	 * one transaction.
+	 * 
+	 * @return the added accounts, then the updated ones, as saved.
+	 * @throws SQLException if the group was rolled back.
+	 */
+	synchronized List<Account> writeGroup(List<Account> added, 
+			List<Account> updated) 
+	{
+		List<Account> inserted = Collections.emptyList();
+		long previous;
+		store.beginTransaction();
+		try {
+			if (!added.isEmpty()) {
+				inserted = store.addAccounts(added);
+			}
+			for (Account a: updated) {
+				store.updateAccount(a);
+			}
+			List<Account> changed = new ArrayList<Account>(inserted);
+			changed.addAll(updated);
+			updateTree(changed);
+			previous = countChange();
+			store.setTransactionSuccessful();
+		} 
+		catch (SQLException e) {
+			invalidateValues();
+			throw e;
+		}
+		finally {
+			store.endTransaction();
+		}
+		
+		// The store sets the modification dates.
+		List<Account> reread = store.accountsWithIds(idsOf(updated));
+		List<Account> changed = new ArrayList<Account>(inserted);
+		changed.addAll(reread);
+		updateSnapshot(changed, previous);
+		publish(StoreChange.Type.INSERTED, inserted);
+		publish(StoreChange.Type.UPDATED, reread);
+		
+		Map<Long, Account> byId = new HashMap<Long, Account>();
+		for (Account a: reread) {
+			byId.put(a.getId(), a);
+		}
+		List<Account> saved = new ArrayList<Account>(inserted);
+		for (Account a: updated) {
+			saved.add(byId.get(a.getId()));
+		}
+		return saved;
+	}
+	
 	/** 
+	 * Saves the fields of <code>acc</code> to the account with the same id
+	 * and updates the integrity index.
 	 * 
 	 * @param acc
 	 */
-	public void updateAccount(Account acc) {
+	public synchronized void updateAccount(Account acc) {
 		if (acc == null) {
 			throw new NullPointerException();
 		}
 		
+		long previous;
+		store.beginTransaction();
 		try {
 			store.updateAccount(acc);
+			updateTree(Collections.singletonList(acc));
+			previous = countChange();
+			store.setTransactionSuccessful();
+		} 
+		catch (SQLException e) {
+			Log.e(TAG, "Cannot update the account: " + e.getLocalizedMessage());
+			invalidateValues();
+			return;
+		}
+		finally {
+			store.endTransaction();
+		}
+		// The store sets the modification date.
+		List<Account> updated = store.accountsWithIds(
+				Collections.singletonList(acc.getId()));
+		updateSnapshot(updated, previous);
+		publish(StoreChange.Type.UPDATED, updated);
+	}
+	
+	/**
+	 * Sets the key that authenticates the integrity index, or clears it if
+	 * <code>key</code> is <code>null</code>. Stores get their index when 
+	 * their key is stored; a store that predates the index gets it the first
+	 * time a key is set. After that a missing tag fails verification, and 
+	 * the index is never built again from the accounts it should check.
+	 * <p>
+	 * The index is a hash tree over the stored accounts. Its root is
+	 * authenticated with the key, so changes to the store made without the 
+	 * key, such as rows added, removed or swapped, are detected when the 
+	 * accounts are checked against it.
+	 * 
+	 * @param key the integrity key, which is copied.
+	 * 
+	 * @see #verifyIntegrity()
+	 * @see #verifyAccounts(Collection, List)
+	 */
+	public synchronized void setIntegrityKey(byte[] key) {
+		if (integrityKey != null) {
+			Arrays.fill(integrityKey, (byte) 0);
+			integrityKey = null;
+		}
+		if (key == null) {
+			return;
+		}
+		integrityKey = key.clone();
+		++keySession;
+		
+		if (value(TINI_KEY) != null) {
+			// A missing tag is not replaced, so it fails verification.
+			return;
+		}
+		// The store predates the integrity index, which is built once.
+		store.beginTransaction();
+		try {
+			if (value(TREE_KEY) == null) {
+				buildTree(integrityKey);
+			}
+			setValue(TINI_KEY, new byte[] { 1 }, true);
+			store.setTransactionSuccessful();
 		} 
-		catch (SQLException e) {}
+		catch (Exception e) {
+			Log.e(TAG, "Cannot build the integrity index", e);
+			invalidateValues();
+		}
+		finally {
+			store.endTransaction();
+		}
+	}
+	
+	/* Must be called within a transaction. */
+	private void buildTree(byte[] key) {
+		AccountIterator it = store.iterateAccounts(0);
+		try {
+			tree.rebuild(it);
+			saveTreeTag(key);
+		}
+		finally {
+			it.close();
+		}
+	}
+	
+	/**
+	 * Checks the root of the integrity index against its tag, without 
+	 * reading any account. This detects changes to the index, not to the 
+	 * accounts.
+	 * 
+	 * @return if the index is intact, or <code>false</code> if no integrity 
+	 * 			key is set.
+	 */
+	public synchronized boolean verifyIntegrity() {
+		if (integrityKey == null) {
+			return false;
+		}
+		return checkRoot(tree.root());
+	}
+	
+	/**
+	 * Checks that <code>accounts</code>, read for <code>ids</code>, are the
+	 * ones recorded in the integrity index. Ids without an account must be 
+	 * missing from the index too, so rows removed from the store are 
+	 * detected as well as rows changed or swapped. Only the nodes on the 
+	 * paths of these ids are read, so checking a page of accounts is cheap.
+	 * <p>
+	 * Writes hold the lock of this controller, so callers that read the 
+	 * accounts while the store may be written should hold it across the 
+	 * read and the check.
+	 * 
+	 * @return if every account matches, or <code>false</code> if no integrity 
+	 * 			key is set.
+	 */
+	public synchronized boolean verifyAccounts(Collection<Long> ids, 
+			List<Account> accounts) 
+	{
+		if (integrityKey == null) {
+			return false;
+		}
+		Map<Long, byte[]> leaves = new HashMap<Long, byte[]>();
+		for (Long id: ids) {
+			leaves.put(id, null);
+		}
+		for (Account a: accounts) {
+			leaves.put(a.getId(), MerkleTree.leafHash(a));
+		}
+		byte[] root = tree.rootWith(leaves);
+		return root != null && checkRoot(root);
+	}
+	
+	private boolean checkRoot(byte[] root) {
+		byte[] tag = value(TREE_KEY);
+		if (tag == null) {
+			return false;
+		}
+		try {
+			return MessageDigest.isEqual(tag, 
+					MerkleTree.tag(integrityKey, tree.height(), root));
+		}
+		catch (GeneralSecurityException e) {
+			Log.e(TAG, e.getLocalizedMessage());
+			return false;
+		}
+	}
+	
+	/**
+	 * Records <code>accounts</code> in the integrity index. The new root is
+	 * built from the stored nodes on their paths, so those are checked 
+	 * against the tag first: if they do not match, the index changed 
+	 * outside the store and the old tag is kept, so the index keeps failing
+	 * verification instead of authenticating the change. Must be called 
+	 * within a transaction.
+	 * 
+	 * @throws SQLException if no integrity key is set, since the tag could 
+	 * 			not follow the index.
+	 */
+	private synchronized void updateTree(Collection<Account> accounts) {
+		if (integrityKey == null) {
+			throw new SQLException("Account changed without an integrity key");
+		}
+		boolean intact = checkRoot(tree.root()) 
+			&& checkRoot(tree.rootOfPaths(idsOf(accounts)));
+		for (Account a: accounts) {
+			tree.update(a.getId(), MerkleTree.leafHash(a));
+		}
+		if (intact) {
+			saveTreeTag(integrityKey);
+		} else {
+			Log.w(TAG, "Integrity index not verified; its tag is kept");
+		}
+	}
+	
+	/**
+	 * Counts a change to the accounts, which invalidates the summary 
+	 * snapshot unless it is updated with the change. Must be called within
+	 * the transaction of the change.
+	 * 
+	 * @return the previous count.
+	 */
+	private long countChange() {
+		long previous = changeCount();
+		setValue(CHNG_KEY, encodeId(previous + 1), true);
+		return previous;
+	}
+	
+	private long changeCount() {
+		byte[] count = value(CHNG_KEY);
+		return count != null ? ByteBuffer.wrap(count).getLong() : 0;
+	}
+	
+	/* Must be called after the change is committed. */
+	private void updateSnapshot(Collection<Account> accounts, long previous) {
+		SummarySnapshot s = snapshot;
+		if (s == null) {
+			// Without the key the snapshot cannot follow; the count no 
+			// longer matches and it is rebuilt.
+			return;
+		}
+		List<AccountSummary> changed = 
+			new ArrayList<AccountSummary>(accounts.size());
+		for (Account a: accounts) {
+			changed.add(new AccountSummary(a.getId(), a.getUsername(), 
+					a.getModificationTime()));
+		}
+		s.append(changed, previous, previous + 1);
+	}
+	
+	/**
+	 * Saves the accounts of <code>remote</code> that win over the local 
+	 * ones, in one transaction.
+	 * 
+	 * @return the number of accounts saved.
+	 */
+	private synchronized int mergeBatch(List<Account> remote) 
+		throws IOException 
+	{
+		// The session may have been locked since the previous batch.
+		checkIntegrityKey();
+		List<Account> winners;
+		List<Account> merged = new ArrayList<Account>();
+		List<Account> inserted = new ArrayList<Account>();
+		List<Account> updated = new ArrayList<Account>();
+		long previous = -1;
+		store.beginTransaction();
+		try {
+			// Decided in the transaction, against the accounts it replaces.
+			winners = MergeEngine.winners(remote, store);
+			if (!winners.isEmpty()) {
+				for (Account w: winners) {
+					// Remote accounts with no local version get an id here.
+					Account m = store.mergeAccount(w);
+					merged.add(m);
+					(w.getId() == 0 ? inserted : updated).add(m);
+					HybridClock.observe(w.getModificationTime());
+				}
+				updateTree(merged);
+				previous = countChange();
+				setValue(CLCK_KEY, encodeId(HybridClock.last()), true);
+			}
+			store.setTransactionSuccessful();
+		}
+		catch (SQLException e) {
+			Log.e(TAG, e.getLocalizedMessage());
+			invalidateValues();
+			throw new IOException("Cannot save the merged accounts");
+		}
+		finally {
+			store.endTransaction();
+		}
+		if (!merged.isEmpty()) {
+			updateSnapshot(merged, previous);
+			publish(StoreChange.Type.INSERTED, inserted);
+			publish(StoreChange.Type.UPDATED, updated);
+		}
+		return merged.size();
+	}
+	
+	private synchronized void checkIntegrityKey() {
+		if (integrityKey == null) {
+			throw new IllegalStateException("The store is locked");
+		}
+	}
+	
+	/**
+	 * @return the id of the store key, written in deltas so that a delta is
+	 * 			only merged by copies that share the key.
+	 * @throws IllegalStateException if the store has no key, or its 
+	 * 			accounts are being encrypted with a new one, in which case 
+	 * 			they are under two keys.
+	 */
+	private byte[] keyId() {
+		byte[] challenge = challenge();
+		if (challenge == null) {
+			throw new IllegalStateException("The store has no key");
+		}
+		if (value(NCHA_KEY) != null) {
+			throw new IllegalStateException("The store key is being replaced");
+		}
+		return DeltaWriter.keyId(challenge);
+	}
+	
+	private static List<Long> idsOf(Collection<Account> accounts) {
+		List<Long> ids = new ArrayList<Long>(accounts.size());
+		for (Account a: accounts) {
+			ids.add(a.getId());
+		}
+		return ids;
+	}
+	
+	/* Must be called after the change is committed. */
+	private void publish(StoreChange.Type type, Collection<Account> accounts) {
+		if (listeners.isEmpty() || accounts.isEmpty()) {
+			return;
+		}
+		StoreChange change = new StoreChange(type, idsOf(accounts));
+		for (StoreListener l: listeners) {
+			try {
+				l.storeChanged(change);
+			}
+			catch (RuntimeException e) {
+				Log.e(TAG, "Store listener failed", e);
+			}
+		}
+	}
+	
+	private void saveTreeTag(byte[] key) {
+		try {
+			setValue(TREE_KEY, MerkleTree.tag(key, 
+					tree.height(), tree.root()), true);
+		}
+		catch (GeneralSecurityException e) {
+			throw new SQLException(e.getLocalizedMessage());
+		}
 	}
 	
 	public byte[] key() {
-		return store.valueForKey(SKEY_KEY);
+		return value(SKEY_KEY);
 	}
 	
 	public byte[] passwordSalt() {
-		return store.valueForKey(MSAL_KEY);
+		return value(MSAL_KEY);
 	}
 	
 	public void setPasswordSalt(byte[] salt) {
-		store.setValueForKey(MSAL_KEY, salt, true);
+		setValue(MSAL_KEY, salt, true);
+	}
+	
+	/**
+	 * Returns the encoded parameters used to derive the master key from the
+	 * password, or <code>null</code> if the master key predates them. The
+	 * parameters name the key derivation function and its time cost, memory
+	 * cost and parallelism.
+	 */
+	public byte[] kdfParameters() {
+		return value(KDFP_KEY);
+	}
+	
+	public void setKdfParameters(byte[] params) {
+		setValue(KDFP_KEY, params, true);
 	}
 	
 	public byte[] keySalt() {
-		return store.valueForKey(SSAL_KEY);
+		return value(SSAL_KEY);
 	}
 	
 	public byte[] challenge() {
-		return store.valueForKey(CHAL_KEY);
+		return value(CHAL_KEY);
 	}
 	
 	/**
@@ -139,7 +889,7 @@ public class StoreController {
 	 * 
 	 * @return
 	 * 
-	 * @see #storeKey(byte[], byte[], byte[])
+	 * @see #storeKey(byte[], byte[], byte[], byte[])
 	 * @see #passwordSalt()
 	 * @see #challenge()
 	 */
@@ -162,32 +912,39 @@ public class StoreController {
 	 * @param salt the salt used when generating <code>check</check>
 	 * @param check a cryptographic checksum to verify if the 
 	 * 			<code>encryptedKey</code> is correctly decrypted. 
+	 * @param integrityKey the integrity key derived from the new key. The 
+	 * 			integrity index is built and tagged with it in the same 
+	 * 			transaction, so every store with a key has one.
 	 * @return if the new key was successfully stored.
 	 */
-	public boolean storeKey(byte[] encryptedKey, byte[] salt, byte[] check) {
-		if (encryptedKey == null || check == null) {
+	public synchronized boolean storeKey(byte[] encryptedKey, byte[] salt, 
+			byte[] check, byte[] integrityKey) 
+	{
+		if (encryptedKey == null || check == null || integrityKey == null) {
 			return false;
 		}
 		
-		SQLiteDatabase db = ((DefaultStore) store).getRawStore();
-		if (!db.isOpen()) {
+		if (!store.isOpen()) {
 			return false;
 		}
 		
 		boolean didSet = true;
-		db.beginTransaction();
+		store.beginTransaction();
 		try {	
-			store.setValueForKey(SKEY_KEY, encryptedKey, false);
-			store.setValueForKey(CHAL_KEY, check, false);
-			store.setValueForKey(SSAL_KEY, salt, false); 
-			db.setTransactionSuccessful();
+			setValue(SKEY_KEY, encryptedKey, false);
+			setValue(CHAL_KEY, check, false);
+			setValue(SSAL_KEY, salt, false); 
+			buildTree(integrityKey);
+			setValue(TINI_KEY, new byte[] { 1 }, true);
+			store.setTransactionSuccessful();
 		} 
 		catch (Exception e) {
 			Log.e(TAG, e.getLocalizedMessage());
+			invalidateValues();
 			didSet = false;
 		}
 		finally {
-			db.endTransaction();
+			store.endTransaction();
 		}
 		
 		return didSet;
@@ -203,20 +960,351 @@ public class StoreController {
 		if (encryptedKey == null) {
 			throw new NullPointerException();
 		}
-		store.setValueForKey(SKEY_KEY, encryptedKey, true);
+		setValue(SKEY_KEY, encryptedKey, true);
+	}
+	
+	/**
+	 * Replaces the master key protecting the stored key, for instance when
+	 * the key derivation parameters are upgraded. The encrypted key, the
+	 * password salt and the key derivation parameters are replaced in a
+	 * single transaction. The key itself must remain unchanged.
+	 * 
+	 * @param encryptedKey the key encrypted with the new master key.
+	 * @param passwordSalt the salt used to derive the new master key.
+	 * @param kdfParameters the encoded parameters used to derive the new 
+	 * 			master key.
+	 * @return if the master key was replaced.
+	 */
+	public boolean updateMasterKey(byte[] encryptedKey, byte[] passwordSalt,
+			byte[] kdfParameters) 
+	{
+		if (encryptedKey == null || passwordSalt == null 
+				|| kdfParameters == null) {
+			throw new NullPointerException();
+		}
+		
+		if (!store.isOpen()) {
+			return false;
+		}
+		
+		boolean didSet = true;
+		store.beginTransaction();
+		try {	
+			setValue(SKEY_KEY, encryptedKey, true);
+			setValue(MSAL_KEY, passwordSalt, true);
+			setValue(KDFP_KEY, kdfParameters, true); 
+			store.setTransactionSuccessful();
+		} 
+		catch (Exception e) {
+			Log.e(TAG, e.getLocalizedMessage());
+			invalidateValues();
+			didSet = false;
+		}
+		finally {
+			store.endTransaction();
+		}
+		
+		return didSet;
+	}
+	
+	/**
+	 * Starts replacing the key that encrypts the accounts. The new key is 
+	 * saved next to the current one, which stays in use until 
+	 * {@link #commitKeyReplacement(byte[], byte[])} swaps them. Meanwhile the 
+	 * accounts are re-encrypted in batches with 
+	 * {@link #commitReplacementBatch(List, List)}, and the id of the last 
+	 * account re-encrypted is saved with each batch, so that an interrupted 
+	 * replacement resumes where it stopped.
+	 * 
+	 * @param encryptedKey the new key encrypted with the master key.
+	 * @param salt the salt used when generating <code>check</code>.
+	 * @param check a cryptographic checksum of the new key.
+	 * @param wrappedKey the new key encrypted with the current key, so the 
+	 * 			replacement can be resumed without the password.
+	 * @return if the replacement was started; <code>false</code> if another 
+	 * 			one is in progress.
+	 * 
+	 * @see #storeKey(byte[], byte[], byte[], byte[])
+	 */
+	public synchronized boolean replaceKey(byte[] encryptedKey, byte[] salt, 
+			byte[] check, byte[] wrappedKey) 
+	{
+		if (encryptedKey == null || check == null || wrappedKey == null) {
+			return false;
+		}
+		if (replacementKey() != null) {
+			return false;
+		}
+		
+		if (!store.isOpen()) {
+			return false;
+		}
+		
+		boolean didSet = true;
+		store.beginTransaction();
+		try {	
+			setValue(NKEY_KEY, encryptedKey, true);
+			setValue(NCHA_KEY, check, true);
+			setValue(NSAL_KEY, salt, true);
+			setValue(NWRP_KEY, wrappedKey, true);
+			setValue(RKPT_KEY, encodeId(0), true);
+			store.setTransactionSuccessful();
+		} 
+		catch (Exception e) {
+			Log.e(TAG, e.getLocalizedMessage());
+			invalidateValues();
+			didSet = false;
+		}
+		finally {
+			store.endTransaction();
+		}
+		
+		return didSet;
+	}
+	
+	/**
+	 * Returns the new key of an unfinished key replacement, encrypted with 
+	 * the current key, or <code>null</code> if no replacement is in 
+	 * progress.
+	 * 
+	 * @see #replaceKey(byte[], byte[], byte[], byte[])
+	 */
+	public byte[] replacementKey() {
+		return value(NWRP_KEY);
+	}
+	
+	/**
+	 * Returns the next <code>limit</code> accounts that were not yet 
+	 * re-encrypted by the key replacement in progress.
+	 */
+	public synchronized List<Account> replacementBatch(int limit) {
+		byte[] checkpoint = value(RKPT_KEY);
+		long lastId = checkpoint != null 
+			? ByteBuffer.wrap(checkpoint).getLong() : 0;
+		return store.accountsAfter(lastId, limit);
+	}
+	
+	/**
+	 * Saves a batch of re-encrypted accounts and moves the checkpoint past 
+	 * it, in a single transaction. An account that changed since it was read
+	 * is not overwritten, since it was already saved with the new key.
+	 * 
+	 * @param read the accounts returned by {@link #replacementBatch(int)}.
+	 * @param reencrypted the same accounts, in the same order, encrypted 
+	 * 			with the new key.
+	 * @return if the batch was saved; <code>false</code> if it failed or if 
+	 * 			the integrity key was cleared because the session was locked.
+	 */
+	public synchronized boolean commitReplacementBatch(List<Account> read,
+			List<Account> reencrypted) 
+	{
+		if (read.size() != reencrypted.size()) {
+			throw new IllegalArgumentException();
+		}
+		if (integrityKey == null || read.isEmpty()) {
+			return false;
+		}
+		
+		boolean didSet = true;
+		store.beginTransaction();
+		try {
+			List<Account> changed = new ArrayList<Account>(read.size());
+			for (int i = 0; i < read.size(); ++i) {
+				Account before = read.get(i);
+				Account current = store.account(before.getId());
+				if (current == null || !sameFields(before, current)) {
+					continue;
+				}
+				Account after = reencrypted.get(i);
+				store.reencryptAccount(after);
+				changed.add(after);
+			}
+			updateTree(changed);
+			long lastId = read.get(read.size() - 1).getId();
+			setValue(RKPT_KEY, encodeId(lastId), true);
+			store.setTransactionSuccessful();
+		}
+		catch (Exception e) {
+			Log.e(TAG, e.getLocalizedMessage());
+			invalidateValues();
+			didSet = false;
+		}
+		finally {
+			store.endTransaction();
+		}
+		
+		return didSet;
+	}
+	
+	/**
+	 * Finishes a key replacement after every account was re-encrypted: the 
+	 * new key replaces the current one and the replacement state is removed, 
+	 * in a single transaction. The integrity index is authenticated again 
+	 * with <code>newIntegrityKey</code>, unless it did not verify with the 
+	 * current key, and the store is sealed with <code>newSnapshotKey</code>.
+	 * 
+	 * @param newIntegrityKey the integrity key derived from the new key.
+	 * @param newSnapshotKey the snapshot key derived from the new key.
+	 * @return if the keys were swapped.
+	 */
+	public synchronized boolean commitKeyReplacement(byte[] newIntegrityKey,
+			byte[] newSnapshotKey)
+	{
+		byte[] encryptedKey = value(NKEY_KEY);
+		if (encryptedKey == null || integrityKey == null) {
+			return false;
+		}
+		
+		boolean intact = verifyIntegrity();
+		if (!intact) {
+			Log.w(TAG, "Integrity index not verified before replacing the key");
+		}
+		
+		boolean didSet = true;
+		store.beginTransaction();
+		try {
+			setValue(SKEY_KEY, encryptedKey, true);
+			setValue(CHAL_KEY, value(NCHA_KEY), true);
+			setValue(SSAL_KEY, value(NSAL_KEY), true);
+			removeValue(NKEY_KEY);
+			removeValue(NCHA_KEY);
+			removeValue(NSAL_KEY);
+			removeValue(NWRP_KEY);
+			removeValue(RKPT_KEY);
+			if (intact) {
+				setValue(TREE_KEY, MerkleTree.tag(newIntegrityKey,
+						tree.height(), tree.root()), true);
+			}
+			store.setStoreKey(newSnapshotKey);
+			store.setTransactionSuccessful();
+		}
+		catch (Exception e) {
+			Log.e(TAG, e.getLocalizedMessage());
+			invalidateValues();
+			didSet = false;
+		}
+		finally {
+			store.endTransaction();
+		}
+		
+		if (didSet) {
+			Arrays.fill(integrityKey, (byte) 0);
+			integrityKey = newIntegrityKey.clone();
+		}
+		return didSet;
+	}
+	
+	private static boolean sameFields(Account a, Account b) {
+		return Arrays.equals(a.getPassword(), b.getPassword())
+			&& Arrays.equals(a.getDescription(), b.getDescription());
 	}
 	
-	/* (non-javadoc) @see #storeKey(byte[], byte[], byte[]) */
-	public boolean replaceKey(byte[] encryptedKey, byte[] salt, byte[] check) {
-		/* TO BE IMPLEMENTED */
-		return false;
+	private static byte[] encodeId(long id) {
+		return ByteBuffer.allocate(8).putLong(id).array();
 	}
 	
 	public void obliterateStore() {
 		store.obliterate();
+		snapshotFile.delete();
+		invalidateValues();
+	}
+	
+	/**
+	 * Returns a copy of a value of the application data, from the cache.
+	 */
+	private byte[] value(String key) {
+		byte[] value = values().get(key);
+		return value != null ? value.clone() : null;
+	}
+	
+	private void setValue(String key, byte[] value, boolean replace) {
+		if (value == null) {
+			Log.d(TAG, "Tried to insert null value for " + key);
+			return;
+		}
+		store.setValueForKey(key, value, replace);
+		synchronized (valuesLock) {
+			++valuesVersion;
+			Map<String, byte[]> v = values;
+			if (v != null && (replace || !v.containsKey(key))) {
+				v.put(key, value.clone());
+			}
+		}
+	}
+	
+	private void removeValue(String key) {
+		store.removeValueForKey(key);
+		synchronized (valuesLock) {
+			++valuesVersion;
+			Map<String, byte[]> v = values;
+			if (v != null) {
+				v.remove(key);
+			}
+		}
+	}
+	
+	/**
+	 * Discards the cache, for instance when a transaction that wrote to it 
+	 * is rolled back. It is loaded again on the next read.
+	 */
+	private void invalidateValues() {
+		synchronized (valuesLock) {
+			++valuesVersion;
+			values = null;
+		}
+	}
+	
+	private Map<String, byte[]> values() {
+		Map<String, byte[]> v = values;
+		if (v != null) {
+			return v;
+		}
+		
+		// The table is read without holding the lock, which may be waiting
+		// for a transaction that writes to the cache.
+		int version;
+		synchronized (valuesLock) {
+			version = valuesVersion;
+		}
+		Map<String, byte[]> loaded = 
+			new ConcurrentHashMap<String, byte[]>(store.values());
+		synchronized (valuesLock) {
+			if (values == null && version == valuesVersion) {
+				values = loaded;
+			}
+			return values != null ? values : loaded;
+		}
+	}
+	
+	/**
+	 * Clears the integrity and snapshot keys once the writes submitted to 
+	 * the background writer are saved, so they still update the tag of the
+	 * index, without waiting for them. Keys set again in the meantime, by 
+	 * a new session, are kept.
+	 */
+	public void clearKeysAfterWrites() {
+		final int session;
+		synchronized (this) {
+			session = keySession;
+		}
+		writeBehind.whenIdle(new Runnable() {
+			public void run() {
+				synchronized (StoreController.this) {
+					if (keySession == session) {
+						setIntegrityKey(null);
+						setSnapshotKey(null);
+					}
+				}
+			}
+		});
 	}
 	
+	/**
+	 * Closes the store, once the pending writes of the background writer 
+	 * are saved.
+	 */
 	public void close() {
+		writeBehind.flush();
 		store.close();
 	}
 }
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2010 Pedro Fonseca
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hecticant.thinpass.persistence;
+
+/**
+ * Receives the changes to the accounts, so views of the store can be 
+ * updated without reading it again.
+ * <p>
+ * Listeners are called on the thread that made the change, after it is 
+ * committed and while the {@link StoreController} is locked, so they must
+ * return quickly and must not write to the store.
+ * 
+ * @author Pedro Fonseca
+ * @see StoreController#addStoreListener(StoreListener)
+ */
+public interface StoreListener {
+	
+	void storeChanged(StoreChange change);
+}
@@ -0,0 +1,412 @@
+/*
+ * Copyright 2010 Pedro Fonseca
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hecticant.thinpass.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+
+import com.hecticant.thinpass.security.CryptContext;
+
+/**
+ * A file with the summaries of every account, so the list of accounts can
+ * be shown without querying the store. It is tied to the change count of
+ * the store, and only read when the count matches.
+ * <p>
+ * The file holds an encrypted header with the change count, one encrypted
+ * record with all the summaries, in id order, and a record for each
+ * summary changed since. Reading maps the file and decrypts the records in
+ * place, in a private copy of the mapping. Changes are appended, and the
+ * file is rewritten whole once they outnumber a quarter of the summaries.
+ *
+ * @author Pedro Fonseca
+ * @see StoreController#allSummaries()
+ */
+final class SummarySnapshot {
+	private static final String TAG = "SummarySnapshot";
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private static final int MAGIC = 0x54505353;
+	private static final int FORMAT = 1;
+	private static final int FILE_HEADER = 8;
+
+	// The header holds the change count, the length of the base record, the
+	// end of the last change and the number of changes.
+	private static final int HEADER_CLEAR = 8 + 4 + 4 + 4;
+	private static final int HEADER_RECORD =
+		HEADER_CLEAR + CryptContext.RECORD_OVERHEAD;
+	private static final int BASE_OFFSET = FILE_HEADER + HEADER_RECORD;
+
+	/** The number of appended changes that are never compacted. */
+	private static final int MIN_CHANGES = 256;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final Comparator<AccountSummary> BY_ID =
+		new Comparator<AccountSummary>() {
+			public int compare(AccountSummary a, AccountSummary b) {
+				return a.getId() < b.getId() ? -1
+					: a.getId() == b.getId() ? 0 : 1;
+			}
+		};
+
+	private final File file;
+	private final CryptContext context;
+
+	/**
+	 * @param key the key of the snapshot, which is copied. A snapshot that
+	 * 			was written with another key is not read.
+	 */
+	SummarySnapshot(File file, byte[] key) {
+		this.file = file;
+		this.context = new CryptContext(key);
+	}
+
+	/**
+	 * @return the summaries in id order, or <code>null</code> if the file
+	 * 			does not reflect <code>changeCount</code> or cannot be read.
+	 */
+	synchronized List<AccountSummary> read(long changeCount) {
+		if (!file.exists()) {
+			return null;
+		}
+		try {
+			RandomAccessFile f = new RandomAccessFile(file, "rw");
+			try {
+				// Decrypting in place only changes the private copy.
+				MappedByteBuffer m = f.getChannel().map(
+						FileChannel.MapMode.PRIVATE, 0, f.length());
+				return read(m, changeCount);
+			}
+			finally {
+				f.close();
+			}
+		}
+		catch (IOException e) {
+			Log.e(TAG, e.getLocalizedMessage());
+		}
+		catch (BufferUnderflowException e) {
+			Log.e(TAG, "Truncated snapshot");
+		}
+		catch (IllegalArgumentException e) {
+			Log.e(TAG, "Invalid snapshot");
+		}
+		return null;
+	}
+
+	/**
+	 * Replaces the file with <code>summaries</code>, which must be in id
+	 * order.
+	 */
+	synchronized void write(List<AccountSummary> summaries, long changeCount) {
+		List<byte[]> usernames = new ArrayList<byte[]>(summaries.size());
+		int size = 4;
+		for (AccountSummary s: summaries) {
+			byte[] user = encode(s.getUsername());
+			usernames.add(user);
+			size += entryLength(user);
+		}
+
+		ByteBuffer base = ByteBuffer.allocate(
+				size + CryptContext.RECORD_OVERHEAD);
+		ByteBuffer clear = clearView(base);
+		clear.putInt(summaries.size());
+		for (int i = 0; i < summaries.size(); ++i) {
+			putEntry(clear, summaries.get(i), usernames.get(i));
+		}
+		if (!seal(base)) {
+			return;
+		}
+
+		ByteBuffer out = ByteBuffer.allocate(BASE_OFFSET + base.capacity());
+		out.putInt(MAGIC).putInt(FORMAT);
+		out.put(header(changeCount, base.capacity(), out.capacity(), 0));
+		out.put(base.array());
+
+		File temp = new File(file.getPath() + TEMP_SUFFIX);
+		try {
+			RandomAccessFile f = new RandomAccessFile(temp, "rw");
+			try {
+				f.setLength(0);
+				f.write(out.array());
+			}
+			finally {
+				f.close();
+			}
+			if (!temp.renameTo(file)) {
+				throw new IOException("Cannot replace " + file);
+			}
+		}
+		catch (IOException e) {
+			Log.e(TAG, "Cannot write the snapshot: " + e.getLocalizedMessage());
+			temp.delete();
+			file.delete();
+		}
+	}
+
+	/**
+	 * Records the summaries of accounts added or changed by a write that
+	 * moved the change count from <code>previous</code> to
+	 * <code>changeCount</code>. The file is deleted if it did not reflect
+	 * <code>previous</code>.
+	 */
+	synchronized void append(Collection<AccountSummary> changed,
+			long previous, long changeCount)
+	{
+		if (!file.exists()) {
+			return;
+		}
+		try {
+			RandomAccessFile f = new RandomAccessFile(file, "rw");
+			try {
+				byte[] h = new byte[HEADER_RECORD];
+				f.seek(FILE_HEADER);
+				f.readFully(h);
+				ByteBuffer header = context.decrypt(ByteBuffer.wrap(h));
+				if (header == null || header.remaining() != HEADER_CLEAR
+						|| header.getLong() != previous) {
+					f.close();
+					file.delete();
+					return;
+				}
+				int baseLength = header.getInt();
+				int end = header.getInt();
+				int changes = header.getInt() + changed.size();
+
+				int compactAt = Math.max(MIN_CHANGES,
+						(baseLength - CryptContext.RECORD_OVERHEAD) / 64);
+				if (changes > compactAt) {
+					f.close();
+					compact(changed, previous, changeCount);
+					return;
+				}
+
+				f.seek(end);
+				for (AccountSummary s: changed) {
+					byte[] user = encode(s.getUsername());
+					ByteBuffer record = ByteBuffer.allocate(
+							entryLength(user) + CryptContext.RECORD_OVERHEAD);
+					putEntry(clearView(record), s, user);
+					if (!seal(record)) {
+						f.close();
+						file.delete();
+						return;
+					}
+					f.writeInt(record.capacity());
+					f.write(record.array());
+					end += 4 + record.capacity();
+				}
+				// The header goes last: if the process dies before, the
+				// count does not match and the file is rebuilt.
+				f.seek(FILE_HEADER);
+				f.write(header(changeCount, baseLength, end, changes));
+			}
+			finally {
+				f.close();
+			}
+		}
+		catch (IOException e) {
+			Log.e(TAG, "Cannot update the snapshot: " + e.getLocalizedMessage());
+			file.delete();
+		}
+	}
+
+	synchronized void delete() {
+		file.delete();
+	}
+
+	/**
+	 * Clears the key. The file is kept for the next session.
+	 */
+	void destroy() {
+		context.destroy();
+	}
+
+	private void compact(Collection<AccountSummary> changed, long previous,
+			long changeCount)
+	{
+		List<AccountSummary> all = read(previous);
+		if (all == null) {
+			file.delete();
+			return;
+		}
+		write(merge(all, changed), changeCount);
+	}
+
+	private List<AccountSummary> read(ByteBuffer m, long changeCount) {
+		if (m.getInt(0) != MAGIC || m.getInt(4) != FORMAT) {
+			return null;
+		}
+		ByteBuffer header = context.decrypt(slice(m, FILE_HEADER,
+				HEADER_RECORD));
+		if (header == null || header.remaining() != HEADER_CLEAR
+				|| header.getLong() != changeCount) {
+			return null;
+		}
+		int baseLength = header.getInt();
+		int end = header.getInt();
+
+		ByteBuffer base = context.decrypt(slice(m, BASE_OFFSET, baseLength));
+		if (base == null) {
+			return null;
+		}
+		int count = base.getInt();
+		if (count < 0 || count > base.remaining() / entryLength(null)) {
+			return null;
+		}
+		List<AccountSummary> list = new ArrayList<AccountSummary>(count);
+		for (int i = 0; i < count; ++i) {
+			list.add(getEntry(base));
+		}
+
+		List<AccountSummary> changed = new ArrayList<AccountSummary>();
+		int pos = BASE_OFFSET + baseLength;
+		while (pos < end) {
+			int length = m.getInt(pos);
+			ByteBuffer entry = context.decrypt(slice(m, pos + 4, length));
+			if (entry == null) {
+				return null;
+			}
+			changed.add(getEntry(entry));
+			pos += 4 + length;
+		}
+		return changed.isEmpty() ? list : merge(list, changed);
+	}
+
+	/**
+	 * Replaces the summaries of <code>list</code> by those of
+	 * <code>changed</code> with the same id, adds the others and keeps the
+	 * list in id order.
+	 */
+	private static List<AccountSummary> merge(List<AccountSummary> list,
+			Collection<AccountSummary> changed)
+	{
+		Map<Long, AccountSummary> byId = new HashMap<Long, AccountSummary>();
+		for (AccountSummary s: changed) {
+			byId.put(s.getId(), s);
+		}
+		List<AccountSummary> merged =
+			new ArrayList<AccountSummary>(list.size() + byId.size());
+		for (AccountSummary s: list) {
+			AccountSummary c = byId.remove(s.getId());
+			merged.add(c != null ? c : s);
+		}
+		if (!byId.isEmpty()) {
+			// New accounts usually take the largest ids.
+			long last = merged.isEmpty() ? 0
+				: merged.get(merged.size() - 1).getId();
+			List<AccountSummary> added =
+				new ArrayList<AccountSummary>(byId.values());
+			Collections.sort(added, BY_ID);
+			merged.addAll(added);
+			if (added.get(0).getId() < last) {
+				Collections.sort(merged, BY_ID);
+			}
+		}
+		return merged;
+	}
+
+	private byte[] header(long changeCount, int baseLength, int end,
+			int changes)
+	{
+		ByteBuffer record = ByteBuffer.allocate(HEADER_RECORD);
+		clearView(record).putLong(changeCount).putInt(baseLength).putInt(end)
+			.putInt(changes);
+		if (!seal(record)) {
+			throw new IllegalStateException("Cannot encrypt the header");
+		}
+		return record.array();
+	}
+
+	/**
+	 * Encrypts, in place, the clear text written in the view returned by
+	 * {@link #clearView(ByteBuffer)}.
+	 */
+	private boolean seal(ByteBuffer record) {
+		if (context.encrypt(clearView(record), record.duplicate()) < 0) {
+			Log.e(TAG, "Cannot encrypt the snapshot");
+			return false;
+		}
+		return true;
+	}
+
+	private static ByteBuffer clearView(ByteBuffer record) {
+		ByteBuffer clear = record.duplicate();
+		clear.position(CryptContext.RECORD_HEADER);
+		clear.limit(record.capacity() - (CryptContext.RECORD_OVERHEAD
+				- CryptContext.RECORD_HEADER));
+		return clear.slice();
+	}
+
+	private static ByteBuffer slice(ByteBuffer m, int offset, int length) {
+		ByteBuffer b = m.duplicate();
+		b.position(offset);
+		b.limit(offset + length);
+		return b.slice();
+	}
+
+	private static int entryLength(byte[] user) {
+		return 8 + 8 + 4 + (user != null ? user.length : 0);
+	}
+
+	private static void putEntry(ByteBuffer b, AccountSummary s, byte[] user) {
+		b.putLong(s.getId()).putLong(s.getModificationTime());
+		if (user == null) {
+			b.putInt(-1);
+		} else {
+			b.putInt(user.length).put(user);
+		}
+	}
+
+	private static AccountSummary getEntry(ByteBuffer b) {
+		long id = b.getLong();
+		long time = b.getLong();
+		int length = b.getInt();
+		String username = null;
+		if (length >= 0) {
+			ByteBuffer user = b.slice();
+			user.limit(length);
+			username = UTF8.decode(user).toString();
+			b.position(b.position() + length);
+		}
+		return new AccountSummary(id, username, time);
+	}
+
+	private static byte[] encode(String s) {
+		if (s == null) {
+			return null;
+		}
+		ByteBuffer b = UTF8.encode(s);
+		byte[] bytes = new byte[b.remaining()];
+		b.get(bytes);
+		return bytes;
+	}
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright 2010 Pedro Fonseca
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hecticant.thinpass.persistence;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import android.util.Log;
+
+/**
+ * Saves accounts on a single background thread, so callers, such as the UI
+ * thread, do not wait for the disk. The writes submitted while a group is 
+ * being committed make up the next group, which is committed in one 
+ * transaction and reaches the disk once. Pending updates of the same 
+ * account are coalesced into the last one.
+ * <p>
+ * Each write returns a future, completed once its group is committed, for
+ * callers that must know the write is durable. The thread only runs while
+ * writes are pending; work that must follow the pending writes, such as 
+ * clearing the keys they need, can be queued to run once it stops.
+ * 
+ * @author Pedro Fonseca
+ * @see StoreController#addAccountLater(String, byte[], byte[])
+ * @see StoreController#updateAccountLater(Account)
+ */
+final class WriteBehindQueue implements Runnable {
+	private static final String TAG = "WriteBehindQueue";
+	
+	private static final Callable<Account> NOTHING = new Callable<Account>() {
+		public Account call() {
+			return null;
+		}
+	};
+	
+	/**
+	 * The result of a write. It cannot be cancelled, as the write may 
+	 * already be in a transaction.
+	 */
+	private static final class Result extends FutureTask<Account> {
+		Result() {
+			super(NOTHING);
+		}
+		
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+		
+		void succeed(Account a) {
+			set(a);
+		}
+		
+		void fail(Throwable t) {
+			setException(t);
+		}
+	}
+	
+	/** A pending write and the results waiting for it. */
+	private static final class Write {
+		final Account account;
+		final List<Result> results = new ArrayList<Result>(1);
+		
+		Write(Account account) {
+			this.account = account;
+		}
+	}
+	
+	private final StoreController controller;
+	
+	// Guarded by the lock of this queue.
+	private List<Write> adds = new ArrayList<Write>();
+	private Map<Long, Write> updates = new LinkedHashMap<Long, Write>();
+	private List<Runnable> idleTasks = new ArrayList<Runnable>();
+	private boolean running;
+	
+	WriteBehindQueue(StoreController controller) {
+		this.controller = controller;
+	}
+	
+	/**
+	 * @return the account as added, with its id.
+	 */
+	synchronized Future<Account> add(String username, byte[] password, 
+			byte[] description) 
+	{
+		Write w = new Write(new Account(0, username, password, description, 
+				0));
+		adds.add(w);
+		return submitted(w);
+	}
+	
+	/**
+	 * @return the account as saved, with its modification date.
+	 */
+	synchronized Future<Account> update(Account acc) {
+		// A copy, in case the caller changes the account meanwhile.
+		Write w = new Write(new Account(acc.getId(), acc.getUsername(), 
+				acc.getPassword(), acc.getDescription(), 
+				acc.getModificationTime()));
+		Write pending = updates.remove(acc.getId());
+		if (pending != null) {
+			w.results.addAll(pending.results);
+		}
+		updates.put(acc.getId(), w);
+		return submitted(w);
+	}
+	
+	/**
+	 * Waits until every write submitted so far is committed or failed.
+	 */
+	synchronized void flush() {
+		boolean interrupted = false;
+		while (running) {
+			try {
+				wait();
+			}
+			catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Runs <code>task</code> once every write submitted so far is committed
+	 * or failed: on the calling thread if no write is pending, otherwise on
+	 * the writer thread. The caller does not wait.
+	 */
+	void whenIdle(Runnable task) {
+		synchronized (this) {
+			if (running) {
+				idleTasks.add(task);
+				return;
+			}
+		}
+		task.run();
+	}
+	
+	public void run() {
+		boolean idle = false;
+		try {
+			while (true) {
+				List<Write> groupAdds = null;
+				Collection<Write> groupUpdates = null;
+				List<Runnable> tasks = null;
+				synchronized (this) {
+					if (adds.isEmpty() && updates.isEmpty()) {
+						running = false;
+						idle = true;
+						tasks = idleTasks;
+						idleTasks = new ArrayList<Runnable>();
+						notifyAll();
+					} else {
+						groupAdds = adds;
+						groupUpdates = updates.values();
+						adds = new ArrayList<Write>();
+						updates = new LinkedHashMap<Long, Write>();
+					}
+				}
+				if (idle) {
+					// Outside the lock: the tasks may wait for other locks.
+					runAll(tasks);
+					return;
+				}
+				commit(groupAdds, groupUpdates);
+			}
+		}
+		finally {
+			if (!idle) {
+				// Died on an error outside a commit; flush must not hang.
+				List<Runnable> tasks;
+				synchronized (this) {
+					running = false;
+					tasks = idleTasks;
+					idleTasks = new ArrayList<Runnable>();
+					notifyAll();
+				}
+				runAll(tasks);
+			}
+		}
+	}
+	
+	private void commit(List<Write> groupAdds, Collection<Write> groupUpdates) {
+		List<Account> added = new ArrayList<Account>(groupAdds.size());
+		for (Write w: groupAdds) {
+			added.add(w.account);
+		}
+		List<Account> updated = new ArrayList<Account>(groupUpdates.size());
+		for (Write w: groupUpdates) {
+			updated.add(w.account);
+		}
+		
+		List<Account> saved;
+		try {
+			saved = controller.writeGroup(added, updated);
+		}
+		catch (Throwable e) {
+			// Errors too, such as running out of memory on a large group: 
+			// the writer goes on and the futures must not be left pending.
+			Log.e(TAG, "Cannot save " + (added.size() + updated.size()) 
+					+ " accounts", e);
+			for (Write w: groupAdds) {
+				fail(w, e);
+			}
+			for (Write w: groupUpdates) {
+				fail(w, e);
+			}
+			return;
+		}
+		
+		// The added accounts come first, in order, then the updated ones.
+		int i = 0;
+		for (Write w: groupAdds) {
+			succeed(w, saved.get(i++));
+		}
+		for (Write w: groupUpdates) {
+			succeed(w, saved.get(i++));
+		}
+	}
+	
+	private static void runAll(List<Runnable> tasks) {
+		for (Runnable r: tasks) {
+			try {
+				r.run();
+			}
+			catch (RuntimeException e) {
+				Log.e(TAG, "Idle task failed", e);
+			}
+		}
+	}
+	
+	/* Must hold the lock of this queue. */
+	private Future<Account> submitted(Write w) {
+		Result r = new Result();
+		w.results.add(r);
+		if (!running) {
+			running = true;
+			Thread t = new Thread(this, TAG);
+			t.start();
+		}
+		return r;
+	}
+	
+	private static void succeed(Write w, Account a) {
+		for (Result r: w.results) {
+			r.succeed(a);
+		}
+	}
+	
+	private static void fail(Write w, Throwable t) {
+		for (Result r: w.results) {
+			r.fail(t);
+		}
+	}
+}
@@ -0,0 +1,457 @@
+/*
+ * Copyright 2010 Pedro Fonseca
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hecticant.thinpass.security;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * The Argon2id memory-hard password hashing function (RFC 9106, version
+ * 0x13). The lanes of each slice are independent, so they are filled
+ * concurrently on the shared worker pool; the wall-clock time of a hash is
+ * therefore about the time of one lane when there are enough cores.
+ *
+ * @author Pedro Fonseca
+ * @see KdfParameters.Algorithm#ARGON2ID
+ */
+final class Argon2 {
+	private static final int VERSION = 0x13;
+	private static final int TYPE_ID = 2;
+	private static final int BLOCK_SIZE = 1024;
+	private static final int QWORDS = BLOCK_SIZE / 8;
+	private static final int SYNC_POINTS = 4;
+
+	private final int passes;
+	private final int lanes;
+	private final int laneLength;
+	private final int segmentLength;
+	private final int blockCount;
+	private final long[] memory;
+
+	private Argon2(int passes, int memoryKiB, int lanes) {
+		this.passes = passes;
+		this.lanes = lanes;
+		int m = Math.max(memoryKiB, 2 * SYNC_POINTS * lanes);
+		this.segmentLength = m / (lanes * SYNC_POINTS);
+		this.laneLength = segmentLength * SYNC_POINTS;
+		this.blockCount = laneLength * lanes;
+		this.memory = new long[blockCount * QWORDS];
+	}
+
+	/**
+	 * Hashes a password, encoded as UTF-8, with Argon2id.
+	 *
+	 * @param password the password.
+	 * @param salt the salt, at least 8 bytes long.
+	 * @param passes the time cost.
+	 * @param memoryKiB the memory cost in KiB.
+	 * @param lanes the degree of parallelism.
+	 * @param tagLength the output length in bytes.
+	 * @return the hash.
+	 */
+	static byte[] hash(char[] password, byte[] salt, int passes, int memoryKiB,
+			int lanes, int tagLength)
+	{
+		ByteBuffer bb = Charset.forName("UTF-8").encode(
+				CharBuffer.wrap(password));
+		byte[] pwd = new byte[bb.remaining()];
+		bb.get(pwd);
+		if (bb.hasArray()) {
+			Arrays.fill(bb.array(), (byte) 0);
+		}
+
+		try {
+			return hash(pwd, salt, new byte[0], new byte[0], passes, memoryKiB,
+					lanes, tagLength);
+		}
+		finally {
+			Arrays.fill(pwd, (byte) 0);
+		}
+	}
+
+	/**
+	 * Argon2id with all the inputs of the specification.
+	 *
+	 * @param secret the optional secret value K.
+	 * @param data the optional associated data X.
+	 */
+	static byte[] hash(byte[] password, byte[] salt, byte[] secret,
+			byte[] data, int passes, int memoryKiB, int lanes, int tagLength)
+	{
+		if (passes < 1 || lanes < 1 || lanes > 0xFFFFFF || tagLength < 4
+				|| salt.length < 8 || memoryKiB < 8 * lanes) {
+			throw new IllegalArgumentException("Invalid Argon2 parameters");
+		}
+
+		Argon2 instance = new Argon2(passes, memoryKiB, lanes);
+		try {
+			byte[] h0 = instance.initialHash(password, salt, secret, data,
+					memoryKiB, tagLength);
+			instance.fillFirstBlocks(h0);
+			Arrays.fill(h0, (byte) 0);
+			instance.fillMemory();
+			return instance.finish(tagLength);
+		}
+		finally {
+			Arrays.fill(instance.memory, 0L);
+		}
+	}
+
+	private byte[] initialHash(byte[] password, byte[] salt, byte[] secret,
+			byte[] data, int memoryKiB, int tagLength)
+	{
+		Blake2b b = new Blake2b(Blake2b.MAX_LENGTH);
+		b.updateInt(lanes);
+		b.updateInt(tagLength);
+		b.updateInt(memoryKiB);
+		b.updateInt(passes);
+		b.updateInt(VERSION);
+		b.updateInt(TYPE_ID);
+		b.updateInt(password.length);
+		b.update(password);
+		b.updateInt(salt.length);
+		b.update(salt);
+		b.updateInt(secret.length);
+		b.update(secret);
+		b.updateInt(data.length);
+		b.update(data);
+		return b.doFinal();
+	}
+
+	private void fillFirstBlocks(byte[] h0) {
+		byte[] input = new byte[h0.length + 8];
+		byte[] block = new byte[BLOCK_SIZE];
+		System.arraycopy(h0, 0, input, 0, h0.length);
+		for (int l = 0; l < lanes; ++l) {
+			for (int i = 0; i < 2; ++i) {
+				putInt(input, h0.length, i);
+				putInt(input, h0.length + 4, l);
+				hashLong(block, input);
+				int offset = (l * laneLength + i) * QWORDS;
+				for (int j = 0; j < QWORDS; ++j) {
+					memory[offset + j] = getLong(block, 8 * j);
+				}
+			}
+		}
+		Arrays.fill(input, (byte) 0);
+		Arrays.fill(block, (byte) 0);
+	}
+
+	private void fillMemory() {
+		boolean parallel = lanes > 1 && CryptUtil.WORKERS > 1;
+		ExecutorService pool = parallel ? CryptUtil.workerPool() : null;
+		List<Future<?>> pending = new ArrayList<Future<?>>(lanes);
+
+		for (int pass = 0; pass < passes; ++pass) {
+			for (int slice = 0; slice < SYNC_POINTS; ++slice) {
+				if (!parallel) {
+					for (int l = 0; l < lanes; ++l) {
+						fillSegment(pass, l, slice);
+					}
+					continue;
+				}
+
+				// Segments of the same slice only reference blocks of
+				// previous slices, so the lanes can be filled concurrently.
+				pending.clear();
+				for (int l = 1; l < lanes; ++l) {
+					final int p = pass, lane = l, s = slice;
+					pending.add(pool.submit(new Runnable() {
+						public void run() {
+							fillSegment(p, lane, s);
+						}
+					}));
+				}
+				fillSegment(pass, 0, slice);
+				awaitAll(pending);
+			}
+		}
+	}
+
+	private static void awaitAll(List<Future<?>> pending) {
+		boolean interrupted = false;
+		try {
+			for (Future<?> f: pending) {
+				while (true) {
+					try {
+						f.get();
+						break;
+					}
+					catch (InterruptedException e) {
+						// The next slice needs every lane, so keep waiting.
+						interrupted = true;
+					}
+				}
+			}
+		}
+		catch (ExecutionException e) {
+			throw new IllegalStateException("Error filling Argon2 memory",
+					e.getCause());
+		}
+		finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void fillSegment(int pass, int lane, int slice) {
+		long[] r = new long[QWORDS];
+		long[] tmp = new long[QWORDS];
+		long[] zero = null;
+		long[] input = null;
+		long[] addresses = null;
+
+		// Argon2id uses data-independent addressing in the first half of the
+		// first pass.
+		boolean independent = pass == 0 && slice < SYNC_POINTS / 2;
+		if (independent) {
+			zero = new long[QWORDS];
+			input = new long[QWORDS];
+			addresses = new long[QWORDS];
+			input[0] = pass;
+			input[1] = lane;
+			input[2] = slice;
+			input[3] = blockCount;
+			input[4] = passes;
+			input[5] = TYPE_ID;
+		}
+
+		int start = 0;
+		if (pass == 0 && slice == 0) {
+			// The first two blocks of each lane are already filled.
+			start = 2;
+			if (independent) {
+				nextAddresses(zero, input, addresses, r, tmp);
+			}
+		}
+
+		int current = lane * laneLength + slice * segmentLength + start;
+		int previous = (current % laneLength == 0)
+			? current + laneLength - 1 : current - 1;
+
+		for (int i = start; i < segmentLength; ++i, ++current, ++previous) {
+			if (current % laneLength == 1) {
+				previous = current - 1;
+			}
+
+			long pseudoRandom;
+			if (independent) {
+				if (i % QWORDS == 0) {
+					nextAddresses(zero, input, addresses, r, tmp);
+				}
+				pseudoRandom = addresses[i % QWORDS];
+			} else {
+				pseudoRandom = memory[previous * QWORDS];
+			}
+
+			int refLane = (int) ((pseudoRandom >>> 32) % lanes);
+			if (pass == 0 && slice == 0) {
+				refLane = lane;
+			}
+			int refIndex = indexAlpha(pass, slice, i,
+					pseudoRandom & 0xFFFFFFFFL, refLane == lane);
+			int ref = refLane * laneLength + refIndex;
+
+			fillBlock(memory, previous * QWORDS, memory, ref * QWORDS,
+					memory, current * QWORDS, pass != 0, r, tmp);
+		}
+	}
+
+	private int indexAlpha(int pass, int slice, int index, long pseudoRandom,
+			boolean sameLane)
+	{
+		long areaSize;
+		if (pass == 0) {
+			if (slice == 0) {
+				areaSize = index - 1;
+			} else if (sameLane) {
+				areaSize = slice * segmentLength + index - 1;
+			} else {
+				areaSize = slice * segmentLength + (index == 0 ? -1 : 0);
+			}
+		} else {
+			if (sameLane) {
+				areaSize = laneLength - segmentLength + index - 1;
+			} else {
+				areaSize = laneLength - segmentLength + (index == 0 ? -1 : 0);
+			}
+		}
+
+		long relative = (pseudoRandom * pseudoRandom) >>> 32;
+		relative = areaSize - 1 - ((areaSize * relative) >>> 32);
+
+		long startPosition = 0;
+		if (pass != 0 && slice != SYNC_POINTS - 1) {
+			startPosition = (slice + 1) * segmentLength;
+		}
+		return (int) ((startPosition + relative) % laneLength);
+	}
+
+	private static void nextAddresses(long[] zero, long[] input,
+			long[] addresses, long[] r, long[] tmp)
+	{
+		input[6]++;
+		fillBlock(zero, 0, input, 0, addresses, 0, false, r, tmp);
+		fillBlock(zero, 0, addresses, 0, addresses, 0, false, r, tmp);
+	}
+
+	private byte[] finish(int tagLength) {
+		long[] c = new long[QWORDS];
+		for (int l = 0; l < lanes; ++l) {
+			int offset = (l * laneLength + laneLength - 1) * QWORDS;
+			for (int j = 0; j < QWORDS; ++j) {
+				c[j] ^= memory[offset + j];
+			}
+		}
+
+		byte[] block = new byte[BLOCK_SIZE];
+		for (int j = 0; j < QWORDS; ++j) {
+			putLong(block, 8 * j, c[j]);
+		}
+		byte[] tag = new byte[tagLength];
+		hashLong(tag, block);
+		Arrays.fill(block, (byte) 0);
+		Arrays.fill(c, 0L);
+		return tag;
+	}
+
+	/**
+	 * The compression function G. The output block may be the same as the
+	 * reference block.
+	 */
+	private static void fillBlock(long[] prev, int prevOffset, long[] ref,
+			int refOffset, long[] out, int outOffset, boolean withXor,
+			long[] r, long[] tmp)
+	{
+		for (int i = 0; i < QWORDS; ++i) {
+			r[i] = prev[prevOffset + i] ^ ref[refOffset + i];
+		}
+		for (int i = 0; i < QWORDS; ++i) {
+			tmp[i] = withXor ? r[i] ^ out[outOffset + i] : r[i];
+		}
+
+		for (int i = 0; i < 8; ++i) {
+			int b = 16 * i;
+			permute(r, b, b + 1, b + 2, b + 3, b + 4, b + 5, b + 6, b + 7,
+					b + 8, b + 9, b + 10, b + 11, b + 12, b + 13, b + 14,
+					b + 15);
+		}
+		for (int i = 0; i < 8; ++i) {
+			int b = 2 * i;
+			permute(r, b, b + 1, b + 16, b + 17, b + 32, b + 33, b + 48,
+					b + 49, b + 64, b + 65, b + 80, b + 81, b + 96, b + 97,
+					b + 112, b + 113);
+		}
+
+		for (int i = 0; i < QWORDS; ++i) {
+			out[outOffset + i] = tmp[i] ^ r[i];
+		}
+	}
+
+	private static void permute(long[] v, int v0, int v1, int v2, int v3,
+			int v4, int v5, int v6, int v7, int v8, int v9, int v10, int v11,
+			int v12, int v13, int v14, int v15)
+	{
+		gb(v, v0, v4, v8, v12);
+		gb(v, v1, v5, v9, v13);
+		gb(v, v2, v6, v10, v14);
+		gb(v, v3, v7, v11, v15);
+		gb(v, v0, v5, v10, v15);
+		gb(v, v1, v6, v11, v12);
+		gb(v, v2, v7, v8, v13);
+		gb(v, v3, v4, v9, v14);
+	}
+
+	private static void gb(long[] v, int a, int b, int c, int d) {
+		v[a] = blaMka(v[a], v[b]);
+		v[d] = Long.rotateRight(v[d] ^ v[a], 32);
+		v[c] = blaMka(v[c], v[d]);
+		v[b] = Long.rotateRight(v[b] ^ v[c], 24);
+		v[a] = blaMka(v[a], v[b]);
+		v[d] = Long.rotateRight(v[d] ^ v[a], 16);
+		v[c] = blaMka(v[c], v[d]);
+		v[b] = Long.rotateRight(v[b] ^ v[c], 63);
+	}
+
+	private static long blaMka(long x, long y) {
+		return x + y + 2 * ((x & 0xFFFFFFFFL) * (y & 0xFFFFFFFFL));
+	}
+
+	/**
+	 * The variable-length hash function H' of the specification.
+	 */
+	private static void hashLong(byte[] out, byte[] in) {
+		int length = out.length;
+		if (length <= Blake2b.MAX_LENGTH) {
+			Blake2b b = new Blake2b(length);
+			b.updateInt(length);
+			b.update(in);
+			b.doFinal(out, 0);
+			return;
+		}
+
+		Blake2b b = new Blake2b(Blake2b.MAX_LENGTH);
+		byte[] v = new byte[Blake2b.MAX_LENGTH];
+		b.updateInt(length);
+		b.update(in);
+		b.doFinal(v, 0);
+		System.arraycopy(v, 0, out, 0, 32);
+
+		int position = 32;
+		while (length - position > Blake2b.MAX_LENGTH) {
+			b.update(v);
+			b.doFinal(v, 0);
+			System.arraycopy(v, 0, out, position, 32);
+			position += 32;
+		}
+		Blake2b last = new Blake2b(length - position);
+		last.update(v);
+		last.doFinal(out, position);
+		Arrays.fill(v, (byte) 0);
+	}
+
+	static long getLong(byte[] b, int offset) {
+		return (b[offset] & 0xFFL)
+			| (b[offset + 1] & 0xFFL) << 8
+			| (b[offset + 2] & 0xFFL) << 16
+			| (b[offset + 3] & 0xFFL) << 24
+			| (b[offset + 4] & 0xFFL) << 32
+			| (b[offset + 5] & 0xFFL) << 40
+			| (b[offset + 6] & 0xFFL) << 48
+			| (b[offset + 7] & 0xFFL) << 56;
+	}
+
+	private static void putLong(byte[] b, int offset, long value) {
+		for (int i = 0; i < 8; ++i) {
+			b[offset + i] = (byte) (value >>> (8 * i));
+		}
+	}
+
+	private static void putInt(byte[] b, int offset, int value) {
+		for (int i = 0; i < 4; ++i) {
+			b[offset + i] = (byte) (value >>> (8 * i));
+		}
+	}
+}
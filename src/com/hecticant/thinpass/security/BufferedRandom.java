@@ -0,0 +1,151 @@
+/*
+ * Copyright 2010 Pedro Fonseca
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hecticant.thinpass.security;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * A <code>SecureRandom</code> that gives each thread its own SHA1PRNG
+ * generator and serves small requests from a buffer filled in advance.
+ * Threads never contend for a lock, and salts, IVs and keys cost little more
+ * than an array copy.
+ * <p>
+ * Each generator is seeded from the platform generator when it is created,
+ * and reseeded after it has produced {@link #RESEED_INTERVAL} bytes. Bytes
+ * are cleared from the buffer as soon as they are handed out.
+ *
+ * @author Pedro Fonseca
+ */
+final class BufferedRandom extends SecureRandom {
+	private static final long serialVersionUID = -2305738160117218317L;
+
+	private static final String ALGORITHM = "SHA1PRNG";
+	private static final int BUFFER_SIZE = 512;
+	private static final int SEED_SIZE = 32;
+
+	/** The number of bytes a generator produces between reseeds. */
+	static final long RESEED_INTERVAL = 1 << 20;
+
+	private static final class Generator {
+		final SecureRandom prng;
+		final byte[] buffer = new byte[BUFFER_SIZE];
+		int position = BUFFER_SIZE;
+		long produced;
+
+		Generator(SecureRandom prng) {
+			this.prng = prng;
+		}
+	}
+
+	// Only used to seed the per-thread generators.
+	private final SecureRandom seedSource;
+
+	private final transient ThreadLocal<Generator> generators =
+		new ThreadLocal<Generator>() {
+			@Override
+			protected Generator initialValue() {
+				return new Generator(newPrng());
+			}
+		};
+
+	BufferedRandom() {
+		this.seedSource = new SecureRandom();
+	}
+
+	@Override
+	public void nextBytes(byte[] bytes) {
+		nextBytes(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Fills <code>length</code> bytes of <code>bytes</code>, starting at
+	 * <code>offset</code>, with random data.
+	 */
+	void nextBytes(byte[] bytes, int offset, int length) {
+		Generator g = generators.get();
+		if (g.produced >= RESEED_INTERVAL) {
+			g.prng.setSeed(seed());
+			g.produced = 0;
+			g.position = BUFFER_SIZE;
+		}
+		g.produced += length;
+
+		if (length > BUFFER_SIZE / 2) {
+			// Not worth buffering.
+			byte[] random = new byte[length];
+			g.prng.nextBytes(random);
+			System.arraycopy(random, 0, bytes, offset, length);
+			Arrays.fill(random, (byte) 0);
+			return;
+		}
+
+		while (length > 0) {
+			if (g.position == BUFFER_SIZE) {
+				g.prng.nextBytes(g.buffer);
+				g.position = 0;
+			}
+			int n = Math.min(length, BUFFER_SIZE - g.position);
+			System.arraycopy(g.buffer, g.position, bytes, offset, n);
+			Arrays.fill(g.buffer, g.position, g.position + n, (byte) 0);
+			g.position += n;
+			offset += n;
+			length -= n;
+		}
+	}
+
+	/**
+	 * Mixes <code>seed</code> into the generator of the calling thread.
+	 */
+	@Override
+	public void setSeed(byte[] seed) {
+		// Called by the SecureRandom constructors before this object is
+		// initialized.
+		if (generators == null) {
+			return;
+		}
+		Generator g = generators.get();
+		g.prng.setSeed(seed);
+		Arrays.fill(g.buffer, (byte) 0);
+		g.position = BUFFER_SIZE;
+	}
+
+	@Override
+	public byte[] generateSeed(int numBytes) {
+		return seedSource.generateSeed(numBytes);
+	}
+
+	private SecureRandom newPrng() {
+		SecureRandom prng;
+		try {
+			prng = SecureRandom.getInstance(ALGORITHM);
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("Certainly a random error", e);
+		}
+		// Seeding before the first use replaces the default seed.
+		prng.setSeed(seed());
+		return prng;
+	}
+
+	private byte[] seed() {
+		byte[] seed = new byte[SEED_SIZE];
+		seedSource.nextBytes(seed);
+		return seed;
+	}
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright 2010 Pedro Fonseca
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hecticant.thinpass.security;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import android.util.Log;
+
+/**
+ * Holds the cryptographic state bound to a single symmetric key. Each thread
+ * that uses a <code>CryptContext</code> gets its own ciphers and MAC, so the 
+ * provider lookups and the key setup are paid once per thread instead of 
+ * once per call to {@link CryptUtil#encrypt}.
+ * <p>
+ * New data is encrypted in the authenticated record format of 
+ * {@link RecordCodec}, with a random IV per record. Decryption also accepts 
+ * the legacy format (AES-CBC under a fixed IV, no header and no MAC) so 
+ * existing data remains readable. A text is read as a record when its first 
+ * byte is a record version and its tag verifies. Otherwise it is read as 
+ * legacy data only if it could be a legacy text at all; a record whose tag 
+ * fails is an error, never clear text.
+ * <p>
+ * While the key is being replaced, a context for the new key can fall back
+ * to the context of the old one: texts that are not valid records under the 
+ * new key are decrypted with the old key. 
+ * <p>
+ * A context lives for the duration of an unlock session and must be
+ * {@link #destroy() destroyed} when the key is no longer needed.
+ *
+ * @author Pedro Fonseca
+ * @see CryptUtil
+ */
+public class CryptContext {
+	private static final String TAG = "CryptContext";
+	
+	/** Batches smaller than this are transformed on the calling thread. */
+	private static final int MIN_PARALLEL_BATCH = 64;
+	
+	// Decrypts, with the fallback if needed, and encrypts again.
+	private static final int REENCRYPT_MODE = -1;
+	
+	/** The number of bytes that precede the ciphertext in a record. */
+	public static final int RECORD_HEADER = RecordCodec.HEADER_SIZE;
+	
+	/** The number of bytes a record adds to the clear text. */
+	public static final int RECORD_OVERHEAD = RecordCodec.OVERHEAD;
+
+	private final byte[] keyBytes;
+	private final RecordCodec codec;
+	private final CryptContext previous;
+	private volatile boolean destroyed;
+
+	// Only used to read data written in the legacy format.
+	private final ThreadCache<Cipher> decryptors = new ThreadCache<Cipher>();
+
+	/**
+	 * Creates a new context for <code>key</code>. The key bytes are copied,
+	 * so the caller may clear its own copy.
+	 *
+	 * @param key the raw bytes of an AES key.
+	 */
+	public CryptContext(byte[] key) {
+		this(key, null);
+	}
+	
+	/**
+	 * Creates a context for <code>key</code> that decrypts with 
+	 * <code>previous</code> the texts that are not records under 
+	 * <code>key</code>. Destroying this context does not destroy 
+	 * <code>previous</code>.
+	 * 
+	 * @param key the raw bytes of an AES key.
+	 * @param previous the context of the key being replaced, or 
+	 * 			<code>null</code>.
+	 */
+	CryptContext(byte[] key, CryptContext previous) {
+		if (key == null) {
+			throw new NullPointerException();
+		}
+		this.previous = previous;
+		this.keyBytes = key.clone();
+		try {
+			this.codec = new RecordCodec(keyBytes);
+		}
+		catch (GeneralSecurityException e) {
+			Log.e(TAG, e.getLocalizedMessage());
+			throw new IllegalStateException("Error deriving record keys", e);
+		}
+	}
+
+	public byte[] encrypt(byte[] clearText) {
+		return transform(Cipher.ENCRYPT_MODE, clearText);
+	}
+
+	public byte[] decrypt(byte[] encryptedText) {
+		return transform(Cipher.DECRYPT_MODE, encryptedText);
+	}
+	
+	/**
+	 * Encrypts the remaining bytes of <code>clear</code> into a record 
+	 * written at the position of <code>record</code>. Both buffers may be 
+	 * direct. To encrypt in place, <code>clear</code> must be a different 
+	 * buffer object over the same memory, starting {@link #RECORD_HEADER} 
+	 * bytes after the position of <code>record</code>.
+	 * 
+	 * @return the length of the record or -1 if encryption failed. 
+	 */
+	public int encrypt(ByteBuffer clear, ByteBuffer record) {
+		checkState();
+		try {
+			return codec.seal(clear, record);
+		}
+		catch (GeneralSecurityException e) {
+			Log.e(TAG, "encrypt: " + Log.getStackTraceString(e));
+			return -1;
+		}
+	}
+	
+	/**
+	 * Decrypts the remaining bytes of <code>encrypted</code> in place, 
+	 * without copying them to the heap. On success the position of 
+	 * <code>encrypted</code> is moved to its limit.
+	 * 
+	 * Buffers only ever hold records, so the legacy format is not read.
+	 * 
+	 * @return a view of the clear text that shares the memory of 
+	 * 			<code>encrypted</code>, or <code>null</code> if decryption 
+	 * 			failed.
+	 */
+	public ByteBuffer decrypt(ByteBuffer encrypted) {
+		checkState();
+		try {
+			ByteBuffer clear = codec.open(encrypted);
+			if (clear == null && previous != null) {
+				clear = previous.decrypt(encrypted);
+			}
+			return clear;
+		}
+		catch (GeneralSecurityException e) {
+			Log.e(TAG, "decrypt: " + Log.getStackTraceString(e));
+			return null;
+		}
+	}
+	
+	/**
+	 * Decrypts every element of <code>encryptedTexts</code>. Large batches 
+	 * are split into contiguous chunks that are decrypted concurrently, each
+	 * worker thread using its own cipher.
+	 * 
+	 * @param encryptedTexts the elements to decrypt.
+	 * @return a list with one result per element, in the same order as 
+	 * 			<code>encryptedTexts</code>. A failure on one element does not
+	 * 			affect the others.
+	 */
+	public List<CryptResult> decryptAll(List<byte[]> encryptedTexts) {
+		return transformAll(Cipher.DECRYPT_MODE, encryptedTexts);
+	}
+	
+	/**
+	 * Decrypts every element of <code>encryptedTexts</code> and encrypts it 
+	 * again with the key of this context, in parallel like 
+	 * {@link #decryptAll(List)}. The clear texts are cleared as soon as they 
+	 * are encrypted.
+	 * 
+	 * @return a list with one result per element, in the same order as 
+	 * 			<code>encryptedTexts</code>.
+	 */
+	public List<CryptResult> reencryptAll(List<byte[]> encryptedTexts) {
+		return transformAll(REENCRYPT_MODE, encryptedTexts);
+	}
+
+	/**
+	 * Clears the key held by this context and drops the ciphers initialized
+	 * with it on every thread, including the workers of 
+	 * {@link #decryptAll(List)}. Any later call to
+	 * {@link #encrypt(byte[])} or {@link #decrypt(byte[])} fails.
+	 */
+	public void destroy() {
+		destroyed = true;
+		decryptors.clear();
+		codec.destroy();
+		Arrays.fill(keyBytes, (byte) 0);
+	}
+
+	public boolean isDestroyed() {
+		return destroyed;
+	}
+	
+	private List<CryptResult> transformAll(final int mode, 
+			List<byte[]> encryptedTexts) 
+	{
+		if (encryptedTexts == null) {
+			throw new NullPointerException();
+		}
+		
+		final byte[][] texts = 
+			encryptedTexts.toArray(new byte[encryptedTexts.size()][]);
+		final CryptResult[] results = new CryptResult[texts.length];
+		
+		int chunks = Math.min(CryptUtil.WORKERS, 
+				texts.length / MIN_PARALLEL_BATCH);
+		if (chunks <= 1) {
+			transformRange(mode, texts, results, 0, texts.length);
+			return Collections.unmodifiableList(Arrays.asList(results));
+		}
+		
+		// The calling thread takes the first chunk; the pool takes the rest.
+		int chunkSize = (texts.length + chunks - 1) / chunks;
+		List<Future<?>> pending = new ArrayList<Future<?>>(chunks - 1);
+		ExecutorService pool = CryptUtil.workerPool();
+		for (int start = chunkSize; start < texts.length; start += chunkSize) {
+			final int from = start;
+			final int to = Math.min(start + chunkSize, texts.length);
+			pending.add(pool.submit(new Runnable() {
+				public void run() {
+					transformRange(mode, texts, results, from, to);
+				}
+			}));
+		}
+		transformRange(mode, texts, results, 0, chunkSize);
+		
+		boolean interrupted = false;
+		for (Future<?> f: pending) {
+			try {
+				f.get();
+			} 
+			catch (InterruptedException e) {
+				interrupted = true;
+				f.cancel(true);
+			}
+			catch (ExecutionException e) {
+				Log.e(TAG, "transformAll: " + Log.getStackTraceString(e));
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		
+		// Elements left unset belong to chunks that were cancelled or failed.
+		for (int i = 0; i < results.length; ++i) {
+			if (results[i] == null) {
+				results[i] = new CryptResult(
+						new IllegalStateException("Not transformed"));
+			}
+		}
+		return Collections.unmodifiableList(Arrays.asList(results));
+	}
+
+	private byte[] transform(int mode, byte[] text) {
+		if (text == null) {
+			throw new NullPointerException();
+		}
+		
+		byte[] transformedText = null;
+		try {
+			transformedText = doTransform(mode, text);
+		}
+		catch (GeneralSecurityException e) {
+			Log.e(TAG, "transform: " + Log.getStackTraceString(e));
+		}
+		
+		return transformedText;
+	}
+	
+	private void transformRange(int mode, byte[][] texts, 
+			CryptResult[] results, int from, int to) 
+	{
+		for (int i = from; i < to; ++i) {
+			try {
+				if (texts[i] == null) {
+					throw new NullPointerException("Element " + i + " is null");
+				}
+				results[i] = new CryptResult(doTransform(mode, texts[i]));
+			}
+			catch (Exception e) {
+				results[i] = new CryptResult(e);
+			}
+		}
+	}
+	
+	private byte[] doTransform(int mode, byte[] text) 
+		throws GeneralSecurityException 
+	{
+		checkState();
+		
+		if (mode == Cipher.ENCRYPT_MODE) {
+			return codec.seal(text);
+		}
+		if (mode == REENCRYPT_MODE) {
+			byte[] clearText = doTransform(Cipher.DECRYPT_MODE, text);
+			try {
+				return codec.seal(clearText);
+			}
+			finally {
+				Arrays.fill(clearText, (byte) 0);
+			}
+		}
+		
+		byte[] clearText = codec.open(text);
+		if (clearText == null && previous != null) {
+			return previous.doTransform(Cipher.DECRYPT_MODE, text);
+		}
+		if (clearText == null && !RecordCodec.mayBeLegacy(text)) {
+			// A record that failed its tag, or no text of ours.
+			throw new GeneralSecurityException("Invalid record");
+		}
+		if (clearText == null) {
+			// A successful doFinal resets the cipher to its initialized 
+			// state, so it can be reused by this thread without calling init
+			// again. A failed one may leave it mid-stream, so it is dropped.
+			try {
+				clearText = legacyDecryptor().doFinal(text);
+			}
+			catch (GeneralSecurityException e) {
+				decryptors.set(null);
+				throw e;
+			}
+		}
+		return clearText;
+	}
+	
+	private Cipher legacyDecryptor() throws GeneralSecurityException {
+		Cipher c = decryptors.get();
+		if (c == null) {
+			checkState();
+			c = CryptUtil.initCipher(Cipher.DECRYPT_MODE, 
+					new SecretKeySpec(keyBytes, "AES"));
+			if (c == null) {
+				// initCipher already logged the cause; try again on the next
+				// call.
+				throw new GeneralSecurityException("Cannot initialize cipher");
+			}
+			decryptors.set(c);
+		}
+		return c;
+	}
+	
+	private void checkState() {
+		if (destroyed) {
+			throw new IllegalStateException("CryptContext was destroyed");
+		}
+	}
+}
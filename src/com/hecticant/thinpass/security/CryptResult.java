@@ -0,0 +1,60 @@
+/*
+ * Copyright 2010 Pedro Fonseca
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hecticant.thinpass.security;
+
+/**
+ * The outcome of transforming one element of a batch. Either the transformed
+ * data or the error that prevented the transformation is available.
+ *
+ * @author Pedro Fonseca
+ * @see CryptContext#decryptAll(java.util.List)
+ */
+public class CryptResult {
+
+	private final byte[] data;
+	private final Exception error;
+
+	CryptResult(byte[] data) {
+		this.data = data;
+		this.error = null;
+	}
+
+	CryptResult(Exception error) {
+		this.data = null;
+		this.error = error;
+	}
+
+	public boolean isSuccessful() {
+		return error == null;
+	}
+
+	/**
+	 * @return the transformed data, or <code>null</code> if the
+	 * 			transformation failed.
+	 */
+	public byte[] getData() {
+		return data;
+	}
+
+	/**
+	 * @return the cause of the failure, or <code>null</code> if the
+	 * 			transformation was successful.
+	 */
+	public Exception getError() {
+		return error;
+	}
+}
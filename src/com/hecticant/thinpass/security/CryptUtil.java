@@ -19,10 +19,15 @@ package com.hecticant.thinpass.security;
 import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.IvParameterSpec;
@@ -39,22 +44,39 @@ import android.util.Log;
 public class CryptUtil {
 	private static final String TAG = "CryptUtil";
 	private static final int KEYSIZE = 128;
+	
+	/** The number of threads used for parallel work. */
+	static final int WORKERS = Runtime.getRuntime().availableProcessors();
+	
+	private static ExecutorService workerPool;
 		
-	private static SecureRandom rd;
-	static {
-		try {
-			rd = SecureRandom.getInstance("SHA1PRNG");
-		} 
-		catch (NoSuchAlgorithmException e) {
-			Log.e(TAG, e.getLocalizedMessage());
-			throw new RuntimeException("Certainly a random error", e);
-		}
-	}
+	// Each thread draws from its own buffered generator, so salts, IVs and 
+	// keys can be generated concurrently without contention.
+	private static final BufferedRandom rd = new BufferedRandom();
 	
 	private static final byte[] defaultIV = { 127, 24, 123, 23, 93, 7, 15, 0, 
 												9, 4, 8, 15, 16, 23, 42, 1}; 
 	
 	public static SecretKey genMasterKey(char[] pwd, byte[] salt) {
+		return genMasterKey(pwd, salt, KdfParameters.LEGACY);
+	}
+	
+	/**
+	 * Derives a master key from a password.
+	 * 
+	 * @param pwd the password.
+	 * @param salt the password salt.
+	 * @param params the key derivation parameters, usually obtained with 
+	 * 			{@link KdfParameters#calibrate(int)}.
+	 * @return the derived key.
+	 */
+	public static SecretKey genMasterKey(char[] pwd, byte[] salt, 
+			KdfParameters params) 
+	{
+		if (params.getAlgorithm() == KdfParameters.Algorithm.ARGON2ID) {
+			return genArgon2Key(pwd, salt, params);
+		}
+		
 		SecretKeyFactory kf;
 		PBEKeySpec ks;
 		SecretKey sk;
@@ -65,7 +87,7 @@ public class CryptUtil {
 			//		/libcore/security/src/main/java/org/bouncycastle/jce
 			//		/provider/BouncyCastleProvider.java
 			kf = SecretKeyFactory.getInstance("PBEWITHSHAAND128BITAES-CBC-BC");
-			ks = new PBEKeySpec(pwd, salt, 1000, KEYSIZE);
+			ks = new PBEKeySpec(pwd, salt, params.getIterations(), KEYSIZE);
 			sk = kf.generateSecret(ks);
 			ks.clearPassword();
 		} 
@@ -77,6 +99,24 @@ public class CryptUtil {
 		return sk;
 	}
 	
+	private static SecretKey genArgon2Key(char[] pwd, byte[] salt, 
+			KdfParameters params) 
+	{
+		byte[] keyBytes;
+		try {
+			keyBytes = Argon2.hash(pwd, salt, params.getIterations(), 
+					params.getMemory(), params.getParallelism(), KEYSIZE / 8);
+		}
+		catch (OutOfMemoryError e) {
+			Log.e(TAG, "Not enough memory for " + params);
+			throw new IllegalStateException("Error generating secret key", e);
+		}
+		
+		SecretKey sk = new SecretKeySpec(keyBytes, "AES");
+		Arrays.fill(keyBytes, (byte) 0);
+		return sk;
+	}
+	
 	public static SecretKey genRandomKey() {
 		KeyGenerator kg;
 		try {
@@ -98,6 +138,26 @@ public class CryptUtil {
 		return decrypt(keyFromBytes(key), encryptedText);
 	}
 	
+	/**
+	 * Decrypts a batch of texts with the same key, possibly in parallel.
+	 * Callers that decrypt repeatedly with the same key should keep a 
+	 * {@link CryptContext} instead.
+	 * 
+	 * @return one result per element, in input order.
+	 * @see CryptContext#decryptAll(List)
+	 */
+	public static List<CryptResult> decryptAll(byte[] key, 
+			List<byte[]> encryptedTexts) 
+	{
+		CryptContext cc = new CryptContext(key);
+		try {
+			return cc.decryptAll(encryptedTexts);
+		}
+		finally {
+			cc.destroy();
+		}
+	}
+	
 	public static byte[] encrypt(SecretKey key, byte[] clearText) {
 		return transform(Cipher.ENCRYPT_MODE, key, clearText);
 	}
@@ -118,13 +178,11 @@ public class CryptUtil {
 			
 		byte[] transformedText = null;
 		
+		Cipher c = initCipher(mode, key);
+		if (c == null) {
+			return null;
+		}
 		try {
-			// CBC is used here because the implementation has some trouble
-			// with ECB (thus the default IV).
-			Cipher c = Cipher.getInstance("AES/CBC/PKCS5Padding");
-			SecretKeySpec sks = new SecretKeySpec(key.getEncoded(), "AES");
-			IvParameterSpec ivs = new IvParameterSpec(defaultIV);
-			c.init(mode, sks, ivs, rd);
 			transformedText = c.doFinal(text);
 		} 
 		catch (GeneralSecurityException e) {
@@ -134,6 +192,35 @@ public class CryptUtil {
 		return transformedText;
 	}
 	
+	/**
+	 * Creates a cipher initialized with <code>key</code> in the given mode.
+	 * The returned cipher can be reused for any number of
+	 * <code>doFinal</code> calls.
+	 * 
+	 * @return the initialized cipher or <code>null</code> if it cannot be 
+	 * 			created.
+	 * @see CryptContext
+	 */
+	static Cipher initCipher(int mode, SecretKey key) {
+		Cipher c = null;
+		try {
+			// CBC is used here because the implementation has some trouble
+			// with ECB (thus the default IV).
+			c = Cipher.getInstance("AES/CBC/PKCS5Padding");
+			if (!"AES".equals(key.getAlgorithm())) {
+				// Keys derived by genMasterKey carry the PBE algorithm name.
+				key = new SecretKeySpec(key.getEncoded(), "AES");
+			}
+			IvParameterSpec ivs = new IvParameterSpec(defaultIV);
+			c.init(mode, key, ivs, rd);
+		} 
+		catch (GeneralSecurityException e) {
+			Log.e(TAG, "initCipher: " + Log.getStackTraceString(e));
+			c = null;
+		}
+		return c;
+	}
+	
 	/**
 	 * Indispensable for reading slashdot.
 	 * 
@@ -145,6 +232,53 @@ public class CryptUtil {
 		return salt;
 	}
 	
+	/**
+	 * Fills the first <code>length</code> bytes of <code>bytes</code> with 
+	 * random data.
+	 */
+	static void nextBytes(byte[] bytes, int length) {
+		rd.nextBytes(bytes, 0, length);
+	}
+	
+	/**
+	 * Derives an independent subkey from <code>key</code> with HMAC-SHA256.
+	 * 
+	 * @param label distinguishes the subkeys derived from the same key.
+	 * @param length the subkey length, at most 32 bytes.
+	 */
+	static byte[] deriveKey(byte[] key, byte[] label, int length) 
+		throws GeneralSecurityException 
+	{
+		Mac m = Mac.getInstance("HmacSHA256");
+		m.init(new SecretKeySpec(key, "HmacSHA256"));
+		byte[] derived = m.doFinal(label);
+		byte[] subkey = new byte[length];
+		System.arraycopy(derived, 0, subkey, 0, length);
+		Arrays.fill(derived, (byte) 0);
+		return subkey;
+	}
+	
+	/**
+	 * Returns the shared pool of daemon threads used to spread 
+	 * cryptographic work over all cores. Tasks submitted to this pool must 
+	 * not wait on other tasks of the pool.
+	 */
+	static synchronized ExecutorService workerPool() {
+		if (workerPool == null) {
+			workerPool = Executors.newFixedThreadPool(WORKERS, 
+				new ThreadFactory() {
+					private int count;
+					
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, TAG + "-" + (++count));
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		}
+		return workerPool;
+	}
+	
 	public static byte[] hash(byte[] text, byte[] salt) {	
 		MessageDigest md = null;
 		try {
@@ -83,4 +83,39 @@ public class DefaultPolicyProvider implements PolicyProvider {
 	public final int lockTimeout() {
 		return resources.getInteger(R.integer.lock_timeout);
 	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public final int keyDerivationMillis() {
+		return resources.getInteger(R.integer.kdf_target_millis);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public final int keyDerivationMemory() {
+		return resources.getInteger(R.integer.kdf_memory_kib);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public final boolean canAcceptPin(char[] pin) {
+		return pin.length >= resources.getInteger(R.integer.pin_min_length);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public final int quickUnlockWindow() {
+		return resources.getInteger(R.integer.quick_unlock_window);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public final int quickUnlockAttempts() {
+		return resources.getInteger(R.integer.quick_unlock_attempts);
+	}
 }
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2010 Pedro Fonseca
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hecticant.thinpass.security;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The parameters used to derive a master key from a password. Parameters are
+ * chosen by timing the key derivation on the device, so that unlocking takes
+ * roughly the time set by the {@link PolicyProvider}, and are saved along
+ * with the password salt.
+ *
+ * @author Pedro Fonseca
+ * @see CryptUtil#genMasterKey(char[], byte[], KdfParameters)
+ */
+public final class KdfParameters {
+
+	public enum Algorithm {
+		/**
+		 * PKCS#12 key derivation with SHA-1, as provided by BouncyCastle under
+		 * the name PBEWITHSHAAND128BITAES-CBC-BC.
+		 */
+		PBE_SHA1_AES128((byte) 0, 1000),
+		
+		/**
+		 * The memory-hard Argon2id function. Its lanes are computed in 
+		 * parallel.
+		 * 
+		 * @see Argon2
+		 */
+		ARGON2ID((byte) 1, 1);
+
+		private final byte id;
+		private final int minIterations;
+
+		private Algorithm(byte id, int minIterations) {
+			this.id = id;
+			this.minIterations = minIterations;
+		}
+
+		static Algorithm forId(byte id) {
+			for (Algorithm a: values()) {
+				if (a.id == id) {
+					return a;
+				}
+			}
+			throw new IllegalArgumentException("Unknown KDF algorithm " + id);
+		}
+	}
+
+	/**
+	 * The parameters of master keys created before the parameters were
+	 * stored.
+	 */
+	public static final KdfParameters LEGACY =
+		new KdfParameters(Algorithm.PBE_SHA1_AES128, 1000, 0, 1);
+
+	private static final byte VERSION = 1;
+	private static final int ENCODED_SIZE = 14;
+
+	private static final int MAX_ITERATIONS = 50000000;
+	private static final int PROBE_ITERATIONS = 2000;
+
+	/**
+	 * A calibration probe shorter than this is grown until it is not, so
+	 * that the timer resolution does not skew the scaling.
+	 */
+	private static final long MIN_PROBE_NANOS = 10000000L;
+
+	/**
+	 * Stored parameters are upgraded when deriving a key with them takes
+	 * less than the target time divided by this factor.
+	 */
+	private static final int UPGRADE_FACTOR = 2;
+
+	private final Algorithm algorithm;
+	private final int iterations;
+	private final int memory;
+	private final int parallelism;
+
+	/**
+	 * @param algorithm the key derivation function.
+	 * @param iterations the time cost: iterations for PBE, passes over 
+	 * 			memory for Argon2id.
+	 * @param memory the memory cost in KiB, if the algorithm uses one.
+	 * @param parallelism the number of independent lanes, if the algorithm
+	 * 			uses them.
+	 */
+	public KdfParameters(Algorithm algorithm, int iterations, int memory,
+			int parallelism)
+	{
+		if (algorithm == null) {
+			throw new NullPointerException();
+		}
+		if (iterations < 1 || memory < 0 || parallelism < 1) {
+			throw new IllegalArgumentException();
+		}
+		this.algorithm = algorithm;
+		this.iterations = iterations;
+		this.memory = memory;
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Times the key derivation on this device and returns parameters that
+	 * should take about <code>targetMillis</code> to derive a key.
+	 */
+	public static KdfParameters calibrate(int targetMillis) {
+		return calibrate(new KdfParameters(Algorithm.PBE_SHA1_AES128,
+				PROBE_ITERATIONS, 0, 1), targetMillis);
+	}
+	
+	/**
+	 * Times Argon2id on this device and returns parameters that should take
+	 * about <code>targetMillis</code> to derive a key. Only the time cost is
+	 * calibrated.
+	 * 
+	 * @param memoryKiB the memory cost in KiB.
+	 * @param parallelism the number of lanes, usually the number of cores.
+	 */
+	public static KdfParameters calibrate(int targetMillis, int memoryKiB,
+			int parallelism)
+	{
+		return calibrate(new KdfParameters(Algorithm.ARGON2ID, 1, memoryKiB,
+				parallelism), targetMillis);
+	}
+	
+	private static KdfParameters calibrate(KdfParameters probe, 
+			int targetMillis) 
+	{
+		char[] password = { 'c', 'a', 'l', 'i', 'b', 'r', 'a', 't', 'e' };
+		byte[] salt = new byte[16];
+
+		// The first run warms up the provider; the faster run is kept.
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < 2; ++i) {
+			long start = System.nanoTime();
+			CryptUtil.genMasterKey(password, salt, probe);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		while (best < MIN_PROBE_NANOS && probe.iterations < MAX_ITERATIONS) {
+			probe = probe.withIterations((int) Math.min(MAX_ITERATIONS, 
+					probe.iterations * 2L));
+			long start = System.nanoTime();
+			CryptUtil.genMasterKey(password, salt, probe);
+			best = System.nanoTime() - start;
+		}
+		return probe.scaledTo(best, targetMillis);
+	}
+
+	/**
+	 * Checks if a key derivation with these parameters, which took
+	 * <code>elapsedMillis</code>, is too fast for the target time.
+	 *
+	 * @return the parameters that should replace these, or <code>null</code>
+	 * 			if these are still adequate.
+	 */
+	public KdfParameters upgradeFor(long elapsedMillis, int targetMillis) {
+		if (elapsedMillis * UPGRADE_FACTOR >= targetMillis) {
+			return null;
+		}
+		KdfParameters upgraded = scaledTo(elapsedMillis * 1000000L, 
+				targetMillis);
+		return upgraded.iterations > iterations ? upgraded : null;
+	}
+
+	/**
+	 * Scales the time cost of these parameters, which took
+	 * <code>elapsedNanos</code>, to take <code>targetMillis</code>.
+	 */
+	KdfParameters scaledTo(long elapsedNanos, int targetMillis) {
+		long scaled = iterations * (long) targetMillis * 1000000L / 
+				Math.max(1, elapsedNanos);
+		int n = (int) Math.max(algorithm.minIterations, 
+				Math.min(MAX_ITERATIONS, scaled));
+		return withIterations(n);
+	}
+
+	private KdfParameters withIterations(int n) {
+		return new KdfParameters(algorithm, n, memory, parallelism);
+	}
+
+	/**
+	 * Decodes parameters produced by {@link #encode()}.
+	 *
+	 * @param encoded the encoded parameters or <code>null</code>.
+	 * @return the decoded parameters or {@link #LEGACY} if
+	 * 			<code>encoded</code> is <code>null</code>.
+	 */
+	public static KdfParameters decode(byte[] encoded) {
+		if (encoded == null) {
+			return LEGACY;
+		}
+		if (encoded.length != ENCODED_SIZE || encoded[0] != VERSION) {
+			throw new IllegalArgumentException("Bad KDF parameters");
+		}
+		ByteBuffer bb = ByteBuffer.wrap(encoded, 1, ENCODED_SIZE - 1);
+		Algorithm a = Algorithm.forId(bb.get());
+		return new KdfParameters(a, bb.getInt(), bb.getInt(), bb.getInt());
+	}
+
+	public byte[] encode() {
+		ByteBuffer bb = ByteBuffer.allocate(ENCODED_SIZE);
+		bb.put(VERSION).put(algorithm.id);
+		bb.putInt(iterations).putInt(memory).putInt(parallelism);
+		return bb.array();
+	}
+
+	public Algorithm getAlgorithm() {
+		return algorithm;
+	}
+
+	public int getIterations() {
+		return iterations;
+	}
+
+	public int getMemory() {
+		return memory;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("<KdfParameters,%s,%d,%d,%d>", algorithm,
+				iterations, memory, parallelism);
+	}
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2010 Pedro Fonseca
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hecticant.thinpass.security;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.util.Log;
+
+import com.hecticant.thinpass.persistence.Account;
+import com.hecticant.thinpass.persistence.StoreController;
+
+/**
+ * Re-encrypts every account with a new key, in batches, on a background
+ * thread. The fields of a batch are decrypted and encrypted again in
+ * parallel, and the batch is saved in a single transaction that also moves
+ * the checkpoint of the replacement. When no account is left the new key
+ * replaces the old one.
+ * <p>
+ * The context of the new key falls back to the old key, so both keys stay
+ * valid until the swap, and accounts saved during the rotation are already
+ * encrypted with the new key. A rotation that is cancelled, or killed with
+ * the process, is resumed from its checkpoint the next time the service is
+ * unlocked.
+ *
+ * @author Pedro Fonseca
+ * @see StoreController#replaceKey(byte[], byte[], byte[], byte[])
+ */
+final class KeyRotation implements Runnable {
+	private static final String TAG = "KeyRotation";
+
+	/** The number of accounts saved per transaction. */
+	static final int BATCH_SIZE = 128;
+
+	private final SecurityService service;
+	private final StoreController storeController;
+	private final CryptContext context;
+	private final byte[] integrityKey;
+	private final byte[] snapshotKey;
+	private volatile boolean cancelled;
+
+	/**
+	 * @param context the context of the new key, falling back to the old
+	 * 			key.
+	 * @param integrityKey the integrity key derived from the new key, which
+	 * 			is cleared when the rotation ends.
+	 * @param snapshotKey the snapshot key derived from the new key, which is
+	 * 			cleared when the rotation ends.
+	 */
+	KeyRotation(SecurityService service, StoreController storeController,
+			CryptContext context, byte[] integrityKey, byte[] snapshotKey)
+	{
+		this.service = service;
+		this.storeController = storeController;
+		this.context = context;
+		this.integrityKey = integrityKey;
+		this.snapshotKey = snapshotKey;
+	}
+
+	public void run() {
+		boolean committed = false;
+		try {
+			int count = 0;
+			List<Account> batch;
+			while (!cancelled) {
+				batch = storeController.replacementBatch(BATCH_SIZE);
+				if (batch.isEmpty()) {
+					break;
+				}
+				List<Account> reencrypted = reencrypt(batch);
+				if (reencrypted == null || cancelled
+						|| !storeController.commitReplacementBatch(batch,
+								reencrypted)) {
+					Log.w(TAG, "Key rotation stopped after " + count);
+					return;
+				}
+				count += batch.size();
+			}
+			committed = !cancelled
+				&& storeController.commitKeyReplacement(integrityKey, 
+						snapshotKey);
+			Log.i(TAG, String.format("Key rotation %s (%d accounts)",
+					committed ? "committed" : "stopped", count));
+		}
+		catch (IllegalStateException e) {
+			// The contexts were destroyed because the service was locked.
+			Log.w(TAG, "Key rotation interrupted: " + e.getLocalizedMessage());
+		}
+		finally {
+			Arrays.fill(integrityKey, (byte) 0);
+			Arrays.fill(snapshotKey, (byte) 0);
+			service.keyRotationFinished(this, committed);
+		}
+	}
+
+	/**
+	 * Stops the rotation after the batch being processed. The checkpoint is
+	 * kept so the rotation can be resumed.
+	 */
+	void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * @return the re-encrypted accounts or <code>null</code> if any field
+	 * 			could not be decrypted.
+	 */
+	private List<Account> reencrypt(List<Account> batch) {
+		List<byte[]> fields = new ArrayList<byte[]>(2 * batch.size());
+		for (Account a: batch) {
+			fields.add(a.getPassword());
+			fields.add(a.getDescription());
+		}
+
+		List<CryptResult> results = context.reencryptAll(fields);
+		List<Account> reencrypted = new ArrayList<Account>(batch.size());
+		for (int i = 0; i < batch.size(); ++i) {
+			CryptResult password = results.get(2 * i);
+			CryptResult description = results.get(2 * i + 1);
+			if (!password.isSuccessful() || !description.isSuccessful()) {
+				Log.e(TAG, "Cannot re-encrypt account " + batch.get(i).getId());
+				return null;
+			}
+			reencrypted.add(new Account(batch.get(i), password.getData(),
+					description.getData()));
+		}
+		return reencrypted;
+	}
+}
@@ -51,5 +51,39 @@ public interface PolicyProvider {
 	 * @return a time interval in minutes.
 	 */
 	int lockTimeout();
+	
+	/**
+	 * Returns the time that deriving the master key from a password should
+	 * take. Key derivation parameters are calibrated, and later upgraded, to
+	 * approach this time on the device.
+	 * 
+	 * @return a time interval in milliseconds.
+	 */
+	int keyDerivationMillis();
+	
+	/**
+	 * Returns the memory cost of the master key derivation. A positive value
+	 * selects the memory-hard Argon2id function, which makes guessing 
+	 * passwords expensive on dedicated hardware.
+	 * 
+	 * @return the memory in KiB, or 0 to use the PBE key derivation.
+	 */
+	int keyDerivationMemory();
+	
+	boolean canAcceptPin(char[] pin);
+	
+	/**
+	 * Returns the time interval after an automatic lock during which the 
+	 * password manager can be unlocked with a PIN instead of the password.
+	 * 
+	 * @return a time interval in minutes, or 0 if quick unlock is disabled.
+	 */
+	int quickUnlockWindow();
+	
+	/**
+	 * @return the number of wrong PINs after which quick unlock is disabled
+	 * 			until the next authentication with the password.
+	 */
+	int quickUnlockAttempts();
 
 }
\ No newline at end of file
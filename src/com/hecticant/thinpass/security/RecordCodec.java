@@ -0,0 +1,318 @@
+/*
+ * Copyright 2010 Pedro Fonseca
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hecticant.thinpass.security;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encodes and decodes authenticated records. A record has the layout
+ * <pre>
+ *   version (1) | iv (16) | ciphertext (n) | tag (16)
+ * </pre>
+ * The ciphertext is AES-CTR under a random IV and the tag is the truncated
+ * HMAC-SHA256 of everything that precedes it (encrypt-then-MAC). Encryption
+ * and MAC keys are derived from the record key, so a single key can be
+ * shared with the legacy CBC format.
+ * <p>
+ * Legacy texts are always a whole number of cipher blocks. Records sealed 
+ * from arrays never are: when the layout above would be, the record takes 
+ * version {@link #VERSION_FILLED} and one more byte before the tag. A record
+ * whose tag fails can then be told apart from a legacy text by its length 
+ * alone, see {@link #mayBeLegacy(byte[])}.
+ * <p>
+ * Because CTR does not expand the plaintext, the <code>ByteBuffer</code>
+ * methods can work in place: decryption overwrites the ciphertext with the
+ * clear text and returns a view of it.
+ * <p>
+ * The derived keys are kept in arrays owned by the codec, which 
+ * {@link #destroy()} clears together with the keyed ciphers and MACs of 
+ * every thread.
+ *
+ * @author Pedro Fonseca
+ * @see CryptContext
+ */
+final class RecordCodec {
+	static final byte VERSION = 0x01;
+	static final byte VERSION_FILLED = 0x02;
+	static final int BLOCK_SIZE = 16;
+	static final int IV_SIZE = 16;
+	static final int TAG_SIZE = 16;
+	static final int HEADER_SIZE = 1 + IV_SIZE;
+	static final int OVERHEAD = HEADER_SIZE + TAG_SIZE;
+
+	private static final String CIPHER = "AES/CTR/NoPadding";
+	private static final String MAC = "HmacSHA256";
+	
+	private static final byte[] ENC_LABEL = { 'e', 'n', 'c' };
+	private static final byte[] MAC_LABEL = { 'm', 'a', 'c' };
+
+	private final byte[] encKey;
+	private final byte[] macKey;
+	
+	// Built once from encKey, as the cipher is initialized for every record.
+	private volatile SecretKeySpec encSpec;
+	private volatile boolean destroyed;
+
+	private final ThreadCache<Cipher> ciphers = new ThreadCache<Cipher>();
+	private final ThreadCache<Mac> macs = new ThreadCache<Mac>();
+
+	// Scratch space for the IV and the full-length MAC of each thread.
+	private final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[32];
+		}
+	};
+
+	RecordCodec(byte[] key) throws GeneralSecurityException {
+		this.encKey = CryptUtil.deriveKey(key, ENC_LABEL, 16);
+		this.macKey = CryptUtil.deriveKey(key, MAC_LABEL, 32);
+		this.encSpec = new SecretKeySpec(encKey, "AES");
+	}
+
+	/**
+	 * @return the length of a record holding <code>clearLength</code> bytes.
+	 */
+	static int recordLength(int clearLength) {
+		return clearLength + OVERHEAD;
+	}
+
+	/**
+	 * Checks the version byte and the length only; the tag is verified by
+	 * {@link #open(byte[])}.
+	 */
+	static boolean hasHeader(byte[] record) {
+		return record.length > 0 
+			&& clearLength(record[0], record.length) >= 0;
+	}
+	
+	/**
+	 * @return if <code>text</code> may be in the legacy format, that is, if 
+	 * 			it is a whole number of cipher blocks. Records sealed by
+	 * 			{@link #seal(byte[])} never are.
+	 */
+	static boolean mayBeLegacy(byte[] text) {
+		return text.length > 0 && text.length % BLOCK_SIZE == 0;
+	}
+
+	byte[] seal(byte[] clearText) throws GeneralSecurityException {
+		int length = recordLength(clearText.length);
+		boolean filled = length % BLOCK_SIZE == 0;
+		byte[] record = new byte[filled ? length + 1 : length];
+		seal(ByteBuffer.wrap(clearText), ByteBuffer.wrap(record), filled);
+		return record;
+	}
+
+	/**
+	 * Writes a record for the remaining bytes of <code>clear</code> at the
+	 * position of <code>record</code>, advancing both buffers. To encrypt in
+	 * place, pass a different buffer object over the same memory, with the
+	 * clear text starting <code>HEADER_SIZE</code> bytes after the position
+	 * of <code>record</code>.
+	 *
+	 * @return the number of bytes written.
+	 */
+	int seal(ByteBuffer clear, ByteBuffer record)
+		throws GeneralSecurityException
+	{
+		return seal(clear, record, false);
+	}
+	
+	private int seal(ByteBuffer clear, ByteBuffer record, boolean filled)
+		throws GeneralSecurityException
+	{
+		int n = clear.remaining();
+		int fill = filled ? 1 : 0;
+		if (record.remaining() < recordLength(n) + fill) {
+			throw new ShortBufferException();
+		}
+
+		byte[] iv = scratch.get();
+		CryptUtil.nextBytes(iv, IV_SIZE);
+		Cipher c = cipher();
+		c.init(Cipher.ENCRYPT_MODE, encSpec(), 
+				new IvParameterSpec(iv, 0, IV_SIZE));
+
+		int start = record.position();
+		record.put(filled ? VERSION_FILLED : VERSION);
+		record.put(iv, 0, IV_SIZE);
+		ByteBuffer out = record.duplicate();
+		c.doFinal(clear, out);
+		record.position(start + HEADER_SIZE + n);
+		if (filled) {
+			record.put((byte) 0);
+		}
+
+		ByteBuffer authenticated = record.duplicate();
+		authenticated.position(start);
+		authenticated.limit(start + HEADER_SIZE + n + fill);
+		byte[] tag = computeTag(authenticated);
+		record.put(tag, 0, TAG_SIZE);
+
+		return recordLength(n) + fill;
+	}
+
+	/**
+	 * Decrypts <code>record</code> into a new array. The record is left
+	 * unchanged.
+	 *
+	 * @return the clear text or <code>null</code> if <code>record</code> is
+	 * 			not a valid record for this key.
+	 */
+	byte[] open(byte[] record) throws GeneralSecurityException {
+		if (!hasHeader(record)) {
+			return null;
+		}
+		int n = clearLength(record[0], record.length);
+		if (!verify(ByteBuffer.wrap(record))) {
+			return null;
+		}
+
+		Cipher c = cipher();
+		c.init(Cipher.DECRYPT_MODE, encSpec(),
+				new IvParameterSpec(record, 1, IV_SIZE));
+		return c.doFinal(record, HEADER_SIZE, n);
+	}
+
+	/**
+	 * Decrypts the remaining bytes of <code>record</code> in place. The
+	 * buffer's position is moved to its limit.
+	 *
+	 * @return a view of the clear text, sharing the memory of
+	 * 			<code>record</code>, or <code>null</code> if the remaining
+	 * 			bytes are not a valid record for this key. In the latter case
+	 * 			the buffer is not modified.
+	 */
+	ByteBuffer open(ByteBuffer record) throws GeneralSecurityException {
+		int start = record.position();
+		int end = record.limit();
+		int n = end > start ? clearLength(record.get(start), end - start) : -1;
+		if (n < 0 || !verify(record)) {
+			return null;
+		}
+
+		byte[] iv = scratch.get();
+		for (int i = 0; i < IV_SIZE; ++i) {
+			iv[i] = record.get(start + 1 + i);
+		}
+		Cipher c = cipher();
+		c.init(Cipher.DECRYPT_MODE, encSpec(), 
+				new IvParameterSpec(iv, 0, IV_SIZE));
+
+		ByteBuffer in = record.duplicate();
+		in.position(start + HEADER_SIZE);
+		in.limit(start + HEADER_SIZE + n);
+		ByteBuffer clear = in.slice();
+		c.doFinal(in, clear.duplicate());
+
+		record.position(end);
+		return clear;
+	}
+
+	/**
+	 * Clears the keys and drops the keyed ciphers and MACs of every thread.
+	 * Any later use of the codec fails with an 
+	 * <code>IllegalStateException</code>.
+	 */
+	void destroy() {
+		destroyed = true;
+		encSpec = null;
+		ciphers.clear();
+		macs.clear();
+		Arrays.fill(encKey, (byte) 0);
+		Arrays.fill(macKey, (byte) 0);
+	}
+
+	/**
+	 * @return the length of the clear text of a record with the given 
+	 * 			version byte and length, or -1 if there is no such record.
+	 */
+	private static int clearLength(byte version, int length) {
+		if (version == VERSION) {
+			return length - OVERHEAD;
+		}
+		if (version == VERSION_FILLED && length > OVERHEAD) {
+			return length - OVERHEAD - 1;
+		}
+		return -1;
+	}
+
+	private boolean verify(ByteBuffer record) throws GeneralSecurityException {
+		int start = record.position();
+		int end = record.limit();
+
+		ByteBuffer authenticated = record.duplicate();
+		authenticated.limit(end - TAG_SIZE);
+		byte[] tag = computeTag(authenticated);
+
+		// Constant time comparison.
+		int diff = 0;
+		for (int i = 0; i < TAG_SIZE; ++i) {
+			diff |= tag[i] ^ record.get(end - TAG_SIZE + i);
+		}
+		record.position(start);
+		return diff == 0;
+	}
+
+	private byte[] computeTag(ByteBuffer authenticated)
+		throws GeneralSecurityException
+	{
+		Mac m = macs.get();
+		if (m == null) {
+			checkState();
+			m = Mac.getInstance(MAC);
+			m.init(new SecretKeySpec(macKey, MAC));
+			macs.set(m);
+		}
+		byte[] tag = scratch.get();
+		m.update(authenticated);
+		m.doFinal(tag, 0);
+		return tag;
+	}
+
+	private Cipher cipher() throws GeneralSecurityException {
+		Cipher c = ciphers.get();
+		if (c == null) {
+			checkState();
+			c = Cipher.getInstance(CIPHER);
+			ciphers.set(c);
+		}
+		return c;
+	}
+	
+	private SecretKeySpec encSpec() {
+		SecretKeySpec spec = encSpec;
+		if (spec == null) {
+			throw new IllegalStateException("RecordCodec was destroyed");
+		}
+		return spec;
+	}
+	
+	private void checkState() {
+		if (destroyed) {
+			throw new IllegalStateException("RecordCodec was destroyed");
+		}
+	}
+}
@@ -16,7 +16,9 @@
 
 package com.hecticant.thinpass.security;
 
+import java.security.GeneralSecurityException;
 import java.util.Arrays;
+import java.util.List;
 import javax.crypto.SecretKey;
 
 import android.app.Service;
@@ -27,10 +29,12 @@ import android.os.Binder;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.hecticant.thinpass.persistence.StoreController;
 import com.hecticant.thinpass.security.AuthenticationResult.AuthenticationStatus;
+import com.hecticant.thinpass.security.KdfParameters.Algorithm;
 
 /**
  * This service provides authentication, confidentiality and key integrity (but 
@@ -40,6 +44,12 @@ import com.hecticant.thinpass.security.AuthenticationResult.AuthenticationStatus
  * The security service is explicitly started when a SetMasterPasswordActivity 
  * or an UnlockActivity is created, and explicitly stopped when the 
  * authentication fails and all attempts are exhausted.
+ * <p>
+ * After the user authenticates, a PIN can be set with 
+ * {@link #enableQuickUnlock(char[])}. The session key is then kept in memory,
+ * wrapped under a key derived from the PIN, so that after an automatic lock 
+ * the service can be unlocked with {@link #quickUnlock(char[])} for a time 
+ * set by the policy. Locking the service explicitly discards the wrapped key.
  * 
  * @author Pedro Fonseca
  *
@@ -52,6 +62,14 @@ public class SecurityService extends Service {
 	public static final int LOCK_MESSAGE = 0x00008000;
 	public static final String LOCK_ACTION = "Lock";
 	
+	// The PIN only protects a key held in memory for a few minutes, with a 
+	// limited number of attempts, so a cheap key derivation is enough.
+	private static final KdfParameters QUICK_UNLOCK_KDF = 
+		new KdfParameters(Algorithm.PBE_SHA1_AES128, 1000, 0, 1);
+	
+	private static final byte[] INTEGRITY_LABEL = { 'i', 'n', 't' };
+	private static final byte[] SNAPSHOT_LABEL = { 's', 'n', 'p' };
+	
 	public class LocalBinder extends Binder {
         public SecurityService getService() {
             return SecurityService.this;
@@ -64,7 +82,7 @@ public class SecurityService extends Service {
 		@Override
 		public void handleMessage(Message msg) {
 			if (msg.what == LOCK_MESSAGE) {
-				lock();
+				autoLock();
 				Intent intent = new Intent(LOCK_ACTION);
 				SecurityService.this.sendBroadcast(intent);
 			}
@@ -75,11 +93,24 @@ public class SecurityService extends Service {
 	private StoreController storeController;
 	private boolean locked;
 	private byte[] key;
+	private CryptContext cryptContext;
 	private int attempts;
 	
+	// The session key wrapped under the PIN key, and the salt of the PIN.
+	private byte[] quickUnlockKey;
+	private byte[] quickUnlockSalt;
+	private long quickUnlockDeadline;
+	private int quickUnlockFailures;
+	
+	// While the key is rotated, the context of the old key and the new key.
+	private KeyRotation keyRotation;
+	private CryptContext previousContext;
+	private byte[] rotationKey;
+	
 	public SecurityService() {
 		this.locked = true;
 		this.key = null;
+		this.cryptContext = null;
 	}
 	
 	@Override
@@ -127,9 +158,15 @@ public class SecurityService extends Service {
 		byte salt[] = CryptUtil.getSalt();
 		storeController.setPasswordSalt(salt);
 		
+		// Choose key derivation parameters that make unlocking take the time
+		// set by the policy on this device.
+		KdfParameters params = calibrateKeyDerivation();
+		storeController.setKdfParameters(params.encode());
+		Log.i(TAG, "Calibrated key derivation: " + params);
+		
 		// Generate a master symmetric key from the password and the salt using
 		// key derivation.
-		SecretKey master = CryptUtil.genMasterKey(password, salt);
+		SecretKey master = CryptUtil.genMasterKey(password, salt, params);
 		
 		// Generate the random symmetric key that will be used to encrypt the 
 		// user data. This key is encrypted by the master key and stored along
@@ -139,9 +176,19 @@ public class SecurityService extends Service {
 		byte[] challengeSalt = CryptUtil.getSalt();
 		byte[] encryptedKey = CryptUtil.encrypt(master, randomKeyBytes);
 		byte[] challenge = CryptUtil.hash(randomKeyBytes, challengeSalt);
+		byte[] integrityKey;
+		try {
+			integrityKey = 
+				CryptUtil.deriveKey(randomKeyBytes, INTEGRITY_LABEL, 32);
+		}
+		catch (GeneralSecurityException e) {
+			Log.e(TAG, "Cannot derive the integrity key", e);
+			return false;
+		}
 		
 		boolean didAddKey = storeController.storeKey(encryptedKey, 
-				challengeSalt, challenge);
+				challengeSalt, challenge, integrityKey);
+		Arrays.fill(integrityKey, (byte) 0);
 		
 		if (didAddKey && unlock) {
 			unlock(randomKeyBytes);
@@ -162,9 +209,13 @@ public class SecurityService extends Service {
 		// Authentication
 		saveAttempts(++attempts);
 		byte[] salt = storeController.passwordSalt();
+		KdfParameters params = 
+			KdfParameters.decode(storeController.kdfParameters());
 		
 		// Key types should have a clearSensitiveData() method...
-		SecretKey mkey = CryptUtil.genMasterKey(password, salt);
+		long start = System.nanoTime();
+		SecretKey mkey = CryptUtil.genMasterKey(password, salt, params);
+		long elapsed = (System.nanoTime() - start) / 1000000L;
 		
 		byte[] check = null;
 		byte[] skey = CryptUtil.decrypt(mkey, storeController.key());
@@ -175,8 +226,14 @@ public class SecurityService extends Service {
 		}
 		
 		if (check != null && Arrays.equals(check, storeController.challenge())){
+			upgradeMasterKey(password, skey, params, elapsed);
 			unlock(skey);
 			authResult.status = AuthenticationStatus.AUTHENTICATED;
+			if (!storeController.verifyIntegrity()) {
+				Log.w(TAG, "The integrity index does not match the store");
+				authResult.message = 
+					"The accounts were modified outside ThinPass";
+			}
 		} else if (policy.canRetryAuthentication(attempts)) {
 			authResult.status = AuthenticationStatus.FAILED;
 		} else if (policy.shouldWipeDatabase(attempts)) {
@@ -197,10 +254,78 @@ public class SecurityService extends Service {
 		return authResult;
 	}
 	
-	public final void unlock(byte[] key) {
+	/**
+	 * Wraps the key under a new master key if deriving the current one took
+	 * much less than the policy allows, which happens on faster hardware or 
+	 * when the master key predates calibration.
+	 */
+	private void upgradeMasterKey(char[] password, byte[] skey, 
+			KdfParameters params, long elapsedMillis) 
+	{
+		if (storeController.replacementKey() != null) {
+			// The key being rotated in is wrapped under the current master 
+			// key, which must not change until the rotation commits.
+			return;
+		}
+		
+		KdfParameters upgraded;
+		if (policy.keyDerivationMemory() > 0 
+				&& params.getAlgorithm() != Algorithm.ARGON2ID) {
+			// The policy now asks for a memory-hard key derivation.
+			upgraded = calibrateKeyDerivation();
+		} else {
+			upgraded = params.upgradeFor(elapsedMillis, 
+					policy.keyDerivationMillis());
+		}
+		if (upgraded == null) {
+			return;
+		}
+		
+		byte[] salt = CryptUtil.getSalt();
+		SecretKey master = CryptUtil.genMasterKey(password, salt, upgraded);
+		byte[] encryptedKey = CryptUtil.encrypt(master, skey);
+		if (encryptedKey != null && storeController.updateMasterKey(
+				encryptedKey, salt, upgraded.encode())) {
+			Log.i(TAG, String.format("Upgraded key derivation %s to %s", 
+					params, upgraded));
+		}
+	}
+	
+	private KdfParameters calibrateKeyDerivation() {
+		int target = policy.keyDerivationMillis();
+		int memory = policy.keyDerivationMemory();
+		if (memory > 0) {
+			return KdfParameters.calibrate(target, memory, CryptUtil.WORKERS);
+		}
+		return KdfParameters.calibrate(target);
+	}
+	
+	public final synchronized void unlock(byte[] key) {
 		if (locked) {
 			locked = false;
 			this.key = key;
+			this.cryptContext = new CryptContext(key);
+			// The store is unsealed first, as the integrity index may be 
+			// built from its accounts.
+			setSnapshotKey(key);
+			try {
+				storeController.setIntegrityKey(CryptUtil.deriveKey(key, 
+						INTEGRITY_LABEL, 32));
+			}
+			catch (GeneralSecurityException e) {
+				Log.e(TAG, "Cannot derive the integrity key", e);
+			}
+			
+			// Resume a key rotation that was interrupted.
+			byte[] wrappedKey = storeController.replacementKey();
+			if (wrappedKey != null) {
+				byte[] newKey = cryptContext.decrypt(wrappedKey);
+				if (newKey != null) {
+					startKeyRotation(newKey);
+				} else {
+					Log.e(TAG, "Cannot resume the key rotation");
+				}
+			}
 	
 			// Start the lockout timer
 			Message msg = new Message();
@@ -210,27 +335,349 @@ public class SecurityService extends Service {
 		}
 	}
 	
+	/**
+	 * Locks the service and discards the key used for quick unlock.
+	 */
 	public final void lock() {
+		clearQuickUnlock();
+		lockSession();
+	}
+	
+	/**
+	 * Locks the service when the lock timeout expires. Quick unlock, if it was
+	 * enabled, remains available for the window set by the policy.
+	 */
+	private synchronized void autoLock() {
+		lockSession();
+		if (quickUnlockKey != null) {
+			quickUnlockDeadline = SystemClock.elapsedRealtime() 
+				+ policy.quickUnlockWindow() * 60 * 1000L;
+		}
+	}
+	
+	/**
+	 * Wraps the session key under a key derived from <code>pin</code> so the 
+	 * service can be reopened with {@link #quickUnlock(char[])} after an 
+	 * automatic lock. The wrapped key is never stored.
+	 * 
+	 * @param pin the PIN, which the caller should clear afterwards.
+	 * @return if quick unlock was enabled.
+	 */
+	public synchronized boolean enableQuickUnlock(char[] pin) {
+		if (locked || pin == null || !policy.canAcceptPin(pin) 
+				|| policy.quickUnlockWindow() <= 0) {
+			return false;
+		}
+		
+		clearQuickUnlock();
+		byte[] salt = CryptUtil.getSalt();
+		RecordCodec codec = null;
+		try {
+			codec = pinCodec(pin, salt);
+			quickUnlockKey = codec.seal(key);
+			quickUnlockSalt = salt;
+		}
+		catch (GeneralSecurityException e) {
+			Log.e(TAG, "enableQuickUnlock: " + e.getLocalizedMessage());
+			return false;
+		}
+		finally {
+			if (codec != null) {
+				codec.destroy();
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @return if the service is locked and can be unlocked with a PIN.
+	 */
+	public synchronized boolean canQuickUnlock() {
+		return locked && quickUnlockKey != null && quickUnlockDeadline != 0 
+			&& SystemClock.elapsedRealtime() < quickUnlockDeadline;
+	}
+	
+	/**
+	 * Unlocks the service with the PIN set by 
+	 * {@link #enableQuickUnlock(char[])}. When the allowed number of attempts
+	 * is exceeded the wrapped key is destroyed, and the service can only be 
+	 * unlocked with {@link #authenticate(char[])}.
+	 * 
+	 * @param pin the PIN.
+	 * @return the result of the attempt. The status is <code>NOKEY</code> if
+	 * 			quick unlock is not available, and <code>AUTHENTICATED</code>
+	 * 			if the service was unlocked meanwhile, in which case the PIN
+	 * 			is left untouched.
+	 */
+	public synchronized AuthenticationResult quickUnlock(char[] pin) {
+		AuthenticationResult authResult = new AuthenticationResult();
+		if (pin == null) {
+			return authResult;
+		}
+		if (!locked) {
+			// Raced with another unlock, such as a second tap.
+			authResult.status = AuthenticationStatus.AUTHENTICATED;
+			return authResult;
+		}
+		if (!canQuickUnlock()) {
+			if (quickUnlockDeadline != 0) {
+				// The window has passed.
+				clearQuickUnlock();
+			}
+			authResult.status = AuthenticationStatus.NOKEY;
+			return authResult;
+		}
+		
+		byte[] skey = null;
+		RecordCodec codec = null;
+		try {
+			codec = pinCodec(pin, quickUnlockSalt);
+			skey = codec.open(quickUnlockKey);
+		}
+		catch (GeneralSecurityException e) {
+			Log.e(TAG, "quickUnlock: " + e.getLocalizedMessage());
+		}
+		finally {
+			if (codec != null) {
+				codec.destroy();
+			}
+		}
+		
+		if (skey != null) {
+			quickUnlockFailures = 0;
+			quickUnlockDeadline = 0;
+			unlock(skey);
+			authResult.status = AuthenticationStatus.AUTHENTICATED;
+		} else if (++quickUnlockFailures < policy.quickUnlockAttempts()) {
+			authResult.status = AuthenticationStatus.FAILED;
+			authResult.message = "Wrong PIN";
+		} else {
+			clearQuickUnlock();
+			authResult.status = AuthenticationStatus.FAILED;
+			authResult.message = "Too many attempts. Use the password";
+		}
+		return authResult;
+	}
+	
+	private RecordCodec pinCodec(char[] pin, byte[] salt) 
+		throws GeneralSecurityException 
+	{
+		byte[] pinKey = 
+			CryptUtil.genMasterKey(pin, salt, QUICK_UNLOCK_KDF).getEncoded();
+		try {
+			return new RecordCodec(pinKey);
+		}
+		finally {
+			Arrays.fill(pinKey, (byte) 0);
+		}
+	}
+	
+	private synchronized void clearQuickUnlock() {
+		if (quickUnlockKey != null) {
+			Arrays.fill(quickUnlockKey, (byte) 0);
+		}
+		quickUnlockKey = null;
+		quickUnlockSalt = null;
+		quickUnlockDeadline = 0;
+		quickUnlockFailures = 0;
+	}
+	
+	/**
+	 * Replaces the key that encrypts the accounts with a new random key. The
+	 * password is checked against the stored key and is needed to protect 
+	 * the new key with the master key. The accounts are re-encrypted on a 
+	 * background thread, and the service remains usable meanwhile; if it is
+	 * locked before the rotation ends, the rotation resumes on the next 
+	 * unlock.
+	 * <p>
+	 * Deriving the master key takes as long as authenticating, so this 
+	 * method should not be called on the UI thread.
+	 * 
+	 * @param password the password of the master key.
+	 * @return if the rotation was started.
+	 * @see #isRotatingKey()
+	 */
+	public boolean rotateKey(char[] password) {
+		byte[] currentKey = key;
+		CryptContext cc = cryptContext;
+		if (locked || password == null || cc == null 
+				|| storeController.replacementKey() != null) {
+			return false;
+		}
+		
+		KdfParameters params = 
+			KdfParameters.decode(storeController.kdfParameters());
+		SecretKey master = CryptUtil.genMasterKey(password, 
+				storeController.passwordSalt(), params);
+		byte[] skey = CryptUtil.decrypt(master, storeController.key());
+		boolean valid = skey != null && Arrays.equals(skey, currentKey);
+		if (skey != null) {
+			Arrays.fill(skey, (byte) 0);
+		}
+		if (!valid) {
+			Log.w(TAG, "Key rotation refused. Probably a bad password...");
+			return false;
+		}
+		
+		byte[] newKey = CryptUtil.genRandomKey().getEncoded();
+		byte[] challengeSalt = CryptUtil.getSalt();
+		byte[] encryptedKey = CryptUtil.encrypt(master, newKey);
+		byte[] challenge = CryptUtil.hash(newKey, challengeSalt);
+		byte[] wrappedKey = cc.encrypt(newKey);
+		if (encryptedKey == null || wrappedKey == null 
+				|| !storeController.replaceKey(encryptedKey, challengeSalt, 
+						challenge, wrappedKey)) {
+			Arrays.fill(newKey, (byte) 0);
+			return false;
+		}
+		return startKeyRotation(newKey);
+	}
+	
+	/**
+	 * @return if the accounts are being re-encrypted with a new key.
+	 */
+	public synchronized boolean isRotatingKey() {
+		return keyRotation != null;
+	}
+	
+	private synchronized boolean startKeyRotation(byte[] newKey) {
+		byte[] newIntegrityKey = null;
+		byte[] newSnapshotKey = null;
+		try {
+			newIntegrityKey = 
+				CryptUtil.deriveKey(newKey, INTEGRITY_LABEL, 32);
+			newSnapshotKey = CryptUtil.deriveKey(newKey, SNAPSHOT_LABEL, 16);
+		}
+		catch (GeneralSecurityException e) {
+			Log.e(TAG, "Cannot derive the keys of the new key", e);
+		}
+		if (locked || keyRotation != null || newSnapshotKey == null) {
+			Arrays.fill(newKey, (byte) 0);
+			if (newIntegrityKey != null) {
+				Arrays.fill(newIntegrityKey, (byte) 0);
+			}
+			return false;
+		}
+		
+		// New data is encrypted with the new key from now on, and data not 
+		// yet rotated is still decrypted with the old key.
+		previousContext = cryptContext;
+		rotationKey = newKey;
+		cryptContext = new CryptContext(newKey, previousContext);
+		keyRotation = new KeyRotation(this, storeController, cryptContext, 
+				newIntegrityKey, newSnapshotKey);
+		
+		Thread t = new Thread(keyRotation, "KeyRotation");
+		t.setDaemon(true);
+		t.start();
+		return true;
+	}
+	
+	/**
+	 * Called by <code>rotation</code> on its own thread when it ends.
+	 * 
+	 * @param committed if the new key replaced the old one.
+	 */
+	synchronized void keyRotationFinished(KeyRotation rotation, 
+			boolean committed) 
+	{
+		if (committed) {
+			// The key wrapped for quick unlock is the old one.
+			clearQuickUnlock();
+		}
+		if (rotation != keyRotation) {
+			// Locked meanwhile; the contexts are already destroyed.
+			return;
+		}
+		keyRotation = null;
+		if (!committed) {
+			// Both keys stay valid until the rotation resumes.
+			return;
+		}
+		
+		CryptContext rotated = cryptContext;
+		cryptContext = new CryptContext(rotationKey);
+		rotated.destroy();
+		previousContext.destroy();
+		previousContext = null;
+		Arrays.fill(key, (byte) 0);
+		key = rotationKey;
+		rotationKey = null;
+		// The snapshot of the old key is rebuilt on the next read.
+		setSnapshotKey(key);
+	}
+	
+	private void setSnapshotKey(byte[] key) {
+		try {
+			byte[] snapshotKey = CryptUtil.deriveKey(key, SNAPSHOT_LABEL, 16);
+			storeController.setSnapshotKey(snapshotKey);
+			Arrays.fill(snapshotKey, (byte) 0);
+		}
+		catch (GeneralSecurityException e) {
+			Log.e(TAG, "Cannot derive the snapshot key", e);
+		}
+	}
+	
+	private synchronized void lockSession() {
+		lockTimeoutHandler.removeMessages(LOCK_MESSAGE);
+		if (keyRotation != null) {
+			// Resumed from its checkpoint on the next unlock.
+			keyRotation.cancel();
+			keyRotation = null;
+		}
 		if (!locked) {
 			Arrays.fill(key, (byte) 0);
+			cryptContext.destroy();
+			cryptContext = null;
+			if (previousContext != null) {
+				previousContext.destroy();
+				previousContext = null;
+			}
+			if (rotationKey != null) {
+				Arrays.fill(rotationKey, (byte) 0);
+				rotationKey = null;
+			}
+			// Saves still in flight need the integrity key; this may run on 
+			// the main thread, so it does not wait for them.
+			storeController.clearKeysAfterWrites();
 			locked = true;
 		}
 	}
 	
 	public final byte[] encrypt(byte[] clearText) {
-		if (locked || clearText == null) {
+		CryptContext cc = cryptContext;
+		if (locked || cc == null || clearText == null) {
 			return null;
 		}
 		
-		return CryptUtil.encrypt(key, clearText);
+		return cc.encrypt(clearText);
 	}
 	
 	public final byte[] decrypt(byte[] cipheredText) {
-		if (locked || cipheredText == null) {
+		CryptContext cc = cryptContext;
+		if (locked || cc == null || cipheredText == null) {
+			return null;
+		}
+		
+		return cc.decrypt(cipheredText);	
+	}
+	
+	/**
+	 * Decrypts a batch of texts with the session key. Large batches are 
+	 * decrypted concurrently.
+	 * 
+	 * @param cipheredTexts the texts to decrypt.
+	 * @return one result per element, in input order, or <code>null</code> 
+	 * 			if the service is locked.
+	 * @see CryptContext#decryptAll(List)
+	 */
+	public final List<CryptResult> decryptAll(List<byte[]> cipheredTexts) {
+		CryptContext cc = cryptContext;
+		if (locked || cc == null || cipheredTexts == null) {
 			return null;
 		}
 		
-		return CryptUtil.decrypt(key, cipheredText);	
+		return cc.decryptAll(cipheredTexts);
 	}
 	
 	private void resetAttempts() {
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2010 Pedro Fonseca
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hecticant.thinpass.security;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A per-thread cache of objects that hold key material, such as initialized
+ * ciphers. Unlike a plain <code>ThreadLocal</code>, it can be cleared for 
+ * every thread at once: the values cached by the threads of 
+ * {@link CryptUtil#workerPool()} would otherwise stay reachable after the 
+ * key is destroyed, until each thread happened to use the cache again.
+ *
+ * @author Pedro Fonseca
+ * @see RecordCodec
+ * @see CryptContext
+ */
+final class ThreadCache<T> {
+	/** The value of one thread. It is also cleared by other threads. */
+	private static final class Slot<T> {
+		volatile T value;
+	}
+
+	// Every slot handed out, so that clear() can reach them.
+	private final List<Slot<T>> slots = new ArrayList<Slot<T>>();
+	private volatile boolean cleared;
+
+	private final ThreadLocal<Slot<T>> local = new ThreadLocal<Slot<T>>() {
+		@Override
+		protected Slot<T> initialValue() {
+			Slot<T> s = new Slot<T>();
+			synchronized (slots) {
+				slots.add(s);
+			}
+			return s;
+		}
+	};
+
+	/**
+	 * @return the value of the calling thread, or <code>null</code> if it 
+	 * 			has none or the cache was cleared.
+	 */
+	T get() {
+		return local.get().value;
+	}
+
+	/**
+	 * Caches <code>value</code> for the calling thread. Once the cache is 
+	 * cleared the value is not kept.
+	 */
+	void set(T value) {
+		Slot<T> s = local.get();
+		s.value = value;
+		if (cleared) {
+			// Raced with clear(), which may have missed this value.
+			s.value = null;
+		}
+	}
+
+	/**
+	 * Drops the values of every thread. Values set afterwards are not kept.
+	 */
+	void clear() {
+		cleared = true;
+		synchronized (slots) {
+			for (Slot<T> s: slots) {
+				s.value = null;
+			}
+		}
+	}
+}